@@ -0,0 +1,156 @@
+package com.tonyodev.fetch;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tonyodev.fetch.request.RequestQuery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class DatabaseHelperTest {
+
+    private DatabaseHelper databaseHelper;
+
+    @Before
+    public void setUp() {
+        databaseHelper = DatabaseHelper.getInstance(InstrumentationRegistry.getTargetContext());
+        databaseHelper.deleteAll();
+    }
+
+    @After
+    public void tearDown() {
+        databaseHelper.deleteAll();
+    }
+
+    @Test
+    public void queryFiltersByStatusAndUrlPrefix() {
+        insert(1, "http://a.com/videos/1", Fetch.STATUS_QUEUED, 100);
+        insert(2, "http://a.com/videos/2", Fetch.STATUS_PAUSED, 200);
+        insert(3, "http://a.com/images/3", Fetch.STATUS_QUEUED, 300);
+        insert(4, "http://a.com/videos/4", Fetch.STATUS_DONE, 400);
+
+        RequestQuery requestQuery = new RequestQuery()
+                .setStatus(Fetch.STATUS_QUEUED, Fetch.STATUS_PAUSED)
+                .setUrlPrefix("http://a.com/videos/");
+
+        assertEquals(ids(1, 2), query(requestQuery));
+    }
+
+    @Test
+    public void queryFiltersByFileSizeRange() {
+        insert(1, "http://a.com/1", Fetch.STATUS_QUEUED, 100);
+        insert(2, "http://a.com/2", Fetch.STATUS_QUEUED, 200);
+        insert(3, "http://a.com/3", Fetch.STATUS_QUEUED, 300);
+
+        assertEquals(ids(2, 3), query(new RequestQuery().setFileSizeRange(150, -1)));
+        assertEquals(ids(1, 2), query(new RequestQuery().setFileSizeRange(-1, 200)));
+    }
+
+    @Test
+    public void querySortsBreaksTiesByIdAndLimits() {
+        insert(1, "http://a.com/1", Fetch.STATUS_QUEUED, 200);
+        insert(2, "http://a.com/2", Fetch.STATUS_QUEUED, 300);
+        insert(3, "http://a.com/3", Fetch.STATUS_QUEUED, 200);
+        insert(4, "http://a.com/4", Fetch.STATUS_QUEUED, 100);
+
+        RequestQuery requestQuery = new RequestQuery()
+                .setOrderBy(RequestQuery.ORDER_BY_FILE_SIZE, true)
+                .setLimit(3);
+
+        assertEquals(ids(2, 3, 1), query(requestQuery));
+    }
+
+    @Test
+    public void emptyQueryReturnsEveryRequestById() {
+        insert(2, "http://a.com/2", Fetch.STATUS_QUEUED, 100);
+        insert(1, "http://a.com/1", Fetch.STATUS_DONE, 100);
+
+        assertEquals(ids(1, 2), query(new RequestQuery()));
+    }
+
+    @Test
+    public void batchInsertReportsEachRow() {
+        insert(1, "http://a.com/1", Fetch.STATUS_QUEUED, 100);
+
+        List<DatabaseHelper.Row> rows = new ArrayList<>();
+        rows.add(row(2, "http://a.com/2", "/sdcard/fetch-test/2"));
+        rows.add(row(1, "http://a.com/1", "/sdcard/fetch-test/other"));
+        rows.add(row(3, "http://a.com/3", "/sdcard/fetch-test/2"));
+        rows.add(row(4, null, "/sdcard/fetch-test/4"));
+        rows.add(row(5, "http://a.com/5", null));
+        rows.add(null);
+        rows.add(row(6, "http://a.com/6", "/sdcard/fetch-test/6"));
+
+        boolean[] inserted = databaseHelper.insert(rows);
+
+        assertArrayEquals(new boolean[]{true, false, false, false, false, false, true}, inserted);
+        assertEquals(ids(1, 2, 6), query(new RequestQuery()));
+        assertTrue(databaseHelper.isPending(2));
+        assertTrue(databaseHelper.isPending(6));
+    }
+
+    @Test
+    public void batchInsertSpansSeveralTransactions() {
+        int count = DatabaseHelper.INSERT_BATCH_SIZE * 2 + 1;
+        List<DatabaseHelper.Row> rows = new ArrayList<>(count);
+
+        for (int i = 1; i <= count; i++) {
+            rows.add(row(i, "http://a.com/" + i, "/sdcard/fetch-test/" + i));
+        }
+
+        boolean[] inserted = databaseHelper.insert(rows);
+
+        for (boolean value : inserted) {
+            assertTrue(value);
+        }
+
+        assertEquals(count, query(new RequestQuery()).size());
+    }
+
+    private static DatabaseHelper.Row row(long id, String url, String filePath) {
+        return new DatabaseHelper.Row(id, url, filePath, Fetch.STATUS_QUEUED, "[]", 0, Fetch.DEFAULT_EMPTY_VALUE,
+                Fetch.PRIORITY_NORMAL, Fetch.DEFAULT_EMPTY_VALUE, Fetch.DIGEST_NONE, null);
+    }
+
+    private void insert(long id, String url, int status, long fileSize) {
+        assertTrue(databaseHelper.insert(id, url, "/sdcard/fetch-test/" + id, status, "[]", 0, fileSize,
+                Fetch.PRIORITY_NORMAL, Fetch.DEFAULT_EMPTY_VALUE, Fetch.DIGEST_NONE, null));
+    }
+
+    private List<Long> query(RequestQuery requestQuery) {
+        Cursor cursor = databaseHelper.get(requestQuery);
+        assertNotNull(cursor);
+
+        List<Long> ids = new ArrayList<>();
+
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(DatabaseHelper.INDEX_COLUMN_ID));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return ids;
+    }
+
+    private static List<Long> ids(long... values) {
+        List<Long> ids = new ArrayList<>();
+
+        for (long value : values) {
+            ids.add(value);
+        }
+
+        return ids;
+    }
+}
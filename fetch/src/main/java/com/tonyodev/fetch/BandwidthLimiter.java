@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Tonyo Francis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tonyodev.fetch;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Process wide bandwidth limiter shared by all FetchRunnables.
+ * Supports a global cap and an optional cap per request. A limit
+ * of 0 means unlimited. Limits can be changed while downloads run,
+ * and a change wakes the waiting readers so they recompute their wait.
+ * Reads that no cap holds back do not take a lock, and waiting
+ * readers park their own thread.
+ *
+ * @author Tonyo Francis
+ */
+final class BandwidthLimiter {
+
+    private static final long MAX_SLEEP = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final BandwidthLimiter instance = new BandwidthLimiter();
+
+    interface Interruptible {
+        boolean isInterrupted();
+    }
+
+    private final TokenBucket globalBucket = new TokenBucket(0);
+    private final ConcurrentHashMap<Long,TokenBucket> requestBuckets = new ConcurrentHashMap<>();
+    private final Set<Thread> waiters = Collections.newSetFromMap(new ConcurrentHashMap<Thread,Boolean>());
+
+    private BandwidthLimiter() {
+    }
+
+    static BandwidthLimiter getInstance() {
+        return instance;
+    }
+
+    void setGlobalLimit(long bytesPerSecond) {
+        globalBucket.setBytesPerSecond(bytesPerSecond);
+        onLimitChanged();
+    }
+
+    void setRequestLimit(long id,long bytesPerSecond) {
+
+        if(bytesPerSecond <= 0) {
+            requestBuckets.remove(id);
+        }else {
+
+            TokenBucket bucket = requestBuckets.putIfAbsent(id,new TokenBucket(bytesPerSecond));
+
+            if(bucket != null) {
+                bucket.setBytesPerSecond(bytesPerSecond);
+            }
+        }
+
+        onLimitChanged();
+    }
+
+    void removeRequest(long id) {
+        requestBuckets.remove(id);
+    }
+
+    /**
+     * Charges the bytes that were just read and blocks until the
+     * global and request caps allow them. Returns early if the
+     * download is interrupted.
+     *
+     * @param id request id
+     * @param bytes number of bytes read
+     * @param interruptible download being throttled
+     * */
+    void acquire(long id,int bytes,Interruptible interruptible) throws InterruptedException {
+
+        globalBucket.reserve(bytes);
+        TokenBucket bucket = requestBuckets.get(id);
+
+        if(bucket != null) {
+            bucket.reserve(bytes);
+        }
+
+        long delay = getDelay(id);
+
+        if(delay <= 0) {
+            return;
+        }
+
+        Thread thread = Thread.currentThread();
+        waiters.add(thread);
+
+        try {
+
+            while (!interruptible.isInterrupted() && delay > 0) {
+                LockSupport.parkNanos(this,Math.min(delay,MAX_SLEEP));
+
+                if(Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                delay = getDelay(id);
+            }
+        }finally {
+            waiters.remove(thread);
+        }
+    }
+
+    private long getDelay(long id) {
+
+        long delay = globalBucket.getDelay();
+        TokenBucket bucket = requestBuckets.get(id);
+
+        if(bucket != null) {
+            delay = Math.max(delay,bucket.getDelay());
+        }
+
+        return delay;
+    }
+
+    private void onLimitChanged() {
+
+        for (Thread thread : waiters) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
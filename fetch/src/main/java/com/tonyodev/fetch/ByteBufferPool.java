@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Tonyo Francis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tonyodev.fetch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide pool of direct buffers used by FetchRunnable to move
+ * bytes from the connection to the download file. Direct buffers are
+ * only allocated within MAX_POOL_SIZE and are reused after that.
+ *
+ * @author Tonyo Francis
+ */
+final class ByteBufferPool {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final long MAX_POOL_SIZE = 2 * 1024 * 1024;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicLong allocatedBytes = new AtomicLong(0);
+
+    private ByteBufferPool() {
+    }
+
+    /**
+     * Returns a pooled direct buffer. If the pool budget is spent,
+     * a heap buffer that will not be pooled is returned instead.
+     * */
+    static ByteBuffer acquire() {
+
+        ByteBuffer buffer = pool.poll();
+
+        if(buffer != null) {
+            return buffer;
+        }
+
+        if(allocatedBytes.addAndGet(BUFFER_SIZE) <= MAX_POOL_SIZE) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        allocatedBytes.addAndGet(-BUFFER_SIZE);
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    static void release(ByteBuffer buffer) {
+
+        if(buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    /**
+     * Fills the buffer from the channel until it is full or the channel
+     * is exhausted. The buffer is flipped and ready to be written on return.
+     *
+     * @return number of bytes read or -1 if the channel was already exhausted
+     * */
+    static int read(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+
+        buffer.clear();
+        int read = 0;
+
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer);
+
+            if(count == -1) {
+                break;
+            }
+
+            read += count;
+        }
+
+        buffer.flip();
+
+        if(read == 0 && !buffer.hasRemaining()) {
+            return -1;
+        }
+
+        return read;
+    }
+
+    static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -21,18 +21,33 @@ import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
 import com.tonyodev.fetch.exception.EnqueueException;
+import com.tonyodev.fetch.request.RequestQuery;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Database Helper used by Fetch and the FetchService
  * to store and manage download requests into the SQL database.
  *
+ * Writes are serialized on the helper's lock. When write-ahead logging is turned
+ * on with Fetch.enableWriteAheadLogging and the device runs API 11 or higher, the
+ * read methods do not take the lock. SQLiteDatabase runs those on its pool of
+ * read connections, so lookups from Fetch, the download threads and the
+ * IntegrityChecker do not wait behind a write transaction. Otherwise the reads
+ * take the lock as well, as they share the single connection with the writes.
+ *
  * @author Tonyo Francis
  */
 final class DatabaseHelper extends SQLiteOpenHelper {
 
-    private static final int VERSION = 2;
+    private static final int VERSION = 4;
     private static final String DB_NAME = "com_tonyodev_fetch.db";
     private static final String TABLE_NAME = "requests";
 
@@ -45,6 +60,9 @@ final class DatabaseHelper extends SQLiteOpenHelper {
     private static final String COLUMN_FILE_SIZE = "_file_size";
     private static final String COLUMN_ERROR = "_error";
     private static final String COLUMN_PRIORITY = "_priority";
+    private static final String COLUMN_DIGEST_ALGORITHM = "_digest_algorithm";
+    private static final String COLUMN_EXPECTED_DIGEST = "_expected_digest";
+    private static final String COLUMN_DIGEST_STATE = "_digest_state";
 
     /*Convenience INDEXES. DO NOT USE for anything else other than extracting
      *from a cursor that has all columns. Helps with
@@ -58,17 +76,87 @@ final class DatabaseHelper extends SQLiteOpenHelper {
     static final int INDEX_COLUMN_FILE_SIZE = 6;
     static final int INDEX_COLUMN_ERROR = 7;
     static final int INDEX_COLUMN_PRIORITY = 8;
+    static final int INDEX_COLUMN_DIGEST_ALGORITHM = 9;
+    static final int INDEX_COLUMN_EXPECTED_DIGEST = 10;
+    static final int INDEX_COLUMN_DIGEST_STATE = 11;
 
     static final int EMPTY_COLUMN_VALUE = -1;
 
+    /*Number of rows written per transaction by the batch insert.*/
+    static final int INSERT_BATCH_SIZE = 500;
+
     private static DatabaseHelper databaseHelper;
 
     private final SQLiteDatabase db;
-    private boolean loggingEnabled = true;
+    private final boolean writeAheadLogging;
+    private volatile boolean loggingEnabled = true;
+    private SQLiteStatement batchInsertStatement;
+    private final PendingQueue pendingQueue = new PendingQueue();
+
+    /*Completed requests written since the IntegrityChecker last took them. Guarded by itself.*/
+    private final Set<Long> dirtyIds = new HashSet<>();
+
+    /**
+     * Values of a single row for the batch insert.
+     * */
+    static final class Row {
+
+        final long id;
+        final String url;
+        final String filePath;
+        final int status;
+        final String headers;
+        final long downloadedBytes;
+        final long fileSize;
+        final int priority;
+        final int error;
+        final int digestAlgorithm;
+        final String expectedDigest;
+
+        Row(long id, String url, String filePath, int status, String headers,
+            long downloadedBytes, long fileSize, int priority, int error,
+            int digestAlgorithm, String expectedDigest) {
+
+            this.id = id;
+            this.url = url;
+            this.filePath = filePath;
+            this.status = status;
+            this.headers = headers;
+            this.downloadedBytes = downloadedBytes;
+            this.fileSize = fileSize;
+            this.priority = priority;
+            this.error = error;
+            this.digestAlgorithm = digestAlgorithm;
+            this.expectedDigest = expectedDigest;
+        }
+    }
 
     private DatabaseHelper(Context context) {
         super(context, DB_NAME,null,VERSION);
+
+        this.writeAheadLogging = FetchService.isWriteAheadLoggingEnabled(context)
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(writeAheadLogging);
+        }
+
         this.db = getWritableDatabase();
+        loadPendingQueue();
+    }
+
+    /**
+     * Below API 16 the helper cannot be configured before the database opens,
+     * so write-ahead logging is enabled here on API 11 to 15.
+     * */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        if(writeAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override
@@ -84,7 +172,24 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                 + COLUMN_FILE_SIZE + " INTEGER NOT NULL, "
                 + COLUMN_ERROR + " INTEGER NOT NULL, "
                 + COLUMN_PRIORITY + " INTEGER NOT NULL, "
+                + COLUMN_DIGEST_ALGORITHM + " INTEGER NOT NULL DEFAULT " + FetchConst.DIGEST_NONE + ", "
+                + COLUMN_EXPECTED_DIGEST + " TEXT, "
+                + COLUMN_DIGEST_STATE + " BLOB, "
                 + "unique( " + COLUMN_FILEPATH + " ) )");
+
+        createIndexes(db);
+    }
+
+    /**
+     * Indexes for the common lookups. The pending queue is read by status and
+     * priority, and RequestQuery filters on status and url prefixes.
+     * */
+    private void createIndexes(SQLiteDatabase db) {
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS index_status_priority ON "
+                + TABLE_NAME + " ( " + COLUMN_STATUS + ", " + COLUMN_PRIORITY + " )");
+        db.execSQL("CREATE INDEX IF NOT EXISTS index_url ON "
+                + TABLE_NAME + " ( " + COLUMN_URL + " )");
     }
 
     @Override
@@ -93,6 +198,15 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             case 1: {
                 db.execSQL("CREATE UNIQUE INDEX table_unique ON "
                         + TABLE_NAME + " ( " + COLUMN_FILEPATH + ")");
+            }
+            case 2: {
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_DIGEST_ALGORITHM
+                        + " INTEGER NOT NULL DEFAULT " + FetchConst.DIGEST_NONE);
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_EXPECTED_DIGEST + " TEXT");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_DIGEST_STATE + " BLOB");
+            }
+            case 3: {
+                createIndexes(db);
                 break;
             }
             default:{
@@ -117,13 +231,24 @@ final class DatabaseHelper extends SQLiteOpenHelper {
 
     synchronized boolean insert(long id, String url, String filePath, int status,
                                 String headers,long downloadedBytes,long fileSize,
-                                int priority, int error) {
+                                int priority, int error, int digestAlgorithm, String expectedDigest) {
 
         String statement = getInsertStatementOpen()
-                 + getRowInsertStatement(id,url,filePath,status,headers, downloadedBytes,fileSize,priority,error)
+                 + getRowInsertStatement(id,url,filePath,status,headers, downloadedBytes,fileSize,priority,error,
+                        digestAlgorithm,expectedDigest)
                  + getInsertStatementClose();
 
-        return insert(statement);
+        boolean inserted = insert(statement);
+
+        if(inserted && status == FetchConst.STATUS_QUEUED) {
+            pendingQueue.add(id,priority);
+        }
+
+        if(inserted && status == FetchConst.STATUS_DONE) {
+            markDirty(id);
+        }
+
+        return inserted;
     }
 
     String getInsertStatementOpen() {
@@ -132,12 +257,20 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                 + ", " + COLUMN_FILEPATH + ", " + COLUMN_STATUS
                 + ", " + COLUMN_HEADERS + ", " + COLUMN_DOWNLOADED_BYTES
                 + ", " + COLUMN_FILE_SIZE + ", " + COLUMN_ERROR
-                + ", " + COLUMN_PRIORITY + " ) VALUES ";
+                + ", " + COLUMN_PRIORITY + ", " + COLUMN_DIGEST_ALGORITHM
+                + ", " + COLUMN_EXPECTED_DIGEST + " ) VALUES ";
     }
 
     String getRowInsertStatement(long id, String url, String filePath, int status,
                                  String headers, long downloadedBytes, long fileSize,
-                                 int priority, int error) {
+                                 int priority, int error, int digestAlgorithm, String expectedDigest) {
+
+        String digest = "NULL";
+
+        if(expectedDigest != null) {
+            digest = DatabaseUtils.sqlEscapeString(expectedDigest);
+        }
+
         return "( "
                 + id
                 + ", " + DatabaseUtils.sqlEscapeString(url)
@@ -147,7 +280,9 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                 + ", " + downloadedBytes
                 + ", " + fileSize
                 + ", " + error
-                + ", " + priority +" )";
+                + ", " + priority
+                + ", " + digestAlgorithm
+                + ", " + digest + " )";
     }
 
     String getInsertStatementClose() {
@@ -191,6 +326,111 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         return inserted;
     }
 
+    /**
+     * Inserts rows with a compiled statement that is reused for every row and every
+     * call, so the SQL is parsed once and each row only binds its values. Rows are
+     * written in transactions of INSERT_BATCH_SIZE rows. A row whose id or file path
+     * already exists, or that is missing its url, file path or headers, is skipped
+     * without affecting the other rows.
+     *
+     * @return whether each row was inserted, in the order of rows.
+     * */
+    synchronized boolean[] insert(List<Row> rows) {
+
+        boolean[] inserted = new boolean[rows.size()];
+
+        if(batchInsertStatement == null) {
+            batchInsertStatement = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_NAME
+                    + " ( " + COLUMN_ID + ", " + COLUMN_URL
+                    + ", " + COLUMN_FILEPATH + ", " + COLUMN_STATUS
+                    + ", " + COLUMN_HEADERS + ", " + COLUMN_DOWNLOADED_BYTES
+                    + ", " + COLUMN_FILE_SIZE + ", " + COLUMN_ERROR
+                    + ", " + COLUMN_PRIORITY + ", " + COLUMN_DIGEST_ALGORITHM
+                    + ", " + COLUMN_EXPECTED_DIGEST + " ) VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? )");
+        }
+
+        for (int start = 0; start < rows.size(); start += INSERT_BATCH_SIZE) {
+
+            int end = Math.min(rows.size(), start + INSERT_BATCH_SIZE);
+
+            try {
+
+                db.beginTransaction();
+
+                for (int i = start; i < end; i++) {
+                    inserted[i] = insertRow(rows.get(i));
+                }
+
+                db.setTransactionSuccessful();
+            }finally {
+                try {
+                    db.endTransaction();
+                }catch (SQLiteException e) {
+
+                    if(loggingEnabled) {
+                        e.printStackTrace();
+                    }
+
+                    for (int i = start; i < end; i++) {
+                        inserted[i] = false;
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < inserted.length; i++) {
+
+            Row row = rows.get(i);
+
+            if(inserted[i] && row.status == FetchConst.STATUS_QUEUED) {
+                pendingQueue.add(row.id,row.priority);
+            }
+
+            if(inserted[i] && row.status == FetchConst.STATUS_DONE) {
+                markDirty(row.id);
+            }
+        }
+
+        return inserted;
+    }
+
+    private boolean insertRow(Row row) {
+
+        if(row == null || row.url == null || row.filePath == null || row.headers == null) {
+            return false;
+        }
+
+        SQLiteStatement statement = batchInsertStatement;
+        statement.clearBindings();
+        statement.bindLong(1,row.id);
+        statement.bindString(2,row.url);
+        statement.bindString(3,row.filePath);
+        statement.bindLong(4,row.status);
+        statement.bindString(5,row.headers);
+        statement.bindLong(6,row.downloadedBytes);
+        statement.bindLong(7,row.fileSize);
+        statement.bindLong(8,row.error);
+        statement.bindLong(9,row.priority);
+        statement.bindLong(10,row.digestAlgorithm);
+
+        if(row.expectedDigest == null) {
+            statement.bindNull(11);
+        } else {
+            statement.bindString(11,row.expectedDigest);
+        }
+
+        try {
+            return statement.executeInsert() != -1;
+        }catch (SQLiteException e) {
+
+            if(loggingEnabled) {
+                e.printStackTrace();
+            }
+
+            return false;
+        }
+    }
+
     synchronized boolean pause(long id) {
 
         boolean paused = false;
@@ -235,6 +475,10 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             }
         }
 
+        if(paused) {
+            pendingQueue.remove(id);
+        }
+
         return paused;
     }
 
@@ -280,6 +524,10 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             }
         }
 
+        if(resumed) {
+            syncPendingQueue(id);
+        }
+
         return resumed;
     }
 
@@ -311,6 +559,16 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             }
         }
 
+        if(status == FetchConst.STATUS_QUEUED) {
+            syncPendingQueue(id);
+        }else {
+            pendingQueue.remove(id);
+        }
+
+        if(updated && status == FetchConst.STATUS_DONE) {
+            markDirty(id);
+        }
+
         return updated;
     }
 
@@ -345,6 +603,42 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         return updated;
     }
 
+    /**
+     * Same as updateFileBytes but also stores the exported state of the
+     * download's StreamingDigest in the same transaction. A null state clears it.
+     * */
+    synchronized boolean updateFileBytes(long id, long downloadedBytes, long fileSize, byte[] digestState) {
+
+        boolean updated = false;
+
+        try {
+            db.beginTransaction();
+            db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_FILE_SIZE + " = "
+                    + fileSize + ", " + COLUMN_DOWNLOADED_BYTES + " = " + downloadedBytes
+                    + ", " + COLUMN_DIGEST_STATE + " = ? WHERE " + COLUMN_ID + " = " + id,
+                    new Object[] {digestState});
+
+            db.setTransactionSuccessful();
+        }catch (SQLiteException e){
+
+            if(loggingEnabled) {
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            db.endTransaction();
+            updated = true;
+        }catch (SQLiteException e) {
+
+            if(loggingEnabled) {
+                e.printStackTrace();
+            }
+        }
+
+        return updated;
+    }
+
     synchronized boolean delete(long id) {
 
         boolean removed = false;
@@ -372,6 +666,10 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             }
         }
 
+        if(removed) {
+            pendingQueue.remove(id);
+        }
+
         return removed;
     }
 
@@ -401,6 +699,10 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             }
         }
 
+        if(removed) {
+            pendingQueue.clear();
+        }
+
         return removed;
     }
 
@@ -432,6 +734,10 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             }
         }
 
+        if(updated) {
+            pendingQueue.setPriority(id,priority);
+        }
+
         return updated;
     }
 
@@ -477,6 +783,10 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             }
         }
 
+        if(updated) {
+            syncPendingQueue(id);
+        }
+
         return updated;
     }
 
@@ -507,6 +817,7 @@ final class DatabaseHelper extends SQLiteOpenHelper {
 
             if(cursor != null && cursor.getCount() > 0) {
                 updated = true;
+                markDirty(id);
             }
 
         }catch (SQLiteException e) {
@@ -523,10 +834,10 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         return updated;
     }
 
-    synchronized Cursor get(long id) {
+    Cursor get(long id) {
 
         try {
-            return db.rawQuery("SELECT * FROM " + TABLE_NAME
+            return query("SELECT * FROM " + TABLE_NAME
                     + " WHERE " + COLUMN_ID + " = " + id,null);
         }catch (SQLiteException e) {
 
@@ -537,10 +848,10 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    synchronized Cursor get() {
+    Cursor get() {
 
         try {
-            return db.rawQuery("SELECT * FROM " + TABLE_NAME,null);
+            return query("SELECT * FROM " + TABLE_NAME,null);
         }catch (SQLiteException e) {
 
             if(loggingEnabled) {
@@ -550,7 +861,7 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    synchronized Cursor get(long[] ids) {
+    Cursor get(long[] ids) {
 
         try {
 
@@ -569,7 +880,7 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             stringBuilder.append(')');
 
 
-            return db.rawQuery("SELECT * FROM " + TABLE_NAME + " WHERE " + COLUMN_ID
+            return query("SELECT * FROM " + TABLE_NAME + " WHERE " + COLUMN_ID
                     + " IN " + stringBuilder.toString(),null);
         }catch (SQLiteException e) {
 
@@ -580,10 +891,10 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    synchronized Cursor getByStatus(int status) {
+    Cursor getByStatus(int status) {
 
         try {
-            return db.rawQuery("SELECT * FROM " + TABLE_NAME
+            return query("SELECT * FROM " + TABLE_NAME
                     + " WHERE " + COLUMN_STATUS + " = " + status,null);
         }catch (SQLiteException e) {
 
@@ -594,10 +905,125 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    synchronized Cursor getByUrlAndFilePath(String url,String filePath) {
+    /**
+     * Runs a RequestQuery as a single statement. Values are bound as arguments
+     * and a url prefix is matched as a range, so it can use the url index.
+     * */
+    Cursor get(RequestQuery requestQuery) {
+
+        List<String> args = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("SELECT * FROM " + TABLE_NAME);
+        String separator = " WHERE ";
+
+        List<Integer> statuses = requestQuery.getStatuses();
+
+        if (!statuses.isEmpty()) {
+            sql.append(separator).append(COLUMN_STATUS).append(" IN(");
+
+            for (int i = 0; i < statuses.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+                args.add(String.valueOf(statuses.get(i)));
+            }
+
+            sql.append(")");
+            separator = " AND ";
+        }
+
+        String urlPrefix = requestQuery.getUrlPrefix();
+
+        if (urlPrefix != null && !urlPrefix.isEmpty()) {
+            sql.append(separator).append(COLUMN_URL).append(" >= ?");
+            args.add(urlPrefix);
+
+            String upperBound = getUpperBound(urlPrefix);
+
+            if (upperBound != null) {
+                sql.append(" AND ").append(COLUMN_URL).append(" < ?");
+                args.add(upperBound);
+            }
+
+            separator = " AND ";
+        }
+
+        if (requestQuery.getMinFileSize() != -1) {
+            sql.append(separator).append(COLUMN_FILE_SIZE).append(" >= ")
+                    .append(requestQuery.getMinFileSize());
+            separator = " AND ";
+        }
+
+        if (requestQuery.getMaxFileSize() != -1) {
+            sql.append(separator).append(COLUMN_FILE_SIZE).append(" <= ")
+                    .append(requestQuery.getMaxFileSize());
+        }
+
+        String direction = requestQuery.isDescending() ? " DESC" : " ASC";
+        String orderColumn = getOrderColumn(requestQuery.getOrderBy());
+
+        sql.append(" ORDER BY ").append(orderColumn).append(direction);
+
+        if (!orderColumn.equals(COLUMN_ID)) {
+            sql.append(", ").append(COLUMN_ID).append(direction);
+        }
+
+        if (requestQuery.getLimit() > 0) {
+            sql.append(" LIMIT ").append(requestQuery.getLimit());
+        }
+
+        try {
+            return query(sql.toString(),args.toArray(new String[args.size()]));
+        }catch (SQLiteException e) {
+
+            if(loggingEnabled) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    private static String getOrderColumn(int orderBy) {
+
+        switch (orderBy) {
+            case RequestQuery.ORDER_BY_URL:
+                return COLUMN_URL;
+            case RequestQuery.ORDER_BY_STATUS:
+                return COLUMN_STATUS;
+            case RequestQuery.ORDER_BY_PRIORITY:
+                return COLUMN_PRIORITY;
+            case RequestQuery.ORDER_BY_FILE_SIZE:
+                return COLUMN_FILE_SIZE;
+            case RequestQuery.ORDER_BY_DOWNLOADED_BYTES:
+                return COLUMN_DOWNLOADED_BYTES;
+            default:
+                return COLUMN_ID;
+        }
+    }
+
+    /**
+     * SQLite compares text as UTF-8 bytes, that is by code point, so the last code point
+     * is incremented as a whole, stepping over the surrogate range.
+     *
+     * @return the smallest string that is greater than every string starting with
+     * prefix, or null if there is none.
+     * */
+    static String getUpperBound(String prefix) {
+
+        for (int i = prefix.length(); i > 0;) {
+            int codePoint = prefix.codePointBefore(i);
+            i -= Character.charCount(codePoint);
+
+            if(codePoint != Character.MAX_CODE_POINT) {
+                int next = codePoint + 1 == Character.MIN_SURROGATE ? Character.MAX_SURROGATE + 1 : codePoint + 1;
+                return prefix.substring(0, i) + new String(Character.toChars(next));
+            }
+        }
+
+        return null;
+    }
+
+    Cursor getByUrlAndFilePath(String url,String filePath) {
 
         try {
-            return db.rawQuery("SELECT * FROM " + TABLE_NAME
+            return query("SELECT * FROM " + TABLE_NAME
                     + " WHERE " + COLUMN_URL + " = "
                     + DatabaseUtils.sqlEscapeString(url) + " AND " + COLUMN_FILEPATH
                     + " = " + DatabaseUtils.sqlEscapeString(filePath) + " LIMIT 1",null);
@@ -610,44 +1036,149 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    synchronized Cursor getNextPendingRequest() {
+    /**
+     * Takes up to count requests off the PendingQueue, highest priority first,
+     * and marks them as downloading.
+     *
+     * @return the taken requests, or null if none are queued.
+     * */
+    synchronized Cursor takePendingRequests(int count) {
 
-        Cursor cursor = db.rawQuery("SELECT * FROM "
-                + TABLE_NAME + " WHERE " + COLUMN_STATUS + " = "
-                + FetchConst.STATUS_QUEUED + " AND "
-                + COLUMN_PRIORITY + " = " + FetchConst.PRIORITY_HIGH
-                + " LIMIT 1" ,null);
+        long[] ids = pendingQueue.poll(count);
 
-        if(cursor != null && cursor.getCount() > 0) {
-            return cursor;
+        if(ids.length < 1) {
+            return null;
         }
 
-        if(cursor != null) {
-            cursor.close();
+        boolean updated = false;
+
+        try {
+            db.beginTransaction();
+            db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_STATUS + " = "
+                    + FetchConst.STATUS_DOWNLOADING + ", " + COLUMN_ERROR + " = "
+                    + EMPTY_COLUMN_VALUE + " WHERE " + COLUMN_ID + " IN " + toSqlList(ids));
+
+            db.setTransactionSuccessful();
+        }catch (SQLiteException e) {
+
+            if(loggingEnabled) {
+                e.printStackTrace();
+            }
         }
 
-        return db.rawQuery("SELECT * FROM "
-                + TABLE_NAME + " WHERE " + COLUMN_STATUS + " = "
-                + FetchConst.STATUS_QUEUED + " LIMIT 1" ,null);
+        try {
+            db.endTransaction();
+            updated = true;
+        }catch (SQLiteException e) {
+
+            if(loggingEnabled) {
+                e.printStackTrace();
+            }
+        }
+
+        if(!updated) {
+            loadPendingQueue();
+            return null;
+        }
+
+        return get(ids);
+    }
+
+    boolean hasPendingRequests() {
+        return !pendingQueue.isEmpty();
     }
 
-    synchronized boolean hasPendingRequests() {
+    boolean isPending(long id) {
+        return pendingQueue.contains(id);
+    }
+
+    /**
+     * Rebuilds the PendingQueue from the queued rows, in the order they were inserted.
+     * */
+    private void loadPendingQueue() {
+
+        pendingQueue.clear();
+        Cursor cursor = null;
 
-        Cursor cursor = db.rawQuery("SELECT " + COLUMN_ID + " FROM "
-                + TABLE_NAME + " WHERE " + COLUMN_STATUS + " = "
-                + FetchConst.STATUS_QUEUED + " LIMIT 1" ,null);
+        try {
+            cursor = db.rawQuery("SELECT " + COLUMN_ID + ", " + COLUMN_PRIORITY
+                    + " FROM " + TABLE_NAME + " WHERE " + COLUMN_STATUS + " = "
+                    + FetchConst.STATUS_QUEUED + " ORDER BY " + COLUMN_ID,null);
 
-        boolean hasPending = false;
+            while (cursor != null && cursor.moveToNext()) {
+                pendingQueue.add(cursor.getLong(0),cursor.getInt(1));
+            }
+        }catch (SQLiteException e) {
 
-        if(cursor != null && cursor.getCount() > 0) {
-            hasPending = true;
+            if(loggingEnabled) {
+                e.printStackTrace();
+            }
+        }finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
+    }
 
-        if(cursor != null) {
-            cursor.close();
+    /**
+     * Adds the request to the PendingQueue if it is queued in the database
+     * and removes it otherwise.
+     * */
+    private void syncPendingQueue(long id) {
+
+        Cursor cursor = null;
+
+        try {
+            cursor = db.rawQuery("SELECT " + COLUMN_PRIORITY + " FROM " + TABLE_NAME
+                    + " WHERE " + COLUMN_ID + " = " + id + " AND " + COLUMN_STATUS
+                    + " = " + FetchConst.STATUS_QUEUED,null);
+
+            if(cursor != null && cursor.moveToFirst()) {
+                pendingQueue.add(id,cursor.getInt(0));
+            }else {
+                pendingQueue.remove(id);
+            }
+        }catch (SQLiteException e) {
+
+            if(loggingEnabled) {
+                e.printStackTrace();
+            }
+        }finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
+    }
+
+    /**
+     * Runs a read query. Without write-ahead logging the reads share the single
+     * connection with the writes, so they take the helper's lock.
+     * */
+    private Cursor query(String sql, String[] args) {
+
+        if(writeAheadLogging) {
+            return db.rawQuery(sql,args);
+        }
+
+        synchronized (this) {
+            return db.rawQuery(sql,args);
+        }
+    }
+
+    private static String toSqlList(long[] ids) {
 
-        return hasPending;
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append('(');
+
+        for (long id : ids) {
+            stringBuilder.append(id)
+                    .append(',');
+        }
+
+        stringBuilder.deleteCharAt(stringBuilder.length()-1);
+        stringBuilder.append(')');
+
+        return stringBuilder.toString();
     }
 
     synchronized void verifyOK() {
@@ -676,45 +1207,93 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                 e.printStackTrace();
             }
         }
+
+        loadPendingQueue();
     }
 
-    synchronized void clean() {
+    /**
+     * Page of completed requests for the IntegrityChecker, with only the
+     * id and file path columns.
+     * */
+    Cursor getCompletedFiles(long afterId, int limit) {
 
-        Cursor cursor = db.rawQuery("SELECT " + COLUMN_ID + ", " + COLUMN_FILEPATH
-                + " FROM " + TABLE_NAME + " WHERE " + COLUMN_STATUS + " = "
-                + FetchConst.STATUS_DONE ,null);
+        try {
+            return query("SELECT " + COLUMN_ID + ", " + COLUMN_FILEPATH
+                    + " FROM " + TABLE_NAME + " WHERE " + COLUMN_STATUS + " = "
+                    + FetchConst.STATUS_DONE + " AND " + COLUMN_ID + " > " + afterId
+                    + " ORDER BY " + COLUMN_ID + " LIMIT " + limit,null);
+        }catch (SQLiteException e) {
 
-        if(cursor == null) {
-            return;
+            if(loggingEnabled) {
+                e.printStackTrace();
+            }
+            return null;
         }
+    }
 
-        if(cursor.getCount() < 1) {
-            cursor.close();
-            return;
-        }
+    /**
+     * Id and file path of the completed requests among ids, for the IntegrityChecker.
+     * */
+    Cursor getCompletedFiles(long[] ids) {
 
         try {
+            return query("SELECT " + COLUMN_ID + ", " + COLUMN_FILEPATH
+                    + " FROM " + TABLE_NAME + " WHERE " + COLUMN_STATUS + " = "
+                    + FetchConst.STATUS_DONE + " AND " + COLUMN_ID + " IN " + toSqlList(ids),null);
+        }catch (SQLiteException e) {
 
-            db.beginTransaction();
+            if(loggingEnabled) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
 
-            cursor.moveToFirst();
-            while (!cursor.isAfterLast()) {
+    /**
+     * Remembers a request that was completed or changed, so the IntegrityChecker
+     * looks at it on its next run instead of waiting for a full sweep.
+     * */
+    private void markDirty(long id) {
+        synchronized (dirtyIds) {
+            dirtyIds.add(id);
+        }
+    }
 
-                String destinationUri = cursor.getString(cursor.getColumnIndex(COLUMN_FILEPATH));
+    /**
+     * @return the requests marked since the last call. They are no longer marked.
+     * */
+    long[] takeDirtyIds() {
+        synchronized (dirtyIds) {
+            long[] ids = new long[dirtyIds.size()];
+            int i = 0;
 
-                if(destinationUri != null) {
+            for (Long id : dirtyIds) {
+                ids[i++] = id;
+            }
 
-                    if(!Utils.fileExist(destinationUri)) {
-                        long id = cursor.getLong(cursor.getColumnIndex(COLUMN_ID));
-                        db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_STATUS + " = "
-                                + FetchConst.STATUS_ERROR + ", " + COLUMN_ERROR + " = "
-                                + FetchConst.ERROR_FILE_NOT_FOUND + " WHERE "
-                                + COLUMN_ID + " = " + id);
-                    }
-                }
+            dirtyIds.clear();
+            return ids;
+        }
+    }
 
-                cursor.moveToNext();
-            }
+    /**
+     * Marks completed requests whose file is gone as failed with ERROR_FILE_NOT_FOUND.
+     * Requests that are no longer completed are left alone.
+     * */
+    synchronized void setFilesNotFound(long[] ids) {
+
+        if(ids.length < 1) {
+            return;
+        }
+
+        try {
+
+            db.beginTransaction();
+            db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_STATUS + " = "
+                    + FetchConst.STATUS_ERROR + ", " + COLUMN_ERROR + " = "
+                    + FetchConst.ERROR_FILE_NOT_FOUND + " WHERE "
+                    + COLUMN_ID + " IN " + toSqlList(ids) + " AND "
+                    + COLUMN_STATUS + " = " + FetchConst.STATUS_DONE);
 
             db.setTransactionSuccessful();
 
@@ -727,19 +1306,15 @@ final class DatabaseHelper extends SQLiteOpenHelper {
 
         try {
             db.endTransaction();
-
         }catch (SQLiteException e) {
 
             if(loggingEnabled) {
                 e.printStackTrace();
             }
-
-        } finally {
-            cursor.close();
         }
     }
 
-    synchronized void setLoggingEnabled(boolean enabled) {
+    void setLoggingEnabled(boolean enabled) {
         this.loggingEnabled = enabled;
     }
 }
\ No newline at end of file
@@ -43,6 +43,7 @@ final class ErrorUtils {
     static final int BAD_REQUEST = -116;
     static final int ENQUEUE_ERROR = -117;
     static final int DOWNLOAD_INTERRUPTED = -118;
+    static final int CHECKSUM_MISMATCH = -119;
 
     private ErrorUtils() {
     }
@@ -74,6 +75,9 @@ final class ErrorUtils {
         else if(message.contains("column _file_path is not unique")) {
             return REQUEST_ALREADY_EXIST;
         }
+        else if(message.equalsIgnoreCase("checksum mismatch")) {
+            return CHECKSUM_MISMATCH;
+        }
         else {
             return UNKNOWN;
         }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Tonyo Francis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tonyodev.fetch;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * EventBus carries status and progress updates from the FetchRunnables
+ * and the FetchService to every Fetch instance in the process. Updates
+ * are published into an EventRingBuffer and delivered on the main thread
+ * without allocating. Progress updates are only also broadcast as an
+ * Intent when FetchService.getEventUpdateFilter has been requested.
+ *
+ * @author Tonyo Francis
+ */
+final class EventBus {
+
+    static final int RING_BUFFER_CAPACITY = 256;
+
+    interface Subscriber {
+        void onUpdate(long id, int status, int progress, long downloadedBytes, long fileSize, int error);
+    }
+
+    private static EventBus eventBus;
+
+    private final EventRingBuffer ringBuffer;
+    private final Handler mainHandler;
+    private final AtomicBoolean scheduled;
+    private volatile Subscriber[] subscribers;
+
+    private EventBus() {
+        this.ringBuffer = new EventRingBuffer(RING_BUFFER_CAPACITY);
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.scheduled = new AtomicBoolean(false);
+        this.subscribers = new Subscriber[0];
+    }
+
+    static synchronized EventBus getInstance() {
+
+        if(eventBus == null) {
+            eventBus = new EventBus();
+        }
+
+        return eventBus;
+    }
+
+    synchronized void subscribe(@NonNull Subscriber subscriber) {
+
+        if(subscriber == null) {
+            throw new NullPointerException("Subscriber cannot be null");
+        }
+
+        Subscriber[] current = subscribers;
+        Subscriber[] updated = new Subscriber[current.length + 1];
+        System.arraycopy(current,0,updated,0,current.length);
+        updated[current.length] = subscriber;
+        subscribers = updated;
+    }
+
+    synchronized void unsubscribe(@NonNull Subscriber subscriber) {
+
+        Subscriber[] current = subscribers;
+
+        for (int i = 0; i < current.length; i++) {
+
+            if(current[i] == subscriber) {
+                Subscriber[] updated = new Subscriber[current.length - 1];
+                System.arraycopy(current,0,updated,0,i);
+                System.arraycopy(current,i + 1,updated,i,current.length - i - 1);
+                subscribers = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publishes an update. Progress updates are dropped when the buffer
+     * is full since the next update replaces them. Every other status
+     * waits for a free slot so it is never lost. The main thread is the
+     * consumer, so when it publishes into a full buffer it drains the
+     * buffer itself instead of waiting on itself.
+     * */
+    void publish(long id, int status, int progress, long downloadedBytes, long fileSize, int error) {
+
+        if(status == FetchConst.STATUS_DOWNLOADING) {
+
+            if(!ringBuffer.offer(status,id,error,progress,downloadedBytes,fileSize)) {
+                return;
+            }
+        }else if(!ringBuffer.offer(status,id,error,progress,downloadedBytes,fileSize)) {
+
+            if(Looper.myLooper() == Looper.getMainLooper()) {
+                ringBuffer.drain(consumer);
+            }
+
+            ringBuffer.put(status,id,error,progress,downloadedBytes,fileSize);
+        }
+
+        if(scheduled.compareAndSet(false,true)) {
+            mainHandler.post(drainRunnable);
+        }
+    }
+
+    private final EventRingBuffer.Consumer consumer = new EventRingBuffer.Consumer() {
+        @Override
+        public void onEvent(int status, long id, int error, int progress, long downloadedBytes, long fileSize) {
+
+            Subscriber[] current = subscribers;
+
+            for (int i = 0; i < current.length; i++) {
+                current[i].onUpdate(id,status,progress,downloadedBytes,fileSize,error);
+            }
+        }
+    };
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduled.set(false);
+            ringBuffer.drain(consumer);
+        }
+    };
+}
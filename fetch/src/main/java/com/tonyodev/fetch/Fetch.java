@@ -38,6 +38,7 @@ import com.tonyodev.fetch.exception.NotUsableException;
 import com.tonyodev.fetch.listener.FetchListener;
 import com.tonyodev.fetch.request.Request;
 import com.tonyodev.fetch.request.RequestInfo;
+import com.tonyodev.fetch.request.RequestQuery;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -73,8 +74,7 @@ public final class Fetch implements FetchConst {
         this.dbHelper = DatabaseHelper.getInstance(this.context);
         this.dbHelper.setLoggingEnabled(isLoggingEnabled());
 
-        broadcastManager.registerReceiver(updateReceiver,
-                FetchService.getEventUpdateFilter());
+        EventBus.getInstance().subscribe(eventSubscriber);
 
         this.context.registerReceiver(networkReceiver,
                 new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
@@ -201,7 +201,7 @@ public final class Fetch implements FetchConst {
 
             setReleased(true);
             listeners.clear();
-            broadcastManager.unregisterReceiver(updateReceiver);
+            EventBus.getInstance().unsubscribe(eventSubscriber);
             context.unregisterReceiver(networkReceiver);
         }
     }
@@ -299,7 +299,7 @@ public final class Fetch implements FetchConst {
             }
 
             boolean enqueued = dbHelper.insert(id,url,filePath, Fetch.STATUS_QUEUED,headers,downloadedBytes,
-                    fileSize,priority, DEFAULT_EMPTY_VALUE);
+                    fileSize,priority, DEFAULT_EMPTY_VALUE,request.getDigestAlgorithm(),request.getExpectedDigest());
 
             if(!enqueued) {
                 throw new EnqueueException("could not insert request",ERROR_ENQUEUE_ERROR);
@@ -344,73 +344,35 @@ public final class Fetch implements FetchConst {
             return new ArrayList<>(0);
         }
 
-        List<Long> ids = new ArrayList<>(requests.size());
-        List<String> statements = new ArrayList<>();
+        List<DatabaseHelper.Row> rows = new ArrayList<>(requests.size());
 
-        long id;
-        String url;
-        String filePath;
-        String headers;
-        int status;
-        int priority;
-        long downloadedBytes;
-        long fileSize;
-        int error;
-
-        try {
-
-            StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append(dbHelper.getInsertStatementOpen());
-
-            for (Request request : requests) {
-
-                id = DEFAULT_EMPTY_VALUE;
-
-                if(request != null) {
-
-                    id = Utils.generateRequestId();
-                    url = request.getUrl();
-                    filePath = request.getFilePath();
-                    headers = Utils.headerListToString(request.getHeaders(),isLoggingEnabled());
-                    status = Fetch.STATUS_QUEUED;
-                    priority = request.getPriority();
-                    downloadedBytes = 0L;
-                    fileSize = 0L;
-
-                    File file = Utils.getFile(filePath);
-
-                    if (file.exists()) {
-                        downloadedBytes = file.length();
-                    }
+        for (Request request : requests) {
 
-                    error = DEFAULT_EMPTY_VALUE;
-
-                    String statement = dbHelper.getRowInsertStatement(id,url,filePath,status,headers, downloadedBytes,fileSize,priority,error);
-                    stringBuilder.append(statement)
-                                 .append(", ");
-                }
-
-                ids.add(id);
+            if(request == null) {
+                rows.add(null);
+                continue;
             }
 
-            stringBuilder.delete(stringBuilder.length()-2,stringBuilder.length())
-                         .append(dbHelper.getInsertStatementClose());
-            boolean inserted = dbHelper.insert(stringBuilder.toString());
+            long downloadedBytes = 0L;
+            File file = Utils.getFile(request.getFilePath());
 
-            if(!inserted) {
-                throw new EnqueueException("could not insert requests",ERROR_ENQUEUE_ERROR);
+            if (file.exists()) {
+                downloadedBytes = file.length();
             }
 
-            startService(context);
-        }catch (EnqueueException e) {
+            rows.add(new DatabaseHelper.Row(Utils.generateRequestId(),request.getUrl(),request.getFilePath(),
+                    Fetch.STATUS_QUEUED,Utils.headerListToString(request.getHeaders(),isLoggingEnabled()),
+                    downloadedBytes,0L,request.getPriority(),DEFAULT_EMPTY_VALUE,
+                    request.getDigestAlgorithm(),request.getExpectedDigest()));
+        }
 
-            if(isLoggingEnabled()) {
-                e.printStackTrace();
-            }
+        List<Long> ids = insert(rows);
 
-            ids.clear();
-            for (int i = 0; i < requests.size(); i++) {
-                ids.add(-1L);
+        for (long id : ids) {
+
+            if(id != DEFAULT_EMPTY_VALUE) {
+                startService(context);
+                break;
             }
         }
 
@@ -675,6 +637,38 @@ public final class Fetch implements FetchConst {
         return Utils.cursorToRequestInfoList(cursor,true,isLoggingEnabled());
     }
 
+    /**
+     * Query the FetchService database for the download requests that match a RequestQuery.
+     * Filtering, sorting and the limit are applied by the database, so only the matching
+     * requests are read.
+     *
+     * @param requestQuery the query to run. This parameter cannot be null.
+     *
+     * @return a List of RequestInfo object that contains the status and progress of a request,
+     *         in the order given by the query. If no requests are found, an empty list will be returned.
+     *
+     * @throws NullPointerException if the passed in requestQuery is null.
+     * @throws InvalidStatusException if the query contains an invalid status.
+     * @throws NotUsableException if the release method has been called on Fetch.
+     * */
+    @NonNull
+    public synchronized List<RequestInfo> get(@NonNull RequestQuery requestQuery) {
+
+        Utils.throwIfNotUsable(this);
+
+        if(requestQuery == null) {
+            throw new NullPointerException("RequestQuery cannot be null");
+        }
+
+        for (int status : requestQuery.getStatuses()) {
+            Utils.throwIfInvalidStatus(status);
+        }
+
+        Cursor cursor = dbHelper.get(requestQuery);
+
+        return Utils.cursorToRequestInfoList(cursor,true,isLoggingEnabled());
+    }
+
     /**
      * Query the FetchService database for a download request.
      *
@@ -797,7 +791,7 @@ public final class Fetch implements FetchConst {
             long fileSize = file.length();
 
             boolean inserted = dbHelper.insert(id, url, filePath, Fetch.STATUS_DONE, headers,
-                    fileSize,fileSize, Fetch.PRIORITY_NORMAL, DEFAULT_EMPTY_VALUE);
+                    fileSize,fileSize, Fetch.PRIORITY_NORMAL, DEFAULT_EMPTY_VALUE,DIGEST_NONE,null);
 
             if(!inserted) {
                 throw new EnqueueException("could not insert request:" + filePath,ERROR_ENQUEUE_ERROR);
@@ -841,70 +835,41 @@ public final class Fetch implements FetchConst {
             return new ArrayList<>(0);
         }
 
-        List<Long> ids = new ArrayList<>(filePaths.size());
-        List<String> statements = new ArrayList<>();
-
-        long id;
-        String url;
-        String filePath;
-        String headers;
-        int status;
-        int priority;
-        long downloadedBytes;
-        long fileSize;
-        int error;
-
-        try {
-
-            StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append(dbHelper.getInsertStatementOpen());
-            for (String path : filePaths) {
+        List<DatabaseHelper.Row> rows = new ArrayList<>(filePaths.size());
 
-                id = DEFAULT_EMPTY_VALUE;
+        for (String path : filePaths) {
 
-                if(path != null) {
-
-                    File file = Utils.getFile(path);
-
-                    if (!file.exists()) {
-                        break;
-                    }
+            if(path == null || !Utils.getFile(path).exists()) {
+                rows.add(null);
+                continue;
+            }
 
-                    id = Utils.generateRequestId();
-                    url = Uri.fromFile(file).toString();
-                    filePath = path;
-                    headers = Utils.headerListToString(null,isLoggingEnabled());
-                    status = Fetch.STATUS_DONE;
-                    priority = Fetch.PRIORITY_NORMAL;
-                    downloadedBytes = file.length();
-                    fileSize = downloadedBytes;
-                    error = DEFAULT_EMPTY_VALUE;
+            File file = Utils.getFile(path);
 
-                    String statement = dbHelper.getRowInsertStatement(id,url,filePath,status,headers, downloadedBytes,fileSize,priority,error);
-                    stringBuilder.append(statement)
-                            .append(",");
-                }
+            rows.add(new DatabaseHelper.Row(Utils.generateRequestId(),Uri.fromFile(file).toString(),path,
+                    Fetch.STATUS_DONE,Utils.headerListToString(null,isLoggingEnabled()),
+                    file.length(),file.length(),Fetch.PRIORITY_NORMAL,DEFAULT_EMPTY_VALUE,DIGEST_NONE,null));
+        }
 
-                ids.add(id);
-            }
+        List<Long> ids = insert(rows);
 
-            stringBuilder.delete(stringBuilder.length()-2,stringBuilder.length())
-                         .append(dbHelper.getInsertStatementClose());
-            boolean inserted = dbHelper.insert(stringBuilder.toString());
+        return ids;
+    }
 
-            if(!inserted) {
-                throw new EnqueueException("could not insert requests",ERROR_ENQUEUE_ERROR);
-            }
+    /**
+     * Batch inserts rows. Null rows and rows that could not be inserted get an id of -1.
+     * */
+    private List<Long> insert(List<DatabaseHelper.Row> rows) {
 
-        }catch (EnqueueException e) {
+        boolean[] inserted = dbHelper.insert(rows);
+        List<Long> ids = new ArrayList<>(rows.size());
 
-            if(isLoggingEnabled()) {
-                e.printStackTrace();
-            }
+        for (int i = 0; i < rows.size(); i++) {
 
-            ids.clear();
-            for (int i = 0; i < filePaths.size(); i++) {
-                ids.add(-1L);
+            if(inserted[i]) {
+                ids.add(rows.get(i).id);
+            }else {
+                ids.add((long) DEFAULT_EMPTY_VALUE);
             }
         }
 
@@ -990,31 +955,12 @@ public final class Fetch implements FetchConst {
         return !isReleased();
     }
 
-    private final BroadcastReceiver updateReceiver = new BroadcastReceiver() {
-
-        private long id;
-        private int status;
-        private int progress;
-        private long downloadedBytes;
-        private long fileSize;
-        private int error;
-
+    private final EventBus.Subscriber eventSubscriber = new EventBus.Subscriber() {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onUpdate(long id, int status, int progress, long downloadedBytes, long fileSize, int error) {
 
-            if(intent == null) {
-                return;
-            }
-
-            id = intent.getLongExtra(FetchService.EXTRA_ID, DEFAULT_EMPTY_VALUE);
-            status = intent.getIntExtra(FetchService.EXTRA_STATUS,DEFAULT_EMPTY_VALUE);
-            progress = intent.getIntExtra(FetchService.EXTRA_PROGRESS,DEFAULT_EMPTY_VALUE);
-            downloadedBytes = intent.getLongExtra(FetchService.EXTRA_DOWNLOADED_BYTES,DEFAULT_EMPTY_VALUE);
-            fileSize = intent.getLongExtra(FetchService.EXTRA_FILE_SIZE,DEFAULT_EMPTY_VALUE);
-            error = intent.getIntExtra(FetchService.EXTRA_ERROR,DEFAULT_EMPTY_VALUE);
-
-            for (FetchListener listener : listeners) {
-                listener.onUpdate(id,status,progress,downloadedBytes,fileSize,error);
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).onUpdate(id,status,progress,downloadedBytes,fileSize,error);
             }
         }
     };
@@ -1080,6 +1026,72 @@ public final class Fetch implements FetchConst {
         new Settings(context).setOnUpdateInterval(intervalMs).apply();
     }
 
+    /**
+     * Sets the maximum download speed shared by all downloads.
+     *
+     * @param bytesPerSecond bandwidth limit in bytes per second. 0 means unlimited.
+     *
+     * @throws NotUsableException if the release method has been called on Fetch.
+     * */
+    public void setBandwidthLimit(long bytesPerSecond) {
+
+        Utils.throwIfNotUsable(this);
+        new Settings(context).setBandwidthLimit(bytesPerSecond).apply();
+    }
+
+    /**
+     * Sets how often the FetchService checks that the files of completed downloads
+     * still exist. Downloads whose file is gone fail with ERROR_FILE_NOT_FOUND.
+     * Each check runs in the background and covers part of the completed downloads,
+     * continuing where the previous check stopped.
+     *
+     * @param intervalMs minimum milliseconds between two checks.
+     *
+     * @throws NotUsableException if the release method has been called on Fetch.
+     * */
+    public void setIntegrityCheckInterval(long intervalMs) {
+
+        Utils.throwIfNotUsable(this);
+        new Settings(context).setIntegrityCheckInterval(intervalMs).apply();
+    }
+
+    /**
+     * Enables or Disables write-ahead logging for the Fetch database, so reads
+     * do not wait behind writes. Requires API 11 and is ignored on older devices.
+     * Write-ahead logging is OFF by default. The setting takes effect the next
+     * time the database is opened, which is the next time the app process starts.
+     *
+     * @param enabled enable or disable write-ahead logging
+     *
+     * @throws NotUsableException if the release method has been called on Fetch.
+     * */
+    public void enableWriteAheadLogging(boolean enabled) {
+
+        Utils.throwIfNotUsable(this);
+        new Settings(context).enableWriteAheadLogging(enabled).apply();
+    }
+
+    /**
+     * Sets the maximum download speed of a single request. The global
+     * limit still applies.
+     *
+     * @param id request id
+     * @param bytesPerSecond bandwidth limit in bytes per second. 0 means unlimited.
+     *
+     * @throws NotUsableException if the release method has been called on Fetch.
+     * */
+    public void setBandwidthLimit(long id,long bytesPerSecond) {
+
+        Utils.throwIfNotUsable(this);
+
+        Bundle extras = new Bundle();
+        extras.putInt(FetchService.ACTION_TYPE, FetchService.ACTION_BANDWIDTH_LIMIT);
+        extras.putLong(FetchService.EXTRA_ID,id);
+        extras.putLong(FetchService.EXTRA_BANDWIDTH_LIMIT,bytesPerSecond);
+
+        FetchService.sendToService(context,extras);
+    }
+
     /**
      * Updates the url for an existing request
      *
@@ -1202,6 +1214,59 @@ public final class Fetch implements FetchConst {
             return this;
         }
 
+        /**
+         * Sets the maximum download speed shared by all downloads.
+         *
+         * @param bytesPerSecond bandwidth limit in bytes per second. 0 means unlimited.
+         *
+         * @return the settings instance
+         * */
+        public Settings setBandwidthLimit(long bytesPerSecond) {
+
+            Bundle extras = new Bundle();
+            extras.putInt(FetchService.ACTION_TYPE,FetchService.ACTION_BANDWIDTH_LIMIT);
+            extras.putLong(FetchService.EXTRA_BANDWIDTH_LIMIT,bytesPerSecond);
+            settings.add(extras);
+
+            return this;
+        }
+
+        /**
+         * Sets how often the FetchService checks that the files of completed downloads
+         * still exist.
+         *
+         * @param intervalMs minimum milliseconds between two checks.
+         *
+         * @return the settings instance
+         * */
+        public Settings setIntegrityCheckInterval(long intervalMs) {
+
+            Bundle extras = new Bundle();
+            extras.putInt(FetchService.ACTION_TYPE,FetchService.ACTION_INTEGRITY_CHECK_INTERVAL);
+            extras.putLong(FetchService.EXTRA_INTEGRITY_CHECK_INTERVAL,intervalMs);
+            settings.add(extras);
+
+            return this;
+        }
+
+        /**
+         * Enables or Disables write-ahead logging for the Fetch database.
+         * It is OFF by default and takes effect the next time the database is opened.
+         *
+         * @param enabled enable or disable write-ahead logging
+         *
+         * @return the settings instance
+         * */
+        public Settings enableWriteAheadLogging(boolean enabled) {
+
+            Bundle extras = new Bundle();
+            extras.putInt(FetchService.ACTION_TYPE,FetchService.ACTION_WRITE_AHEAD_LOGGING);
+            extras.putBoolean(FetchService.EXTRA_WRITE_AHEAD_LOGGING,enabled);
+            settings.add(extras);
+
+            return this;
+        }
+
         /**
          * Apply the new settings to Fetch and the FetchService
          * */
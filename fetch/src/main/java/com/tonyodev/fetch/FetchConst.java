@@ -83,6 +83,31 @@ interface FetchConst {
      * */
     int PRIORITY_NORMAL = 600;
 
+    /**
+     * Digest type used when a download request is not verified.
+     * */
+    int DIGEST_NONE = 0;
+
+    /**
+     * Digest type used to verify a download request with an MD5 checksum.
+     * */
+    int DIGEST_MD5 = 1;
+
+    /**
+     * Digest type used to verify a download request with a SHA-1 checksum.
+     * */
+    int DIGEST_SHA1 = 2;
+
+    /**
+     * Digest type used to verify a download request with a SHA-256 checksum.
+     * */
+    int DIGEST_SHA256 = 3;
+
+    /**
+     * Digest type used to verify a download request with a CRC-32C checksum.
+     * */
+    int DIGEST_CRC32C = 4;
+
     /**
      * Error ID used when a download request fails for an unknown reason.
      * */
@@ -162,6 +187,12 @@ interface FetchConst {
      * */
     int ERROR_ENQUEUE_ERROR = ErrorUtils.ENQUEUE_ERROR;
 
+    /**
+     * Error ID used when a download request fails because the downloaded file
+     * does not match the expected checksum.
+     * */
+    int ERROR_CHECKSUM_MISMATCH = ErrorUtils.CHECKSUM_MISMATCH;
+
     /**
      * Default empty value of a Field.
      * */
@@ -177,6 +208,16 @@ interface FetchConst {
      * */
     long DEFAULT_ON_UPDATE_INTERVAL = 2000;
 
+    /**
+     * Default bandwidth limit in bytes per second. 0 means unlimited.
+     * */
+    long DEFAULT_BANDWIDTH_LIMIT = 0;
+
+    /**
+     * Default minimum ms between two checks for deleted files of completed downloads.
+     * */
+    long DEFAULT_INTEGRITY_CHECK_INTERVAL = 5 * 60 * 1000;
+
     /**
      * Max concurrent downloads limit.
      * @deprecated Use your best judgement
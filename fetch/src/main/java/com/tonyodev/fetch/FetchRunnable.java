@@ -18,6 +18,7 @@ package com.tonyodev.fetch;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.database.Cursor;
 import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.v4.content.LocalBroadcastManager;
@@ -25,11 +26,13 @@ import android.support.v4.content.LocalBroadcastManager;
 import com.tonyodev.fetch.exception.DownloadInterruptedException;
 import com.tonyodev.fetch.request.Header;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -39,7 +42,7 @@ import java.util.List;
  *
  * @author Tonyo Francis
  */
-final class FetchRunnable implements Runnable {
+final class FetchRunnable implements Runnable, BandwidthLimiter.Interruptible {
 
     private static final String ACTION_DONE = "com.tonyodev.fetch.action_done";
     private static final String EXTRA_ID = "com.tonyodev.fetch.extra_id";
@@ -58,8 +61,15 @@ final class FetchRunnable implements Runnable {
     private volatile boolean interrupted = false;
 
     private HttpURLConnection httpURLConnection;
-    private BufferedInputStream input;
+    private ReadableByteChannel input;
     private RandomAccessFile output;
+    private FileChannel channel;
+    private TransferPipeline pipeline;
+    private StreamingDigest digest;
+
+    private int digestAlgorithm = FetchConst.DIGEST_NONE;
+    private String expectedDigest;
+    private byte[] digestState;
 
     private int progress;
     private long downloadedBytes;
@@ -115,6 +125,7 @@ final class FetchRunnable implements Runnable {
             downloadedBytes = Utils.getFileSize(filePath);
             progress = Utils.getProgress(downloadedBytes,fileSize);
             databaseHelper.updateFileBytes(id,downloadedBytes,fileSize);
+            loadDigest();
 
             httpURLConnection.setRequestProperty("Range", "bytes=" + downloadedBytes + "-");
 
@@ -131,6 +142,10 @@ final class FetchRunnable implements Runnable {
                     throw new DownloadInterruptedException("DIE",ErrorUtils.DOWNLOAD_INTERRUPTED);
                 }
 
+                if(responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                    downloadedBytes = 0;
+                }
+
                 if(fileSize < 1) {
                     setContentLength();
                     databaseHelper.updateFileBytes(id,downloadedBytes,fileSize);
@@ -138,16 +153,22 @@ final class FetchRunnable implements Runnable {
                 }
 
                 output = new RandomAccessFile(filePath,"rw");
+                channel = output.getChannel();
                 if(responseCode == HttpURLConnection.HTTP_PARTIAL) {
-                    output.seek(downloadedBytes);
+                    channel.position(downloadedBytes);
                 }else {
-                    output.seek(0);
+                    output.setLength(0);
+                    channel.position(0);
                 }
 
-                input = new BufferedInputStream(httpURLConnection.getInputStream());
+                if(digestAlgorithm != FetchConst.DIGEST_NONE) {
+                    digest = Utils.createDigest(digestAlgorithm,digestState,filePath,downloadedBytes);
+                }
+
+                input = Channels.newChannel(httpURLConnection.getInputStream());
                 writeToFileAndPost();
 
-                databaseHelper.updateFileBytes(id,downloadedBytes,fileSize);
+                saveProgress();
 
                 if (isInterrupted()) {
                     throw new DownloadInterruptedException("DIE",ErrorUtils.DOWNLOAD_INTERRUPTED);
@@ -162,13 +183,18 @@ final class FetchRunnable implements Runnable {
                         progress = Utils.getProgress(downloadedBytes,fileSize);
                     }
 
+                    if(digestAlgorithm != FetchConst.DIGEST_NONE) {
+                        verifyDigest();
+                    }
+
                     boolean updated = databaseHelper.updateStatus(id,FetchConst.STATUS_DONE,
                             FetchConst.DEFAULT_EMPTY_VALUE);
 
                     if(updated){
 
                         Utils.sendEventUpdate(broadcastManager,id,FetchConst.STATUS_DONE,
-                                progress,downloadedBytes,fileSize,FetchConst.DEFAULT_EMPTY_VALUE);
+                                progress,downloadedBytes,fileSize,FetchConst.DEFAULT_EMPTY_VALUE,
+                                pipeline.getNetworkStallTime(),pipeline.getStorageStallTime());
                     }
                 }
 
@@ -247,33 +273,117 @@ final class FetchRunnable implements Runnable {
         }
     }
 
-    private void writeToFileAndPost() throws IOException {
+    private void writeToFileAndPost() throws Exception {
+
+        final long startBytes = downloadedBytes;
+        pipeline = new TransferPipeline(input,channel,digest);
+
+        pipeline.transfer(new TransferPipeline.Callback() {
+
+            private long startTime = System.nanoTime();
+
+            @Override
+            public boolean isInterrupted() {
+                return FetchRunnable.this.isInterrupted();
+            }
 
-        byte[] buffer = new byte[1024];
-        int read;
-        long startTime;
-        long stopTime;
+            @Override
+            public void onRead(int bytes) throws InterruptedException {
+                BandwidthLimiter.getInstance().acquire(id,bytes,FetchRunnable.this);
+            }
 
-        startTime = System.nanoTime();
+            @Override
+            public void onProgress(long bytesWritten) {
 
-        while((read = input.read(buffer,0,1024)) != -1 && !isInterrupted()) {
-            output.write(buffer,0,read);
-            downloadedBytes += read;
+                downloadedBytes = startBytes + bytesWritten;
+                long stopTime = System.nanoTime();
 
-            stopTime = System.nanoTime();
+                if (Utils.hasIntervalElapsed(startTime,stopTime,onUpdateInterval) && !isInterrupted()) {
 
-            if (Utils.hasIntervalElapsed(startTime,stopTime,onUpdateInterval) && !isInterrupted()) {
+                    progress = Utils.getProgress(downloadedBytes,fileSize);
 
-                progress = Utils.getProgress(downloadedBytes,fileSize);
+                    Utils.sendEventUpdate(broadcastManager,id, FetchConst.STATUS_DOWNLOADING,
+                            progress,downloadedBytes,fileSize,FetchConst.DEFAULT_EMPTY_VALUE,
+                            pipeline.getNetworkStallTime(),pipeline.getStorageStallTime());
 
-                Utils.sendEventUpdate(broadcastManager,id, FetchConst.STATUS_DOWNLOADING,
-                        progress,downloadedBytes,fileSize,FetchConst.DEFAULT_EMPTY_VALUE);
+                    saveProgress();
 
-                databaseHelper.updateFileBytes(id,downloadedBytes,fileSize);
+                    startTime = System.nanoTime();
+                }
+            }
+        });
+    }
 
-                startTime = System.nanoTime();
+    private void loadDigest() {
+
+        Cursor cursor = databaseHelper.get(id);
+
+        try {
+            if(cursor != null && cursor.moveToFirst()) {
+                digestAlgorithm = cursor.getInt(DatabaseHelper.INDEX_COLUMN_DIGEST_ALGORITHM);
+                expectedDigest = cursor.getString(DatabaseHelper.INDEX_COLUMN_EXPECTED_DIGEST);
+                digestState = cursor.getBlob(DatabaseHelper.INDEX_COLUMN_DIGEST_STATE);
+            }
+        }finally {
+            if(cursor != null) {
+                cursor.close();
             }
         }
+
+        if(expectedDigest == null) {
+            digestAlgorithm = FetchConst.DIGEST_NONE;
+        }
+    }
+
+    /**
+     * The TransferPipeline's writer updates the digest while this thread reports
+     * progress. The state and the length it covers are read together under the
+     * digest's monitor, and that length is stored as the downloaded bytes, so a
+     * resumed download finds them matching.
+     * */
+    private void saveProgress() {
+
+        if(digest != null) {
+
+            byte[] digestState;
+            long digestLength;
+
+            synchronized (digest) {
+                digestState = digest.exportState();
+                digestLength = digest.getLength();
+            }
+
+            databaseHelper.updateFileBytes(id,digestLength,fileSize,digestState);
+        }else {
+            databaseHelper.updateFileBytes(id,downloadedBytes,fileSize);
+        }
+    }
+
+    /**
+     * Compares the finished checksum with the expected one. A corrupt
+     * file is deleted so retrying the request downloads it again from
+     * the start instead of resuming.
+     * */
+    private void verifyDigest() throws IOException {
+
+        if(digest == null) {
+            digest = StreamingDigest.newInstance(digestAlgorithm);
+        }
+
+        Utils.updateDigest(digest,filePath,downloadedBytes);
+        String actualDigest = digest.digest();
+        digest = null;
+
+        if(actualDigest.equals(expectedDigest)) {
+            return;
+        }
+
+        Utils.deleteFile(filePath);
+        downloadedBytes = 0;
+        progress = 0;
+        databaseHelper.updateFileBytes(id,downloadedBytes,fileSize,null);
+
+        throw new IOException("checksum mismatch");
     }
 
     private boolean canRetry(int error) {
@@ -328,7 +438,8 @@ final class FetchRunnable implements Runnable {
         broadcastManager.sendBroadcast(intent);
     }
 
-    private boolean isInterrupted() {
+    @Override
+    public boolean isInterrupted() {
         return interrupted;
     }
 
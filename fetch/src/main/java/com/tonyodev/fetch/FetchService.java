@@ -44,8 +44,9 @@ import java.util.concurrent.Executors;
  * ensures that all downloads are downloaded successfully
  * and reports failed downloads.
  *
- * Status and progress updates for each download request
- * is broadcast. The FetchService can also be queried for request information.
+ * Status and progress updates for each download request are delivered
+ * to Fetch instances through the EventBus. Status changes are also
+ * broadcast. The FetchService can also be queried for request information.
  *
  * @author Tonyo Francis
  */
@@ -76,6 +77,11 @@ public final class FetchService extends Service implements FetchConst {
     public static final String EXTRA_LOGGING_ID = "com.tonyodev.fetch.extra_logging_id";
     public static final String EXTRA_CONCURRENT_DOWNLOADS_LIMIT = "com.tonyodev.fetch.extra_concurrent_download_limit";
     public static final String EXTRA_ON_UPDATE_INTERVAL = "com.tonyodev.fetch.extra_on_update_interval";
+    public static final String EXTRA_NETWORK_STALL_TIME = "com.tonyodev.fetch.extra_network_stall_time";
+    public static final String EXTRA_STORAGE_STALL_TIME = "com.tonyodev.fetch.extra_storage_stall_time";
+    public static final String EXTRA_BANDWIDTH_LIMIT = "com.tonyodev.fetch.extra_bandwidth_limit";
+    public static final String EXTRA_INTEGRITY_CHECK_INTERVAL = "com.tonyodev.fetch.extra_integrity_check_interval";
+    public static final String EXTRA_WRITE_AHEAD_LOGGING = "com.tonyodev.fetch.extra_write_ahead_logging";
 
     public static final String ACTION_TYPE = "com.tonyodev.fetch.action_type";
 
@@ -95,6 +101,9 @@ public final class FetchService extends Service implements FetchConst {
     public static final int ACTION_ON_UPDATE_INTERVAL = 323;
     public static final int ACTION_REMOVE_REQUEST = 324;
     public static final int ACTION_REMOVE_REQUEST_ALL = 325;
+    public static final int ACTION_BANDWIDTH_LIMIT = 326;
+    public static final int ACTION_INTEGRITY_CHECK_INTERVAL = 327;
+    public static final int ACTION_WRITE_AHEAD_LOGGING = 328;
 
 
     public static final int QUERY_SINGLE = 480;
@@ -103,8 +112,11 @@ public final class FetchService extends Service implements FetchConst {
 
     private static final String SHARED_PREFERENCES = "com.tonyodev.fetch.shared_preferences";
 
+    private static volatile boolean progressBroadcastRequested = false;
+
     private Context context;
     private DatabaseHelper databaseHelper;
+    private IntegrityChecker integrityChecker;
     private LocalBroadcastManager broadcastManager;
     private SharedPreferences sharedPreferences;
 
@@ -154,11 +166,22 @@ public final class FetchService extends Service implements FetchConst {
         return new IntentFilter(EVENT_ACTION_ENQUEUE_FAILED);
     }
 
+    /**
+     * Filter for update broadcasts. Status changes are always broadcast. Progress
+     * updates of downloading requests are broadcast once this filter has been
+     * requested in the process, so apps that only use a FetchListener do not
+     * create an Intent for each progress update.
+     * */
     @NonNull
     public static IntentFilter getEventUpdateFilter() {
+        progressBroadcastRequested = true;
         return new IntentFilter(EVENT_ACTION_UPDATE);
     }
 
+    static boolean isProgressBroadcastRequested() {
+        return progressBroadcastRequested;
+    }
+
     @NonNull
     public static IntentFilter getEventQueryFilter() {
         return new IntentFilter(EVENT_ACTION_QUERY);
@@ -178,17 +201,21 @@ public final class FetchService extends Service implements FetchConst {
         preferredNetwork = getAllowedNetwork();
         loggingEnabled = isLoggingEnabled();
         onUpdateInterval = getOnUpdateInterval();
+        BandwidthLimiter.getInstance().setGlobalLimit(getBandwidthLimit());
         databaseHelper.setLoggingEnabled(loggingEnabled);
+        integrityChecker = new IntegrityChecker(databaseHelper,getIntegrityCheckInterval());
+        integrityChecker.setLoggingEnabled(loggingEnabled);
 
         if(!executor.isShutdown()) {
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    databaseHelper.clean();
                     databaseHelper.verifyOK();
                 }
             });
         }
+
+        integrityChecker.checkIfDue();
     }
 
     @Nullable
@@ -219,6 +246,7 @@ public final class FetchService extends Service implements FetchConst {
             executor.shutdown();
         }
 
+        integrityChecker.shutdown();
         interruptActiveDownloads();
 
         for (BroadcastReceiver registeredReceiver : registeredReceivers) {
@@ -234,14 +262,14 @@ public final class FetchService extends Service implements FetchConst {
             return;
         }
 
+        integrityChecker.checkIfDue();
+
         if(!executor.isShutdown()) {
 
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
 
-                    databaseHelper.clean();
-                    
                     final long id = intent.getLongExtra(EXTRA_ID, DEFAULT_EMPTY_VALUE);
 
                     switch (intent.getIntExtra(ACTION_TYPE, DEFAULT_EMPTY_VALUE)) {
@@ -324,6 +352,21 @@ public final class FetchService extends Service implements FetchConst {
                             removeRequestAll();
                             break;
                         }
+                        case ACTION_BANDWIDTH_LIMIT: {
+                            long limit = intent.getLongExtra(EXTRA_BANDWIDTH_LIMIT, DEFAULT_BANDWIDTH_LIMIT);
+                            setBandwidthLimit(id,limit);
+                            break;
+                        }
+                        case ACTION_INTEGRITY_CHECK_INTERVAL: {
+                            long interval = intent.getLongExtra(EXTRA_INTEGRITY_CHECK_INTERVAL, DEFAULT_INTEGRITY_CHECK_INTERVAL);
+                            setIntegrityCheckInterval(interval);
+                            break;
+                        }
+                        case ACTION_WRITE_AHEAD_LOGGING: {
+                            boolean enabled = intent.getBooleanExtra(EXTRA_WRITE_AHEAD_LOGGING,false);
+                            setWriteAheadLoggingEnabled(enabled);
+                            break;
+                        }
                         default: {
                             startDownload();
                             break;
@@ -356,17 +399,15 @@ public final class FetchService extends Service implements FetchConst {
 
             try {
 
-                Cursor cursor = databaseHelper.getNextPendingRequest();
-
-                if(cursor != null && !cursor.isClosed() && cursor.getCount() > 0) {
+                Cursor cursor = databaseHelper.takePendingRequests(downloadsLimit - activeDownloads.size());
+                List<RequestInfo> requestInfoList = Utils.cursorToRequestInfoList(cursor,true,loggingEnabled);
 
-                    RequestInfo requestInfo = Utils.cursorToRequestInfo(cursor,true,loggingEnabled);
+                for (RequestInfo requestInfo : requestInfoList) {
 
                     FetchRunnable fetchRunnable = new FetchRunnable(context,requestInfo.getId(),
                             requestInfo.getUrl(), requestInfo.getFilePath()
                             ,requestInfo.getHeaders(),requestInfo.getFileSize(),loggingEnabled, onUpdateInterval);
 
-                    databaseHelper.updateStatus(requestInfo.getId(),FetchService.STATUS_DOWNLOADING,DEFAULT_EMPTY_VALUE);
                     activeDownloads.put(fetchRunnable.getId(),fetchRunnable);
 
                     new Thread(fetchRunnable).start();
@@ -380,10 +421,6 @@ public final class FetchService extends Service implements FetchConst {
             }
 
             runningTask = false;
-
-            if(activeDownloads.size() < downloadsLimit && databaseHelper.hasPendingRequests()) {
-                startDownload();
-            }
         }else if(!runningTask && activeDownloads.size() == 0 && !databaseHelper.hasPendingRequests()) {
             shuttingDown = true;
             stopSelf();
@@ -438,7 +475,7 @@ public final class FetchService extends Service implements FetchConst {
             }
 
             boolean enqueued = databaseHelper.insert(id,url,filePath,STATUS_QUEUED,headerString,
-                    downloadedBytes,fileSize,priority, DEFAULT_EMPTY_VALUE);
+                    downloadedBytes,fileSize,priority, DEFAULT_EMPTY_VALUE,DIGEST_NONE,null);
 
             if(!enqueued) {
                 throw new EnqueueException("could not enqueue request",ERROR_ENQUEUE_ERROR);
@@ -572,6 +609,8 @@ public final class FetchService extends Service implements FetchConst {
 
         if(request != null && databaseHelper.delete(id)) {
 
+            BandwidthLimiter.getInstance().removeRequest(id);
+
             Utils.deleteFile(request.getFilePath());
 
             Utils.sendEventUpdate(broadcastManager,id,
@@ -717,6 +756,8 @@ public final class FetchService extends Service implements FetchConst {
 
         if(request != null && databaseHelper.delete(id)) {
 
+            BandwidthLimiter.getInstance().removeRequest(id);
+
             Utils.sendEventUpdate(broadcastManager,id,
                     STATUS_REMOVED,request.getProgress(),request.getDownloadedBytes(),
                     request.getFileSize(),DEFAULT_EMPTY_VALUE);
@@ -749,13 +790,49 @@ public final class FetchService extends Service implements FetchConst {
 
     private void setRequestPriority(long id, int priority) {
 
-        if(databaseHelper.setPriority(id,priority) && activeDownloads.size() > 0) {
-            interruptActiveDownloads();
+        if(databaseHelper.setPriority(id,priority) && priority == PRIORITY_HIGH
+                && databaseHelper.isPending(id) && activeDownloads.size() >= downloadsLimit) {
+            interruptLowestPriorityDownload();
         }
 
         startDownload();
     }
 
+    /**
+     * Frees a single download slot for a high priority request. The newest request among
+     * the lowest priority active downloads is interrupted and goes back to the queue,
+     * the others keep running. Active downloads of high priority are never interrupted.
+     * */
+    private void interruptLowestPriorityDownload() {
+
+        List<Long> ids = new ArrayList<>(activeDownloads.keySet());
+        long[] activeIds = new long[ids.size()];
+
+        for (int i = 0; i < activeIds.length; i++) {
+            activeIds[i] = ids.get(i);
+        }
+
+        Cursor cursor = databaseHelper.get(activeIds);
+        List<RequestInfo> requestInfoList = Utils.cursorToRequestInfoList(cursor,true,loggingEnabled);
+        RequestInfo lowest = null;
+
+        for (RequestInfo requestInfo : requestInfoList) {
+
+            if(requestInfo.getPriority() >= PRIORITY_HIGH) {
+                continue;
+            }
+
+            if(lowest == null || requestInfo.getPriority() < lowest.getPriority()
+                    || (requestInfo.getPriority() == lowest.getPriority() && requestInfo.getId() > lowest.getId())) {
+                lowest = requestInfo;
+            }
+        }
+
+        if(lowest != null) {
+            interruptActiveDownload(lowest.getId());
+        }
+    }
+
     private void setAllowedNetwork(final int networkType) {
 
         preferredNetwork = networkType;
@@ -899,6 +976,7 @@ public final class FetchService extends Service implements FetchConst {
         loggingEnabled = enabled;
         sharedPreferences.edit().putBoolean(EXTRA_LOGGING_ID,enabled).apply();
         databaseHelper.setLoggingEnabled(loggingEnabled);
+        integrityChecker.setLoggingEnabled(loggingEnabled);
         startDownload();
     }
 
@@ -922,6 +1000,54 @@ public final class FetchService extends Service implements FetchConst {
         startDownload();
     }
 
+    private void setBandwidthLimit(long id,long bytesPerSecond) {
+
+        if(bytesPerSecond < 0) {
+            bytesPerSecond = DEFAULT_BANDWIDTH_LIMIT;
+        }
+
+        if(id == DEFAULT_EMPTY_VALUE) {
+            BandwidthLimiter.getInstance().setGlobalLimit(bytesPerSecond);
+            sharedPreferences.edit().putLong(EXTRA_BANDWIDTH_LIMIT,bytesPerSecond).apply();
+        }else {
+            BandwidthLimiter.getInstance().setRequestLimit(id,bytesPerSecond);
+        }
+
+        startDownload();
+    }
+
+    private void setIntegrityCheckInterval(long intervalMs) {
+
+        if(intervalMs < 0) {
+            intervalMs = DEFAULT_INTEGRITY_CHECK_INTERVAL;
+        }
+
+        integrityChecker.setInterval(intervalMs);
+        sharedPreferences.edit().putLong(EXTRA_INTEGRITY_CHECK_INTERVAL,intervalMs).apply();
+        startDownload();
+    }
+
+    /**
+     * Stored only. The DatabaseHelper reads it when it opens the database.
+     * */
+    private void setWriteAheadLoggingEnabled(boolean enabled) {
+        sharedPreferences.edit().putBoolean(EXTRA_WRITE_AHEAD_LOGGING,enabled).apply();
+        startDownload();
+    }
+
+    static boolean isWriteAheadLoggingEnabled(Context context) {
+        return  context.getSharedPreferences(SHARED_PREFERENCES,Context.MODE_PRIVATE)
+                .getBoolean(EXTRA_WRITE_AHEAD_LOGGING,false);
+    }
+
+    private long getIntegrityCheckInterval() {
+        return sharedPreferences.getLong(EXTRA_INTEGRITY_CHECK_INTERVAL,DEFAULT_INTEGRITY_CHECK_INTERVAL);
+    }
+
+    private long getBandwidthLimit() {
+        return sharedPreferences.getLong(EXTRA_BANDWIDTH_LIMIT,DEFAULT_BANDWIDTH_LIMIT);
+    }
+
     private long getOnUpdateInterval() {
         onUpdateInterval = sharedPreferences.getLong(EXTRA_ON_UPDATE_INTERVAL, DEFAULT_ON_UPDATE_INTERVAL);
         return onUpdateInterval;
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 Tonyo Francis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tonyodev.fetch;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks in the background that the files of completed downloads still exist
+ * and marks the ones that are gone with ERROR_FILE_NOT_FOUND.
+ *
+ * The DatabaseHelper marks requests as dirty when they complete or change, and
+ * each run first checks only those. Files removed behind Fetch's back are caught
+ * by a full sweep, which runs at most once per FULL_SWEEP_INTERVAL. The sweep
+ * walks the completed requests in id order and remembers where it stopped, so
+ * each run checks at most MAX_FILES_PER_RUN files of it and the next run picks
+ * up after the last file checked, until the end is reached. A run is started at
+ * most once per interval, on a low priority thread, and the file stats of each
+ * page are spread over a small pool. Asking for a check never waits for it, so
+ * the FetchService command path does not pay for the stats.
+ *
+ * @author Tonyo Francis
+ */
+final class IntegrityChecker {
+
+    static final int PAGE_SIZE = 256;
+    static final int MAX_FILES_PER_RUN = 2048;
+    static final int STAT_THREADS = 4;
+    static final long FULL_SWEEP_INTERVAL = 60 * 60 * 1000;
+
+    private final DatabaseHelper databaseHelper;
+    private final ExecutorService executor;
+    private final ExecutorService statExecutor;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private volatile long interval;
+    private volatile long lastRunTime = -1;
+    private volatile boolean loggingEnabled = true;
+
+    /*Only read and written on the executor thread.*/
+    private long position = Long.MIN_VALUE;
+    private long lastSweepTime = -1;
+
+    IntegrityChecker(DatabaseHelper databaseHelper,long interval) {
+        this.databaseHelper = databaseHelper;
+        this.interval = interval;
+        this.executor = Executors.newSingleThreadExecutor(getThreadFactory());
+        this.statExecutor = Executors.newFixedThreadPool(STAT_THREADS,getThreadFactory());
+    }
+
+    void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    void setLoggingEnabled(boolean enabled) {
+        this.loggingEnabled = enabled;
+    }
+
+    /**
+     * Starts a run if none is in progress and the interval has passed since the
+     * last one ended. Returns immediately.
+     * */
+    void checkIfDue() {
+
+        if(executor.isShutdown()) {
+            return;
+        }
+
+        if(lastRunTime != -1 && SystemClock.elapsedRealtime() - lastRunTime < interval) {
+            return;
+        }
+
+        if(!running.compareAndSet(false,true)) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    check();
+                }catch (Exception e) {
+
+                    if(loggingEnabled) {
+                        e.printStackTrace();
+                    }
+                }finally {
+                    lastRunTime = SystemClock.elapsedRealtime();
+                    running.set(false);
+                }
+            }
+        });
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        statExecutor.shutdownNow();
+    }
+
+    private void check() throws InterruptedException, ExecutionException {
+
+        int checked = checkDirty();
+
+        if(!isSweepDue()) {
+            return;
+        }
+
+        while (checked < MAX_FILES_PER_RUN) {
+
+            Cursor cursor = databaseHelper.getCompletedFiles(position,PAGE_SIZE);
+
+            if(cursor == null) {
+                return;
+            }
+
+            long[] ids = checkFiles(cursor);
+            checked += ids.length;
+
+            if(ids.length < PAGE_SIZE) {
+                position = Long.MIN_VALUE;
+                lastSweepTime = SystemClock.elapsedRealtime();
+                return;
+            }
+
+            position = ids[ids.length - 1];
+        }
+    }
+
+    /**
+     * Checks the requests marked since the last run, a page at a time.
+     *
+     * @return number of completed requests checked.
+     * */
+    private int checkDirty() throws InterruptedException, ExecutionException {
+
+        long[] dirtyIds = databaseHelper.takeDirtyIds();
+        int checked = 0;
+
+        for (int start = 0; start < dirtyIds.length; start += PAGE_SIZE) {
+
+            long[] page = new long[Math.min(PAGE_SIZE,dirtyIds.length - start)];
+            System.arraycopy(dirtyIds,start,page,0,page.length);
+
+            Cursor cursor = databaseHelper.getCompletedFiles(page);
+
+            if(cursor == null) {
+                continue;
+            }
+
+            checked += checkFiles(cursor).length;
+        }
+
+        return checked;
+    }
+
+    /**
+     * A sweep is due when none has finished yet, one is part way through, or
+     * FULL_SWEEP_INTERVAL has passed since the last one finished.
+     * */
+    private boolean isSweepDue() {
+        return lastSweepTime == -1 || position != Long.MIN_VALUE
+                || SystemClock.elapsedRealtime() - lastSweepTime >= FULL_SWEEP_INTERVAL;
+    }
+
+    /**
+     * Reads the id and file path rows of the cursor, closes it and marks the
+     * requests whose file is gone.
+     *
+     * @return the ids that were read.
+     * */
+    private long[] checkFiles(Cursor cursor) throws InterruptedException, ExecutionException {
+
+        long[] ids;
+        String[] filePaths;
+
+        try {
+
+            ids = new long[cursor.getCount()];
+            filePaths = new String[ids.length];
+
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                filePaths[i] = cursor.getString(1);
+            }
+        }finally {
+            cursor.close();
+        }
+
+        if(ids.length > 0) {
+            databaseHelper.setFilesNotFound(findMissing(ids,filePaths));
+        }
+
+        return ids;
+    }
+
+    private long[] findMissing(final long[] ids,final String[] filePaths)
+            throws InterruptedException, ExecutionException {
+
+        int chunkSize = (ids.length + STAT_THREADS - 1) / STAT_THREADS;
+        List<Future<List<Long>>> futures = new ArrayList<>(STAT_THREADS);
+
+        for (int start = 0; start < ids.length; start += chunkSize) {
+
+            final int from = start;
+            final int to = Math.min(ids.length,start + chunkSize);
+
+            futures.add(statExecutor.submit(new Callable<List<Long>>() {
+                @Override
+                public List<Long> call() {
+
+                    List<Long> missing = new ArrayList<>();
+
+                    for (int i = from; i < to; i++) {
+                        if(filePaths[i] != null && !Utils.fileExist(filePaths[i])) {
+                            missing.add(ids[i]);
+                        }
+                    }
+
+                    return missing;
+                }
+            }));
+        }
+
+        List<Long> missing = new ArrayList<>();
+
+        for (Future<List<Long>> future : futures) {
+            missing.addAll(future.get());
+        }
+
+        long[] missingIds = new long[missing.size()];
+
+        for (int i = 0; i < missingIds.length; i++) {
+            missingIds[i] = missing.get(i);
+        }
+
+        return missingIds;
+    }
+
+    private static ThreadFactory getThreadFactory() {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable,"fetch-integrity-checker");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
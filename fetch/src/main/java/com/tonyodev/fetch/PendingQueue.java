@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 Tonyo Francis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tonyodev.fetch;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory heap of the queued requests, ordered by priority and then by the
+ * time they were queued. It is owned by the DatabaseHelper, which updates it
+ * whenever a request enters or leaves the queued status, so the FetchService
+ * can pick the next downloads without querying the database.
+ *
+ * Removing or reprioritizing a request marks its heap entry as stale instead of
+ * searching the heap for it. Stale entries are dropped when they reach the top,
+ * or all at once when they outnumber the live ones.
+ * Only contains and isEmpty may be called without holding the DatabaseHelper
+ * lock, every other method is called while holding it.
+ *
+ * @author Tonyo Francis
+ */
+final class PendingQueue {
+
+    private static final class Entry {
+
+        private final long id;
+        private final int priority;
+        private final long sequence;
+        private boolean stale;
+
+        private Entry(long id,int priority,long sequence) {
+            this.id = id;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Entry> COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry first, Entry second) {
+
+            if(first.priority != second.priority) {
+                return first.priority == FetchConst.PRIORITY_HIGH ? -1 : 1;
+            }
+
+            return first.sequence < second.sequence ? -1 : (first.sequence == second.sequence ? 0 : 1);
+        }
+    };
+
+    private final PriorityQueue<Entry> heap = new PriorityQueue<>(11,COMPARATOR);
+    private final Map<Long,Entry> entries = new ConcurrentHashMap<>();
+    private long sequence = 0;
+
+    /**
+     * Queues a request behind every request of the same priority. Does nothing
+     * if the request is already queued.
+     * */
+    void add(long id,int priority) {
+
+        if(entries.containsKey(id)) {
+            return;
+        }
+
+        push(new Entry(id,priority,sequence++));
+    }
+
+    void remove(long id) {
+
+        Entry entry = entries.remove(id);
+
+        if(entry != null) {
+            entry.stale = true;
+        }
+    }
+
+    /**
+     * Moves a queued request to its new priority. It keeps its place in the
+     * queue relative to requests of the same priority.
+     * */
+    void setPriority(long id,int priority) {
+
+        Entry entry = entries.get(id);
+
+        if(entry == null || entry.priority == priority) {
+            return;
+        }
+
+        entry.stale = true;
+        push(new Entry(id,priority,entry.sequence));
+    }
+
+    boolean contains(long id) {
+        return entries.containsKey(id);
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Removes and returns up to count ids, highest priority first.
+     * */
+    long[] poll(int count) {
+
+        long[] ids = new long[Math.min(count,entries.size())];
+        int size = 0;
+
+        while (size < ids.length) {
+
+            Entry entry = heap.poll();
+
+            if(entry == null) {
+                break;
+            }
+
+            if(!entry.stale) {
+                entries.remove(entry.id);
+                ids[size++] = entry.id;
+            }
+        }
+
+        return ids;
+    }
+
+    void clear() {
+        heap.clear();
+        entries.clear();
+    }
+
+    private void push(Entry entry) {
+        entries.put(entry.id,entry);
+        heap.add(entry);
+
+        if(heap.size() > 2 * entries.size() + 64) {
+            heap.clear();
+            heap.addAll(entries.values());
+        }
+    }
+}
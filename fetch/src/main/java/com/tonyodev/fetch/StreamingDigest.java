@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2017 Tonyo Francis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tonyodev.fetch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * StreamingDigest computes the checksum of a download while it is written.
+ * Its intermediate state can be exported and stored with the download
+ * progress, so a resumed download only rehashes the bytes that were
+ * written after the state was last saved.
+ *
+ * @author Tonyo Francis
+ */
+abstract class StreamingDigest {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] scratch = new byte[4096];
+    long length;
+
+    static StreamingDigest newInstance(int algorithm) {
+        switch (algorithm) {
+            case FetchConst.DIGEST_MD5: return new Md5();
+            case FetchConst.DIGEST_SHA1: return new Sha1();
+            case FetchConst.DIGEST_SHA256: return new Sha256();
+            case FetchConst.DIGEST_CRC32C: return new Crc32c();
+            default: throw new IllegalArgumentException("Unsupported digest algorithm " + algorithm);
+        }
+    }
+
+    /**
+     * @return the digest the state was exported from, or null if there is no usable state.
+     * */
+    static StreamingDigest restore(int algorithm, byte[] state) {
+        if (algorithm == FetchConst.DIGEST_NONE || state == null) {
+            return null;
+        }
+
+        StreamingDigest digest = newInstance(algorithm);
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+
+        try {
+            digest.length = buffer.getLong();
+
+            if (digest.length < 0 || buffer.remaining() != digest.getStateSize()) {
+                return null;
+            }
+
+            digest.readState(buffer);
+        }catch (RuntimeException e) {
+            return null;
+        }
+
+        return digest;
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+
+        return new String(chars);
+    }
+
+    synchronized void update(byte[] input, int offset, int count) {
+        engineUpdate(input, offset, count);
+        length += count;
+    }
+
+    /**
+     * Hashes the remaining bytes of the buffer and moves its position to the limit.
+     * */
+    synchronized void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            int count = buffer.remaining();
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+            buffer.position(buffer.limit());
+            return;
+        }
+
+        while (buffer.hasRemaining()) {
+            int count = Math.min(buffer.remaining(), scratch.length);
+            buffer.get(scratch, 0, count);
+            update(scratch, 0, count);
+        }
+    }
+
+    synchronized long getLength() {
+        return length;
+    }
+
+    synchronized byte[] exportState() {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + getStateSize());
+        buffer.putLong(length);
+        writeState(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Finishes the computation and returns the checksum as lowercase hex.
+     * The digest cannot be updated afterwards.
+     * */
+    synchronized String digest() {
+        return toHex(engineDigest());
+    }
+
+    abstract void engineUpdate(byte[] input, int offset, int count);
+    abstract byte[] engineDigest();
+    abstract int getStateSize();
+    abstract void writeState(ByteBuffer buffer);
+    abstract void readState(ByteBuffer buffer);
+
+    /**
+     * Merkle-Damgard hash with 64 byte blocks and a 64 bit length suffix. The state is
+     * the chaining words plus the bytes of the unfinished block.
+     */
+    private abstract static class BlockDigest extends StreamingDigest {
+        private static final int BLOCK_SIZE = 64;
+
+        final int[] h;
+        private final byte[] block;
+        private final boolean bigEndian;
+
+        BlockDigest(int[] initialState, boolean bigEndian) {
+            this.h = initialState.clone();
+            this.block = new byte[BLOCK_SIZE];
+            this.bigEndian = bigEndian;
+        }
+
+        abstract void processBlock(byte[] input, int offset);
+
+        @Override
+        void engineUpdate(byte[] input, int offset, int count) {
+            int filled = (int) (length % BLOCK_SIZE);
+
+            if (filled > 0) {
+                int copied = Math.min(BLOCK_SIZE - filled, count);
+                System.arraycopy(input, offset, block, filled, copied);
+                offset += copied;
+                count -= copied;
+
+                if (filled + copied < BLOCK_SIZE) {
+                    return;
+                }
+
+                processBlock(block, 0);
+            }
+
+            while (count >= BLOCK_SIZE) {
+                processBlock(input, offset);
+                offset += BLOCK_SIZE;
+                count -= BLOCK_SIZE;
+            }
+
+            if (count > 0) {
+                System.arraycopy(input, offset, block, 0, count);
+            }
+        }
+
+        @Override
+        byte[] engineDigest() {
+            int filled = (int) (length % BLOCK_SIZE);
+            long bits = length * 8;
+            byte[] padding = new byte[(filled < BLOCK_SIZE - 8 ? BLOCK_SIZE : BLOCK_SIZE * 2) - filled];
+            padding[0] = (byte) 0x80;
+
+            for (int i = 0; i < 8; i++) {
+                int shift = bigEndian ? (7 - i) * 8 : i * 8;
+                padding[padding.length - 8 + i] = (byte) (bits >>> shift);
+            }
+
+            engineUpdate(padding, 0, padding.length);
+
+            byte[] output = new byte[h.length * 4];
+            for (int i = 0; i < h.length; i++) {
+                for (int j = 0; j < 4; j++) {
+                    int shift = bigEndian ? (3 - j) * 8 : j * 8;
+                    output[i * 4 + j] = (byte) (h[i] >>> shift);
+                }
+            }
+
+            return output;
+        }
+
+        @Override
+        int getStateSize() {
+            return (int) (length % BLOCK_SIZE) + h.length * 4;
+        }
+
+        @Override
+        void writeState(ByteBuffer buffer) {
+            buffer.put(block, 0, (int) (length % BLOCK_SIZE));
+            for (int word : h) {
+                buffer.putInt(word);
+            }
+        }
+
+        @Override
+        void readState(ByteBuffer buffer) {
+            buffer.get(block, 0, (int) (length % BLOCK_SIZE));
+            for (int i = 0; i < h.length; i++) {
+                h[i] = buffer.getInt();
+            }
+        }
+
+        static int readInt(byte[] input, int offset, boolean bigEndian) {
+            if (bigEndian) {
+                return (input[offset] & 0xff) << 24 | (input[offset + 1] & 0xff) << 16
+                        | (input[offset + 2] & 0xff) << 8 | (input[offset + 3] & 0xff);
+            }
+
+            return (input[offset] & 0xff) | (input[offset + 1] & 0xff) << 8
+                    | (input[offset + 2] & 0xff) << 16 | (input[offset + 3] & 0xff) << 24;
+        }
+    }
+
+    private static final class Md5 extends BlockDigest {
+        private static final int[] K = {
+                0xd76aa478, 0xe8c7b756, 0x242070db, 0xc1bdceee,
+                0xf57c0faf, 0x4787c62a, 0xa8304613, 0xfd469501,
+                0x698098d8, 0x8b44f7af, 0xffff5bb1, 0x895cd7be,
+                0x6b901122, 0xfd987193, 0xa679438e, 0x49b40821,
+                0xf61e2562, 0xc040b340, 0x265e5a51, 0xe9b6c7aa,
+                0xd62f105d, 0x02441453, 0xd8a1e681, 0xe7d3fbc8,
+                0x21e1cde6, 0xc33707d6, 0xf4d50d87, 0x455a14ed,
+                0xa9e3e905, 0xfcefa3f8, 0x676f02d9, 0x8d2a4c8a,
+                0xfffa3942, 0x8771f681, 0x6d9d6122, 0xfde5380c,
+                0xa4beea44, 0x4bdecfa9, 0xf6bb4b60, 0xbebfbc70,
+                0x289b7ec6, 0xeaa127fa, 0xd4ef3085, 0x04881d05,
+                0xd9d4d039, 0xe6db99e5, 0x1fa27cf8, 0xc4ac5665,
+                0xf4292244, 0x432aff97, 0xab9423a7, 0xfc93a039,
+                0x655b59c3, 0x8f0ccc92, 0xffeff47d, 0x85845dd1,
+                0x6fa87e4f, 0xfe2ce6e0, 0xa3014314, 0x4e0811a1,
+                0xf7537e82, 0xbd3af235, 0x2ad7d2bb, 0xeb86d391
+        };
+
+        private static final int[] S = {7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21};
+
+        private final int[] x = new int[16];
+
+        Md5() {
+            super(new int[] {0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476}, false);
+        }
+
+        @Override
+        void processBlock(byte[] input, int offset) {
+            for (int i = 0; i < 16; i++) {
+                x[i] = readInt(input, offset + i * 4, false);
+            }
+
+            int a = h[0], b = h[1], c = h[2], d = h[3];
+
+            for (int i = 0; i < 64; i++) {
+                int f, g;
+
+                if (i < 16) {
+                    f = (b & c) | (~b & d);
+                    g = i;
+                } else if (i < 32) {
+                    f = (d & b) | (~d & c);
+                    g = (5 * i + 1) & 15;
+                } else if (i < 48) {
+                    f = b ^ c ^ d;
+                    g = (3 * i + 5) & 15;
+                } else {
+                    f = c ^ (b | ~d);
+                    g = (7 * i) & 15;
+                }
+
+                int temp = d;
+                d = c;
+                c = b;
+                b = b + Integer.rotateLeft(a + f + K[i] + x[g], S[(i >> 4) * 4 + (i & 3)]);
+                a = temp;
+            }
+
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+        }
+    }
+
+    private static final class Sha1 extends BlockDigest {
+        private final int[] w = new int[80];
+
+        Sha1() {
+            super(new int[] {0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476, 0xc3d2e1f0}, true);
+        }
+
+        @Override
+        void processBlock(byte[] input, int offset) {
+            for (int i = 0; i < 16; i++) {
+                w[i] = readInt(input, offset + i * 4, true);
+            }
+            for (int i = 16; i < 80; i++) {
+                w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+            }
+
+            int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4];
+
+            for (int i = 0; i < 80; i++) {
+                int f, k;
+
+                if (i < 20) {
+                    f = (b & c) | (~b & d);
+                    k = 0x5a827999;
+                } else if (i < 40) {
+                    f = b ^ c ^ d;
+                    k = 0x6ed9eba1;
+                } else if (i < 60) {
+                    f = (b & c) | (b & d) | (c & d);
+                    k = 0x8f1bbcdc;
+                } else {
+                    f = b ^ c ^ d;
+                    k = 0xca62c1d6;
+                }
+
+                int temp = Integer.rotateLeft(a, 5) + f + e + k + w[i];
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = temp;
+            }
+
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+        }
+    }
+
+    private static final class Sha256 extends BlockDigest {
+        private static final int[] K = {
+                0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5,
+                0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+                0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+                0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+                0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc,
+                0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+                0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+                0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+                0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+                0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+                0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3,
+                0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+                0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5,
+                0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+                0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+                0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+        };
+
+        private final int[] w = new int[64];
+
+        Sha256() {
+            super(new int[] {0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+                    0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19}, true);
+        }
+
+        @Override
+        void processBlock(byte[] input, int offset) {
+            for (int i = 0; i < 16; i++) {
+                w[i] = readInt(input, offset + i * 4, true);
+            }
+            for (int i = 16; i < 64; i++) {
+                int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+
+            int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+
+            for (int i = 0; i < 64; i++) {
+                int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+                int ch = (e & f) ^ (~e & g);
+                int temp1 = hh + s1 + ch + K[i] + w[i];
+                int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+                int maj = (a & b) ^ (a & c) ^ (b & c);
+                int temp2 = s0 + maj;
+
+                hh = g;
+                g = f;
+                f = e;
+                e = d + temp1;
+                d = c;
+                c = b;
+                b = a;
+                a = temp1 + temp2;
+            }
+
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+            h[5] += f;
+            h[6] += g;
+            h[7] += hh;
+        }
+    }
+
+    /**
+     * CRC-32C (Castagnoli), the checksum used by storage services for object integrity.
+     */
+    private static final class Crc32c extends StreamingDigest {
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82f63b78 : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int crc = 0xffffffff;
+
+        @Override
+        void engineUpdate(byte[] input, int offset, int count) {
+            int value = crc;
+            for (int i = offset; i < offset + count; i++) {
+                value = (value >>> 8) ^ TABLE[(value ^ input[i]) & 0xff];
+            }
+            crc = value;
+        }
+
+        @Override
+        byte[] engineDigest() {
+            int value = ~crc;
+            return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+
+        @Override
+        int getStateSize() {
+            return 4;
+        }
+
+        @Override
+        void writeState(ByteBuffer buffer) {
+            buffer.putInt(crc);
+        }
+
+        @Override
+        void readState(ByteBuffer buffer) {
+            crc = buffer.getInt();
+        }
+    }
+}
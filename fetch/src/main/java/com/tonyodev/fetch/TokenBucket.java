@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Tonyo Francis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tonyodev.fetch;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free rate limiter used by the BandwidthLimiter. The bucket
+ * tracks the time at which it is empty again and every reservation
+ * advances that time with a single compare and set.
+ *
+ * Readers ask for the remaining wait each time they wake up, so a
+ * new rate also applies to readers that are already waiting. Changing
+ * the rate drops the debt built up at the old rate.
+ *
+ * @author Tonyo Francis
+ */
+final class TokenBucket {
+
+    private static final long BURST = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private volatile long bytesPerSecond;
+    private final AtomicLong emptyTime;
+
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.emptyTime = new AtomicLong(System.nanoTime());
+    }
+
+    void setBytesPerSecond(long bytesPerSecond) {
+
+        if(this.bytesPerSecond != bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            emptyTime.set(System.nanoTime());
+        }
+    }
+
+    /**
+     * Takes bytes from the bucket. Does nothing if unlimited.
+     *
+     * @param bytes number of bytes read
+     * */
+    void reserve(int bytes) {
+
+        long rate = bytesPerSecond;
+
+        if(rate <= 0) {
+            return;
+        }
+
+        long cost = bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+        long now, current, next;
+
+        do {
+            now = System.nanoTime();
+            current = emptyTime.get();
+            next = Math.max(current,now) + cost;
+        } while (!emptyTime.compareAndSet(current,next));
+    }
+
+    /**
+     * @return nanoseconds to wait before the bytes taken so far may be used. 0 if unlimited.
+     * */
+    long getDelay() {
+
+        if(bytesPerSecond <= 0) {
+            return 0;
+        }
+
+        return Math.max(0,emptyTime.get() - System.nanoTime() - BURST);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 Tonyo Francis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tonyodev.fetch;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TransferPipeline splits a download into a network read stage, run on
+ * the calling thread, and a disk write stage, run on its own thread.
+ * The stages hand off a fixed number of recycled buffers through a
+ * bounded queue. The time each stage spends waiting on the other is
+ * recorded so it is possible to tell whether storage or the network
+ * is the bottleneck. When a StreamingDigest is given, the write stage
+ * updates it after each buffer has been written to the file.
+ *
+ * @author Tonyo Francis
+ */
+final class TransferPipeline {
+
+    static final int DEPTH = 4;
+    private static final long POLL_INTERVAL = 100;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    interface Callback {
+        boolean isInterrupted();
+        void onRead(int bytes) throws InterruptedException;
+        void onProgress(long bytesWritten);
+    }
+
+    private final ReadableByteChannel source;
+    private final FileChannel channel;
+    private final StreamingDigest digest;
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+    private final ArrayBlockingQueue<ByteBuffer> filledBuffers;
+    private final AtomicLong bytesWritten;
+    private final AtomicLong networkStallTime;
+    private final AtomicLong storageStallTime;
+    private volatile Exception writerError;
+
+    TransferPipeline(@NonNull ReadableByteChannel source,@NonNull FileChannel channel,
+                     @Nullable StreamingDigest digest) {
+
+        if(source == null) {
+            throw new NullPointerException("Source cannot be null");
+        }
+
+        if(channel == null) {
+            throw new NullPointerException("Channel cannot be null");
+        }
+
+        this.source = source;
+        this.channel = channel;
+        this.digest = digest;
+        this.freeBuffers = new ArrayBlockingQueue<>(DEPTH);
+        this.filledBuffers = new ArrayBlockingQueue<>(DEPTH + 1);
+        this.bytesWritten = new AtomicLong(0);
+        this.networkStallTime = new AtomicLong(0);
+        this.storageStallTime = new AtomicLong(0);
+    }
+
+    /**
+     * Runs the read stage on the calling thread until the source is
+     * exhausted or the callback reports an interruption. Returns once
+     * every buffer that was read has been written to the file.
+     *
+     * @param callback callback polled for interruption and notified of progress
+     * */
+    void transfer(@NonNull Callback callback) throws Exception {
+
+        final CountDownLatch writerDone = new CountDownLatch(1);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drain();
+                }catch (Exception e) {
+                    writerError = e;
+                }finally {
+                    writerDone.countDown();
+                }
+            }
+        });
+        writer.start();
+
+        for (int i = 0; i < DEPTH; i++) {
+            freeBuffers.add(ByteBufferPool.acquire());
+        }
+
+        try {
+            ByteBuffer buffer;
+
+            while (!callback.isInterrupted() && writerError == null) {
+
+                long stallStart = System.nanoTime();
+                buffer = freeBuffers.poll(POLL_INTERVAL,TimeUnit.MILLISECONDS);
+                storageStallTime.addAndGet(System.nanoTime() - stallStart);
+
+                if(buffer == null) {
+                    continue;
+                }
+
+                int read = ByteBufferPool.read(source,buffer);
+
+                if(read == -1) {
+                    freeBuffers.add(buffer);
+                    break;
+                }
+
+                callback.onRead(read);
+                filledBuffers.add(buffer);
+                callback.onProgress(bytesWritten.get());
+            }
+        }finally {
+            filledBuffers.add(END);
+            writerDone.await();
+
+            ByteBuffer buffer;
+            while ((buffer = freeBuffers.poll()) != null) {
+                ByteBufferPool.release(buffer);
+            }
+            while ((buffer = filledBuffers.poll()) != null) {
+                ByteBufferPool.release(buffer);
+            }
+        }
+
+        callback.onProgress(bytesWritten.get());
+
+        if(writerError != null) {
+            throw writerError;
+        }
+    }
+
+    private void drain() throws IOException, InterruptedException {
+
+        ByteBuffer buffer;
+
+        while (true) {
+
+            long stallStart = System.nanoTime();
+            buffer = filledBuffers.take();
+            networkStallTime.addAndGet(System.nanoTime() - stallStart);
+
+            if(buffer == END) {
+                return;
+            }
+
+            int count = buffer.remaining();
+            int position = buffer.position();
+
+            try {
+                ByteBufferPool.write(channel,buffer);
+            }catch (IOException e) {
+                ByteBufferPool.release(buffer);
+                throw e;
+            }
+
+            if(digest != null) {
+                buffer.position(position);
+                digest.update(buffer);
+            }
+
+            bytesWritten.addAndGet(count);
+            freeBuffers.add(buffer);
+        }
+    }
+
+    /**
+     * @return milliseconds the write stage spent waiting for data from the network
+     * */
+    long getNetworkStallTime() {
+        return TimeUnit.NANOSECONDS.toMillis(networkStallTime.get());
+    }
+
+    /**
+     * @return milliseconds the read stage spent waiting for the write stage to free a buffer
+     * */
+    long getStorageStallTime() {
+        return TimeUnit.NANOSECONDS.toMillis(storageStallTime.get());
+    }
+}
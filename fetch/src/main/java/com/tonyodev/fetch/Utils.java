@@ -35,6 +35,9 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -216,6 +219,59 @@ final class Utils {
         return new File(filePath);
     }
 
+    /**
+     * Returns a digest covering the first position bytes of the file. A saved
+     * state that is not ahead of the file is reused so only the bytes written
+     * after it are read back.
+     * */
+    static StreamingDigest createDigest(int digestAlgorithm, byte[] digestState,
+                                        String filePath, long position) throws IOException {
+
+        StreamingDigest digest = StreamingDigest.restore(digestAlgorithm,digestState);
+
+        if(digest == null || digest.getLength() > position) {
+            digest = StreamingDigest.newInstance(digestAlgorithm);
+        }
+
+        updateDigest(digest,filePath,position);
+        return digest;
+    }
+
+    /**
+     * Hashes the bytes of the file from the current digest length up to end.
+     * */
+    static void updateDigest(StreamingDigest digest, String filePath, long end) throws IOException {
+
+        if(digest.getLength() >= end) {
+            return;
+        }
+
+        RandomAccessFile input = new RandomAccessFile(filePath,"r");
+        FileChannel channel = input.getChannel();
+        ByteBuffer buffer = ByteBufferPool.acquire();
+
+        try {
+            long position = digest.getLength();
+
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(),end - position));
+                int read = channel.read(buffer,position);
+
+                if(read == -1) {
+                    throw new IOException("checksum mismatch");
+                }
+
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+        }finally {
+            ByteBufferPool.release(buffer);
+            input.close();
+        }
+    }
+
     static void createFileOrThrow(String filePath) throws IOException,NullPointerException {
 
         File file = Utils.getFile(filePath);
@@ -385,10 +441,40 @@ final class Utils {
         return System.nanoTime();
     }
 
+    /**
+     * Publishes the update to the EventBus for Fetch instances and
+     * broadcasts it for receivers registered with the event update filter.
+     * Progress updates are only broadcast once the filter has been
+     * requested, otherwise the EventBus is the only path and no Intent
+     * is created for them.
+     * */
     static void sendEventUpdate(LocalBroadcastManager broadcastManager,long id,
                                 int status,int progress,long downloadedBytes,long fileSize,int error) {
 
-        if(broadcastManager == null) {
+        EventBus.getInstance().publish(id,status,progress,downloadedBytes,fileSize,error);
+
+        if(!shouldBroadcast(broadcastManager,status)) {
+            return;
+        }
+
+        Intent intent = new Intent(FetchService.EVENT_ACTION_UPDATE);
+        intent.putExtra(FetchService.EXTRA_ID,id);
+        intent.putExtra(FetchService.EXTRA_STATUS,status);
+        intent.putExtra(FetchService.EXTRA_PROGRESS,progress);
+        intent.putExtra(FetchService.EXTRA_DOWNLOADED_BYTES,downloadedBytes);
+        intent.putExtra(FetchService.EXTRA_FILE_SIZE,fileSize);
+        intent.putExtra(FetchService.EXTRA_ERROR,error);
+
+        broadcastManager.sendBroadcast(intent);
+    }
+
+    static void sendEventUpdate(LocalBroadcastManager broadcastManager,long id,
+                                int status,int progress,long downloadedBytes,long fileSize,int error,
+                                long networkStallTime,long storageStallTime) {
+
+        EventBus.getInstance().publish(id,status,progress,downloadedBytes,fileSize,error);
+
+        if(!shouldBroadcast(broadcastManager,status)) {
             return;
         }
 
@@ -399,10 +485,17 @@ final class Utils {
         intent.putExtra(FetchService.EXTRA_DOWNLOADED_BYTES,downloadedBytes);
         intent.putExtra(FetchService.EXTRA_FILE_SIZE,fileSize);
         intent.putExtra(FetchService.EXTRA_ERROR,error);
+        intent.putExtra(FetchService.EXTRA_NETWORK_STALL_TIME,networkStallTime);
+        intent.putExtra(FetchService.EXTRA_STORAGE_STALL_TIME,storageStallTime);
 
         broadcastManager.sendBroadcast(intent);
     }
 
+    private static boolean shouldBroadcast(LocalBroadcastManager broadcastManager,int status) {
+        return broadcastManager != null && (status != FetchConst.STATUS_DOWNLOADING
+                || FetchService.isProgressBroadcastRequested());
+    }
+
     static ArrayList<Bundle> headersToBundleList(String headers,boolean loggingEnabled) {
 
         ArrayList<Bundle> headerList = new ArrayList<>();
@@ -26,6 +26,7 @@ import com.tonyodev.fetch.Fetch;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -42,6 +43,8 @@ public final class Request {
     private final String filePath;
     private final Map<String,String> headers = new ArrayMap<>();
     private int priority = Fetch.PRIORITY_NORMAL;
+    private int digestAlgorithm = Fetch.DIGEST_NONE;
+    private String expectedDigest;
 
     /**
      * This class contains all the information necessary to request a new download with Fetch.
@@ -172,6 +175,45 @@ public final class Request {
         return this;
     }
 
+    /**
+     * Sets the checksum the downloaded file must match. The checksum is computed
+     * while the file is written and the download fails with
+     * Fetch.ERROR_CHECKSUM_MISMATCH if it differs.
+     *
+     * @param digestAlgorithm Fetch.DIGEST_MD5, Fetch.DIGEST_SHA1, Fetch.DIGEST_SHA256,
+     *                        Fetch.DIGEST_CRC32C or Fetch.DIGEST_NONE to disable verification.
+     * @param digest hex encoded checksum.
+     *
+     * @return the same instance of Request.
+     *
+     * @throws NullPointerException if a digest algorithm is set and the digest is null.
+     * @throws IllegalArgumentException if the digest algorithm is unknown or the digest
+     * is not a hex encoded checksum of that algorithm.
+     * */
+    @NonNull
+    public Request setExpectedDigest(int digestAlgorithm,@Nullable String digest) {
+
+        if(digestAlgorithm == Fetch.DIGEST_NONE) {
+            this.digestAlgorithm = Fetch.DIGEST_NONE;
+            this.expectedDigest = null;
+            return this;
+        }
+
+        if(digest == null) {
+            throw new NullPointerException("Digest cannot be null");
+        }
+
+        int digestLength = getDigestLength(digestAlgorithm);
+
+        if(!digest.matches("[0-9a-fA-F]{" + digestLength * 2 + "}")) {
+            throw new IllegalArgumentException("Digest is not a valid hex encoded checksum: " + digest);
+        }
+
+        this.digestAlgorithm = digestAlgorithm;
+        this.expectedDigest = digest.toLowerCase(Locale.US);
+        return this;
+    }
+
     /**
      *
      * @return  the download url where the file can be downloaded from.
@@ -213,6 +255,22 @@ public final class Request {
         return priority;
     }
 
+    /**
+     * @return the digest algorithm used to verify the download. Fetch.DIGEST_NONE if
+     * the download is not verified.
+     * */
+    public int getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * @return the expected hex encoded checksum, or null if the download is not verified.
+     * */
+    @Nullable
+    public String getExpectedDigest() {
+        return expectedDigest;
+    }
+
     @Override
     public String toString() {
 
@@ -233,6 +291,22 @@ public final class Request {
                 + ",priority:" + priority + "}";
     }
 
+    private static int getDigestLength(int digestAlgorithm) {
+
+        switch (digestAlgorithm) {
+            case Fetch.DIGEST_MD5:
+                return 16;
+            case Fetch.DIGEST_SHA1:
+                return 20;
+            case Fetch.DIGEST_SHA256:
+                return 32;
+            case Fetch.DIGEST_CRC32C:
+                return 4;
+            default:
+                throw new IllegalArgumentException("Unknown digest algorithm: " + digestAlgorithm);
+        }
+    }
+
     private static String generateFileName(String url) {
 
         if(url == null) {
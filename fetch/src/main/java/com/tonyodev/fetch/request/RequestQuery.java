@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 Tonyo Francis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tonyodev.fetch.request;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class describes a filtered and sorted query over the download requests
+ * stored by Fetch. All conditions that are set must match. The query is run as a
+ * single SQL statement against the FetchService database, so filtering, sorting and
+ * limiting happen in SQLite and only the matching rows are read.
+ *
+ * Use Fetch.get(RequestQuery) to run the query.
+ *
+ * @author Tonyo Francis
+ */
+
+public final class RequestQuery {
+
+    public static final int ORDER_BY_ID = 0;
+    public static final int ORDER_BY_URL = 1;
+    public static final int ORDER_BY_STATUS = 2;
+    public static final int ORDER_BY_PRIORITY = 3;
+    public static final int ORDER_BY_FILE_SIZE = 4;
+    public static final int ORDER_BY_DOWNLOADED_BYTES = 5;
+
+    private final List<Integer> statuses = new ArrayList<>();
+    private String urlPrefix;
+    private long minFileSize = -1;
+    private long maxFileSize = -1;
+    private int orderBy = ORDER_BY_ID;
+    private boolean descending = false;
+    private int limit = 0;
+
+    /**
+     * Matches requests that have any of the passed in statuses. Calling this method
+     * again adds to the statuses already set.
+     *
+     * @param statuses eg. Fetch.STATUS_DONE, Fetch.STATUS_QUEUED
+     *
+     * @return this RequestQuery
+     * */
+    @NonNull
+    public RequestQuery setStatus(int... statuses) {
+
+        for (int status : statuses) {
+            this.statuses.add(status);
+        }
+
+        return this;
+    }
+
+    /**
+     * Matches requests whose url starts with the passed in prefix. The match is case sensitive.
+     *
+     * @param urlPrefix start of the url. eg: https://www.example.com/videos/
+     *                  Passing null removes the condition.
+     *
+     * @return this RequestQuery
+     * */
+    @NonNull
+    public RequestQuery setUrlPrefix(@Nullable String urlPrefix) {
+        this.urlPrefix = urlPrefix;
+        return this;
+    }
+
+    /**
+     * Matches requests whose file size lies between minFileSize and maxFileSize, inclusive.
+     * Pass -1 to leave either end open. Note that the file size of a request is -1 until
+     * the server has reported it.
+     *
+     * @param minFileSize smallest file size in bytes, or -1
+     * @param maxFileSize largest file size in bytes, or -1
+     *
+     * @throws IllegalArgumentException if a size is less than -1 or minFileSize is greater than maxFileSize.
+     *
+     * @return this RequestQuery
+     * */
+    @NonNull
+    public RequestQuery setFileSizeRange(long minFileSize, long maxFileSize) {
+
+        if (minFileSize < -1 || maxFileSize < -1) {
+            throw new IllegalArgumentException("File size cannot be less than -1");
+        }
+
+        if (minFileSize != -1 && maxFileSize != -1 && minFileSize > maxFileSize) {
+            throw new IllegalArgumentException("minFileSize cannot be greater than maxFileSize");
+        }
+
+        this.minFileSize = minFileSize;
+        this.maxFileSize = maxFileSize;
+        return this;
+    }
+
+    /**
+     * Sorts the matching requests. Requests that compare equal are sorted by id.
+     * The default is ascending by id.
+     *
+     * @param orderBy eg. RequestQuery.ORDER_BY_PRIORITY
+     * @param descending true to sort from the largest value to the smallest
+     *
+     * @throws IllegalArgumentException if orderBy is not one of the ORDER_BY constants.
+     *
+     * @return this RequestQuery
+     * */
+    @NonNull
+    public RequestQuery setOrderBy(int orderBy, boolean descending) {
+
+        if (orderBy < ORDER_BY_ID || orderBy > ORDER_BY_DOWNLOADED_BYTES) {
+            throw new IllegalArgumentException("Invalid orderBy: " + orderBy);
+        }
+
+        this.orderBy = orderBy;
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * Limits the number of requests returned.
+     *
+     * @param limit maximum number of requests. 0 returns every match.
+     *
+     * @throws IllegalArgumentException if limit is negative.
+     *
+     * @return this RequestQuery
+     * */
+    @NonNull
+    public RequestQuery setLimit(int limit) {
+
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit cannot be negative");
+        }
+
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * @return the statuses to match. An empty list matches every status.
+     * */
+    @NonNull
+    public List<Integer> getStatuses() {
+        return new ArrayList<>(statuses);
+    }
+
+    /**
+     * @return the url prefix to match, or null.
+     * */
+    @Nullable
+    public String getUrlPrefix() {
+        return urlPrefix;
+    }
+
+    public long getMinFileSize() {
+        return minFileSize;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public int getOrderBy() {
+        return orderBy;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,65 @@
+package com.tonyodev.fetch;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BandwidthLimiterTest {
+
+    private static final BandwidthLimiter.Interruptible NEVER = new BandwidthLimiter.Interruptible() {
+        @Override
+        public boolean isInterrupted() {
+            return false;
+        }
+    };
+
+    @Test
+    public void tokenBucketDelayMatchesRate() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.reserve(1000);
+
+        long delay = TimeUnit.NANOSECONDS.toMillis(bucket.getDelay());
+        assertTrue("delay " + delay, delay > 650 && delay <= 750);
+    }
+
+    @Test
+    public void tokenBucketRateChangeDropsDebt() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.reserve(10000);
+
+        bucket.setBytesPerSecond(2000);
+        assertEquals(0, bucket.getDelay());
+    }
+
+    @Test
+    public void removingRequestLimitWakesWaitingReader() throws Exception {
+        final BandwidthLimiter bandwidthLimiter = BandwidthLimiter.getInstance();
+        bandwidthLimiter.setRequestLimit(42, 100);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    bandwidthLimiter.acquire(42, 10000, NEVER);
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+            bandwidthLimiter.setRequestLimit(42, 0);
+            assertTrue(done.await(500, TimeUnit.MILLISECONDS));
+        } finally {
+            bandwidthLimiter.removeRequest(42);
+        }
+    }
+}
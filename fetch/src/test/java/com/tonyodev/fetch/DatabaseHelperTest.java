@@ -0,0 +1,30 @@
+package com.tonyodev.fetch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DatabaseHelperTest {
+
+    @Test
+    public void upperBoundIncrementsLastCharacter() {
+        assertEquals("http://a/c", DatabaseHelper.getUpperBound("http://a/b"));
+    }
+
+    @Test
+    public void upperBoundIncrementsTrailingSurrogatePairAsOneCodePoint() {
+        assertEquals("ab\uD83D\uDE01", DatabaseHelper.getUpperBound("ab\uD83D\uDE00"));
+        assertEquals("b", DatabaseHelper.getUpperBound("a\uDBFF\uDFFF"));
+    }
+
+    @Test
+    public void upperBoundSkipsSurrogates() {
+        assertEquals("a\uE000", DatabaseHelper.getUpperBound("a\uD7FF"));
+        assertEquals("a\uD800\uDC00", DatabaseHelper.getUpperBound("a\uFFFF"));
+    }
+
+    @Test
+    public void upperBoundOfLargestCodePointIsOpen() {
+        assertNull(DatabaseHelper.getUpperBound(new String(Character.toChars(Character.MAX_CODE_POINT))));
+    }
+}
@@ -0,0 +1,107 @@
+package com.tonyodev.fetch;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(Parameterized.class)
+public class EventRingBufferTest {
+
+    /**
+     * Requested capacity and the number of slots it is rounded up to.
+     * */
+    @Parameterized.Parameters(name = "capacity {0}")
+    public static Collection<Object[]> capacities() {
+        return Arrays.asList(new Object[][]{
+                {1, 2},
+                {2, 2},
+                {3, 4},
+                {EventBus.RING_BUFFER_CAPACITY, EventBus.RING_BUFFER_CAPACITY}
+        });
+    }
+
+    private final EventRingBuffer ringBuffer;
+    private final int slots;
+
+    public EventRingBufferTest(int capacity, int slots) {
+        this.ringBuffer = new EventRingBuffer(capacity);
+        this.slots = slots;
+    }
+
+    @Test
+    public void drainsInPublishingOrderAcrossWrapAround() {
+        RecordingConsumer consumer = new RecordingConsumer();
+        List<Long> expected = new ArrayList<>();
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < slots; i++) {
+                long id = round * slots + i;
+                ringBuffer.put(1, id, 0, i, i, slots);
+                expected.add(id);
+            }
+
+            assertEquals(slots, ringBuffer.drain(consumer));
+        }
+
+        assertEquals(expected, consumer.ids);
+        assertEquals(0, ringBuffer.drain(consumer));
+    }
+
+    @Test
+    public void offerFailsWhenFull() {
+        for (int i = 0; i < slots; i++) {
+            assertTrue(ringBuffer.offer(1, i, 0, 0, 0, 0));
+        }
+
+        assertFalse(ringBuffer.offer(1, slots, 0, 0, 0, 0));
+
+        ringBuffer.drain(new RecordingConsumer());
+        assertTrue(ringBuffer.offer(1, slots, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void putBlocksUntilConsumerFreesSlot() throws Exception {
+        for (int i = 0; i < slots; i++) {
+            ringBuffer.put(1, i, 0, 0, 0, 0);
+        }
+
+        final CountDownLatch published = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ringBuffer.put(4, slots, 0, 0, 0, 0);
+                published.countDown();
+            }
+        });
+        producer.setDaemon(true);
+        producer.start();
+
+        assertFalse(published.await(100, TimeUnit.MILLISECONDS));
+
+        RecordingConsumer consumer = new RecordingConsumer();
+        ringBuffer.drain(consumer);
+        assertTrue(published.await(1, TimeUnit.SECONDS));
+
+        ringBuffer.drain(consumer);
+        assertEquals(slots + 1, consumer.ids.size());
+        assertEquals(Long.valueOf(slots), consumer.ids.get(slots));
+    }
+
+    private static final class RecordingConsumer implements EventRingBuffer.Consumer {
+        private final List<Long> ids = new ArrayList<>();
+
+        @Override
+        public void onEvent(int status, long id, int error, int progress, long downloadedBytes, long fileSize) {
+            ids.add(id);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.tonyodev.fetch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(Parameterized.class)
+public class StreamingDigestTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> algorithms() {
+        return Arrays.asList(new Object[][]{
+                {FetchConst.DIGEST_MD5, "abc", "900150983cd24fb0d6963f7d28e17f72"},
+                {FetchConst.DIGEST_SHA1, "abc", "a9993e364706816aba3e25717850c26c9cd0d89d"},
+                {FetchConst.DIGEST_SHA256, "abc", "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"},
+                {FetchConst.DIGEST_CRC32C, "123456789", "e3069283"}
+        });
+    }
+
+    private final int algorithm;
+    private final String input;
+    private final String expected;
+    private final byte[] data = new byte[70001];
+    private File file;
+
+    public StreamingDigestTest(int algorithm, String input, String expected) {
+        this.algorithm = algorithm;
+        this.input = input;
+        this.expected = expected;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(data);
+        file = File.createTempFile("digest", ".bin");
+
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void knownVector() {
+        StreamingDigest digest = StreamingDigest.newInstance(algorithm);
+        digest.update(ByteBuffer.wrap(input.getBytes(ASCII)));
+        assertEquals(expected, digest.digest());
+    }
+
+    @Test
+    public void resumesFromSavedStateAgainstFile() throws Exception {
+        String full = hash(data.length);
+
+        for (int split : new int[]{0, 1, 63, 64, 65, 4097, data.length}) {
+            StreamingDigest saved = StreamingDigest.newInstance(algorithm);
+            saved.update(ByteBuffer.wrap(data, 0, split));
+
+            StreamingDigest resumed = Utils.createDigest(algorithm, saved.exportState(), file.getAbsolutePath(), data.length);
+            assertEquals("split " + split, full, resumed.digest());
+        }
+    }
+
+    @Test
+    public void stateAheadOfFileIsDiscarded() throws Exception {
+        StreamingDigest saved = StreamingDigest.newInstance(algorithm);
+        saved.update(ByteBuffer.wrap(data));
+
+        StreamingDigest resumed = Utils.createDigest(algorithm, saved.exportState(), file.getAbsolutePath(), 1000);
+        assertEquals(1000, resumed.getLength());
+        assertEquals(hash(1000), resumed.digest());
+    }
+
+    @Test
+    public void invalidStateStartsOver() throws Exception {
+        StreamingDigest resumed = Utils.createDigest(algorithm, new byte[11], file.getAbsolutePath(), data.length);
+        assertEquals(hash(data.length), resumed.digest());
+    }
+
+    /**
+     * Digest of the first length bytes, fed through a direct buffer like the ByteBufferPool's.
+     * */
+    private String hash(int length) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(data, 0, length).flip();
+
+        StreamingDigest digest = StreamingDigest.newInstance(algorithm);
+        digest.update(buffer);
+        return digest.digest();
+    }
+}
@@ -0,0 +1,71 @@
+package com.tonyodev.fetch.request;
+
+import com.tonyodev.fetch.Fetch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RequestQueryTest {
+
+    @Test
+    public void defaultsMatchEveryRequest() {
+        RequestQuery requestQuery = new RequestQuery();
+
+        assertTrue(requestQuery.getStatuses().isEmpty());
+        assertNull(requestQuery.getUrlPrefix());
+        assertEquals(-1, requestQuery.getMinFileSize());
+        assertEquals(-1, requestQuery.getMaxFileSize());
+        assertEquals(RequestQuery.ORDER_BY_ID, requestQuery.getOrderBy());
+        assertFalse(requestQuery.isDescending());
+        assertEquals(0, requestQuery.getLimit());
+    }
+
+    @Test
+    public void statusesAccumulate() {
+        RequestQuery requestQuery = new RequestQuery()
+                .setStatus(Fetch.STATUS_QUEUED)
+                .setStatus(Fetch.STATUS_PAUSED, Fetch.STATUS_DONE);
+
+        assertEquals(Arrays.asList(Fetch.STATUS_QUEUED, Fetch.STATUS_PAUSED, Fetch.STATUS_DONE),
+                requestQuery.getStatuses());
+    }
+
+    @Test
+    public void returnedStatusesAreACopy() {
+        RequestQuery requestQuery = new RequestQuery().setStatus(Fetch.STATUS_QUEUED);
+        requestQuery.getStatuses().clear();
+
+        assertEquals(1, requestQuery.getStatuses().size());
+    }
+
+    @Test
+    public void fileSizeRangeMayBeOpen() {
+        RequestQuery requestQuery = new RequestQuery().setFileSizeRange(-1, 100);
+
+        assertEquals(-1, requestQuery.getMinFileSize());
+        assertEquals(100, requestQuery.getMaxFileSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invertedFileSizeRangeIsRejected() {
+        new RequestQuery().setFileSizeRange(100, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fileSizeBelowMinusOneIsRejected() {
+        new RequestQuery().setFileSizeRange(-2, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownOrderIsRejected() {
+        new RequestQuery().setOrderBy(RequestQuery.ORDER_BY_DOWNLOADED_BYTES + 1, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLimitIsRejected() {
+        new RequestQuery().setLimit(-1);
+    }
+}
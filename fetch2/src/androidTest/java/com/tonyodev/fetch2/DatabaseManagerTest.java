@@ -0,0 +1,149 @@
+package com.tonyodev.fetch2;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class DatabaseManagerTest {
+
+    private static final String NAME = "fetch-test";
+
+    private Context context;
+    private DatabaseManager databaseManager;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(NAME + ".db");
+        databaseManager = DatabaseManager.newInstance(context, NAME, new GroupAggregator());
+    }
+
+    @After
+    public void tearDown() {
+        databaseManager.dispose();
+        context.deleteDatabase(NAME + ".db");
+    }
+
+    @Test
+    public void batchInsertReportsEachRequest() {
+        Request stored = new Request("http://a.com/1", "/sdcard/fetch2-test/1");
+        insert(Arrays.asList(stored));
+
+        Request fresh = new Request("http://a.com/2", "/sdcard/fetch2-test/2");
+        Request otherFresh = new Request("http://a.com/3", "/sdcard/fetch2-test/3");
+        boolean[] inserted = insert(Arrays.asList(fresh, stored, fresh, null, otherFresh));
+
+        assertArrayEquals(new boolean[]{true, false, false, false, true}, inserted);
+        assertEquals(3, queryAll().size());
+    }
+
+    @Test
+    public void batchInsertIsQueryableInTheSameTransaction() {
+        final List<Request> requests = new ArrayList<>();
+
+        for (int i = 0; i < DatabaseManager.MAX_IDS_PER_STATEMENT + 1; i++) {
+            requests.add(new Request("http://a.com/" + i, "/sdcard/fetch2-test/" + i));
+        }
+
+        AbstractTransaction<List<RequestData>> transaction = new AbstractTransaction<List<RequestData>>() {
+            @Override
+            public void onPreExecute() {
+            }
+
+            @Override
+            public void onExecute(Database database) {
+                boolean[] inserted = database.insert(requests);
+                long[] ids = new long[inserted.length];
+
+                for (int i = 0; i < ids.length; i++) {
+                    assertTrue(inserted[i]);
+                    ids[i] = requests.get(i).getId();
+                }
+
+                setValue(database.query(ids));
+            }
+
+            @Override
+            public void onPostExecute() {
+            }
+        };
+
+        databaseManager.executeTransaction(transaction);
+
+        assertEquals(requests.size(), transaction.getValue().size());
+        assertEquals(requests.size(), queryAll().size());
+    }
+
+    @Test
+    public void rolledBackBatchLeavesNoRequests() {
+        databaseManager.executeTransaction(new AbstractTransaction<Void>() {
+            @Override
+            public void onPreExecute() {
+            }
+
+            @Override
+            public void onExecute(Database database) {
+                database.insert(Arrays.asList(new Request("http://a.com/1", "/sdcard/fetch2-test/1")));
+                throw new IllegalStateException("rollback");
+            }
+
+            @Override
+            public void onPostExecute() {
+            }
+        });
+
+        assertTrue(queryAll().isEmpty());
+    }
+
+    private boolean[] insert(final List<Request> requests) {
+        AbstractTransaction<boolean[]> transaction = new AbstractTransaction<boolean[]>() {
+            @Override
+            public void onPreExecute() {
+            }
+
+            @Override
+            public void onExecute(Database database) {
+                setValue(database.insert(requests));
+            }
+
+            @Override
+            public void onPostExecute() {
+            }
+        };
+
+        databaseManager.executeTransaction(transaction);
+        return transaction.getValue();
+    }
+
+    private List<RequestData> queryAll() {
+        AbstractTransaction<List<RequestData>> transaction = new AbstractTransaction<List<RequestData>>() {
+            @Override
+            public void onPreExecute() {
+            }
+
+            @Override
+            public void onExecute(Database database) {
+                setValue(database.query());
+            }
+
+            @Override
+            public void onPostExecute() {
+            }
+        };
+
+        databaseManager.executeRead(transaction);
+        return transaction.getValue();
+    }
+}
@@ -43,4 +43,9 @@ public abstract class AbstractFetchListener implements FetchListener {
     public void onRemoved(long id, int progress, long downloadedBytes, long totalBytes) {
 
     }
+
+    @Override
+    public void onQueued(long id, int progress, long downloadedBytes, long totalBytes) {
+
+    }
 }
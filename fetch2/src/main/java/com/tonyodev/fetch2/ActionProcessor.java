@@ -6,9 +6,29 @@ package com.tonyodev.fetch2;
 
 interface ActionProcessor<T> {
 
+    /**
+     * Queues an action that affects every download. It runs alone, after every
+     * action queued before it has finished and before any action queued after it.
+     * */
     void queueAction(T action);
 
-    void processNext();
+    /**
+     * Queues an action that affects a single download. Actions for the same id run
+     * in the order they were queued. Actions for different ids run in parallel.
+     * */
+    void queueAction(long id, T action);
+
+    /**
+     * Queues a read only action. It runs once every action queued before it has
+     * finished, in parallel with other reads and with actions queued after it.
+     * */
+    void queueRead(T action);
+
+    /**
+     * Queues a read only action for a single download. It runs once the actions
+     * queued before it for the same id, and for every download, have finished.
+     * */
+    void queueRead(long id, T action);
 
     void clearQueue();
 }
@@ -0,0 +1,248 @@
+package com.tonyodev.fetch2;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Caps download throughput globally, per request and per group. Every read is charged
+ * against all buckets that apply and the reader waits for the slowest one. Limits of 0
+ * mean unlimited and can be changed while downloads are running.
+ *
+ * When weighted sharing is enabled, the global limit is also split between the groups
+ * that have running downloads in proportion to their weights, so one busy group cannot
+ * take the bandwidth of the others.
+ *
+ * A read that no cap holds back returns without taking a lock. A reader that has to
+ * wait parks its own thread and recomputes its wait against the current limits every
+ * time it wakes up. A limit change unparks the waiting readers right away.
+ */
+final class BandwidthLimiter {
+
+    private static final long MAX_SLEEP = TimeUnit.MILLISECONDS.toNanos(100);
+
+    interface Interruptible {
+        boolean isInterrupted();
+    }
+
+    private final TokenBucket globalBucket;
+    private final ConcurrentHashMap<Long,TokenBucket> requestBuckets;
+    private final ConcurrentHashMap<String,TokenBucket> groupBuckets;
+    private final ConcurrentHashMap<String,Share> shares;
+    private final Map<String,Integer> groupWeights;
+    private final boolean weightedSharing;
+    private final Set<Thread> waiters;
+
+    BandwidthLimiter(long globalBytesPerSecond, boolean weightedSharing) {
+        this.globalBucket = new TokenBucket(globalBytesPerSecond);
+        this.requestBuckets = new ConcurrentHashMap<>();
+        this.groupBuckets = new ConcurrentHashMap<>();
+        this.shares = new ConcurrentHashMap<>();
+        this.groupWeights = new HashMap<>();
+        this.weightedSharing = weightedSharing;
+        this.waiters = Collections.newSetFromMap(new ConcurrentHashMap<Thread,Boolean>());
+    }
+
+    void setGlobalLimit(long bytesPerSecond) {
+        globalBucket.setBytesPerSecond(bytesPerSecond);
+        rebalance();
+        onLimitChanged();
+    }
+
+    void setRequestLimit(long id, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            requestBuckets.remove(id);
+        } else {
+            TokenBucket bucket = requestBuckets.putIfAbsent(id, new TokenBucket(bytesPerSecond));
+            if (bucket != null) {
+                bucket.setBytesPerSecond(bytesPerSecond);
+            }
+        }
+
+        onLimitChanged();
+    }
+
+    void setGroupLimit(String groupId, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            groupBuckets.remove(groupId);
+        } else {
+            TokenBucket bucket = groupBuckets.putIfAbsent(groupId, new TokenBucket(bytesPerSecond));
+            if (bucket != null) {
+                bucket.setBytesPerSecond(bytesPerSecond);
+            }
+        }
+
+        onLimitChanged();
+    }
+
+    void removeRequest(long id) {
+        requestBuckets.remove(id);
+    }
+
+    synchronized void setGroupWeight(String groupId, int weight) {
+        if (weight == DownloadScheduler.DEFAULT_GROUP_WEIGHT) {
+            groupWeights.remove(groupId);
+        } else {
+            groupWeights.put(groupId, weight);
+        }
+
+        rebalance();
+    }
+
+    /**
+     * Marks a download of the group as running. Every call must be matched by a call
+     * to onDownloadFinished.
+     * */
+    synchronized void onDownloadStarted(String groupId) {
+        if (!weightedSharing) {
+            return;
+        }
+
+        Share share = shares.get(groupId);
+
+        if (share == null) {
+            share = new Share();
+            shares.put(groupId, share);
+        }
+
+        share.activeDownloads++;
+
+        if (share.activeDownloads == 1) {
+            rebalance();
+        }
+    }
+
+    synchronized void onDownloadFinished(String groupId) {
+        if (!weightedSharing) {
+            return;
+        }
+
+        Share share = shares.get(groupId);
+
+        if (share == null) {
+            return;
+        }
+
+        share.activeDownloads--;
+
+        if (share.activeDownloads == 0) {
+            shares.remove(groupId);
+            rebalance();
+        }
+    }
+
+    /**
+     * Charges bytes that were just read and blocks until every applicable cap allows them.
+     * The wait is cut short if the download is interrupted.
+     * */
+    void acquire(long id, String groupId, int bytes, Interruptible interruptible) throws InterruptedException {
+        globalBucket.reserve(bytes);
+
+        TokenBucket bucket = requestBuckets.get(id);
+        if (bucket != null) {
+            bucket.reserve(bytes);
+        }
+
+        bucket = groupBuckets.get(groupId);
+        if (bucket != null) {
+            bucket.reserve(bytes);
+        }
+
+        Share share = shares.get(groupId);
+        if (share != null) {
+            share.bucket.reserve(bytes);
+        }
+
+        long delay = getDelay(id, groupId);
+
+        if (delay <= 0) {
+            return;
+        }
+
+        Thread thread = Thread.currentThread();
+        waiters.add(thread);
+
+        try {
+            while (!interruptible.isInterrupted() && delay > 0) {
+                LockSupport.parkNanos(this, Math.min(delay, MAX_SLEEP));
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                delay = getDelay(id, groupId);
+            }
+        }finally {
+            waiters.remove(thread);
+        }
+    }
+
+    /**
+     * Wait still owed to the slowest cap that currently applies to the download.
+     * */
+    private long getDelay(long id, String groupId) {
+        long delay = globalBucket.getDelay();
+
+        TokenBucket bucket = requestBuckets.get(id);
+        if (bucket != null) {
+            delay = Math.max(delay, bucket.getDelay());
+        }
+
+        bucket = groupBuckets.get(groupId);
+        if (bucket != null) {
+            delay = Math.max(delay, bucket.getDelay());
+        }
+
+        Share share = shares.get(groupId);
+        if (share != null) {
+            delay = Math.max(delay, share.bucket.getDelay());
+        }
+
+        return delay;
+    }
+
+    private void onLimitChanged() {
+        for (Thread thread : waiters) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private synchronized void rebalance() {
+        if (!weightedSharing || shares.isEmpty()) {
+            return;
+        }
+
+        long globalBytesPerSecond = globalBucket.getBytesPerSecond();
+        long totalWeight = 0;
+
+        for (String groupId : shares.keySet()) {
+            totalWeight += getGroupWeight(groupId);
+        }
+
+        for (Map.Entry<String,Share> entry : shares.entrySet()) {
+            long bytesPerSecond = 0;
+
+            if (globalBytesPerSecond > 0) {
+                bytesPerSecond = Math.max(1, globalBytesPerSecond * getGroupWeight(entry.getKey()) / totalWeight);
+            }
+
+            entry.getValue().bucket.setBytesPerSecond(bytesPerSecond);
+        }
+
+        onLimitChanged();
+    }
+
+    private int getGroupWeight(String groupId) {
+        Integer weight = groupWeights.get(groupId);
+        return weight == null ? DownloadScheduler.DEFAULT_GROUP_WEIGHT : weight;
+    }
+
+    private static final class Share {
+        private final TokenBucket bucket = new TokenBucket(0);
+        private int activeDownloads;
+    }
+}
@@ -0,0 +1,46 @@
+package com.tonyodev.fetch2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide pool of direct buffers used to move bytes from the network to disk.
+ * Buffers are only allocated while the total stays within MAX_POOL_SIZE and are
+ * reused after that. When the budget is spent, acquire hands out a short lived heap
+ * buffer so a download never has to wait for a free buffer.
+ */
+final class ByteBufferPool {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final long MAX_POOL_SIZE = 4 * 1024 * 1024;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicLong allocatedBytes = new AtomicLong(0);
+
+    private ByteBufferPool() {}
+
+    static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+
+        if (buffer != null) {
+            return buffer;
+        }
+
+        if (allocatedBytes.addAndGet(BUFFER_SIZE) <= MAX_POOL_SIZE) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        allocatedBytes.addAndGet(-BUFFER_SIZE);
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        buffer.clear();
+        pool.offer(buffer);
+    }
+}
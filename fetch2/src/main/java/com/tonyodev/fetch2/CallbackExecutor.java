@@ -0,0 +1,172 @@
+package com.tonyodev.fetch2;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides on which thread FetchListener and Query callbacks run.
+ *
+ * mainThread() posts callbacks to the main looper and is the default.
+ * from(Executor) hands them to a caller supplied Executor. Callbacks are never
+ * run concurrently, even on a pool with several threads.
+ * direct() runs them on the thread that produced the event, usually a download
+ * thread. Progress is then delivered as it is reported, without conflation, and
+ * callbacks must return quickly since they hold up the download.
+ */
+public abstract class CallbackExecutor {
+
+    private static final CallbackExecutor MAIN_THREAD = new HandlerCallbackExecutor(new Handler(Looper.getMainLooper()));
+    private static final CallbackExecutor DIRECT = new DirectCallbackExecutor();
+
+    CallbackExecutor() {
+    }
+
+    @NonNull
+    public static CallbackExecutor mainThread() {
+        return MAIN_THREAD;
+    }
+
+    @NonNull
+    public static CallbackExecutor direct() {
+        return DIRECT;
+    }
+
+    @NonNull
+    public static CallbackExecutor from(@NonNull Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+
+        return new ExecutorCallbackExecutor(executor);
+    }
+
+    abstract void execute(@NonNull Runnable runnable);
+
+    abstract void executeDelayed(@NonNull Runnable runnable, long delayInMilliseconds);
+
+    /**
+     * Best effort removal of runnables that are waiting to run. Callers must
+     * tolerate a runnable running after it was cancelled.
+     * */
+    abstract void cancel(@NonNull Runnable runnable);
+
+    private static final class HandlerCallbackExecutor extends CallbackExecutor {
+
+        private final Handler handler;
+
+        HandlerCallbackExecutor(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        void execute(@NonNull Runnable runnable) {
+            handler.post(runnable);
+        }
+
+        @Override
+        void executeDelayed(@NonNull Runnable runnable, long delayInMilliseconds) {
+            handler.postDelayed(runnable, delayInMilliseconds);
+        }
+
+        @Override
+        void cancel(@NonNull Runnable runnable) {
+            handler.removeCallbacks(runnable);
+        }
+    }
+
+    private static final class DirectCallbackExecutor extends CallbackExecutor {
+
+        @Override
+        void execute(@NonNull Runnable runnable) {
+            runnable.run();
+        }
+
+        @Override
+        void executeDelayed(@NonNull Runnable runnable, long delayInMilliseconds) {
+            runnable.run();
+        }
+
+        @Override
+        void cancel(@NonNull Runnable runnable) {
+
+        }
+    }
+
+    private static final class ExecutorCallbackExecutor extends CallbackExecutor {
+
+        private static ScheduledExecutorService timer;
+
+        private final Executor executor;
+        private final ArrayDeque<Runnable> tasks;
+        private Runnable active;
+
+        ExecutorCallbackExecutor(Executor executor) {
+            this.executor = executor;
+            this.tasks = new ArrayDeque<>();
+        }
+
+        @Override
+        synchronized void execute(@NonNull final Runnable runnable) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+
+            if (active == null) {
+                scheduleNext();
+            }
+        }
+
+        @Override
+        void executeDelayed(@NonNull final Runnable runnable, long delayInMilliseconds) {
+            getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    execute(runnable);
+                }
+            }, delayInMilliseconds, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        void cancel(@NonNull Runnable runnable) {
+
+        }
+
+        private synchronized void scheduleNext() {
+            active = tasks.poll();
+
+            if (active != null) {
+                executor.execute(active);
+            }
+        }
+
+        private static synchronized ScheduledExecutorService getTimer() {
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, "fetch-callback-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+
+            return timer;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.tonyodev.fetch2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+final class ChannelFileOutput implements FileOutput {
+
+    private final FileChannel channel;
+
+    ChannelFileOutput(FileChannel channel, long position) throws IOException {
+        this.channel = channel;
+        this.channel.position(position);
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        DownloadHelper.write(channel, buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+
+    }
+}
@@ -12,14 +12,27 @@ import java.util.List;
 interface Database {
 
     boolean contains(long id);
-    boolean insert(final long id, final String url, final String absoluteFilePath,String groupId);
+    boolean insert(final Request request);
+    @NonNull boolean[] insert(@NonNull List<Request> requests);
     @NonNull List<RequestData> queryByStatus(int status);
     @Nullable RequestData query(final long id);
     @NonNull List<RequestData> query();
     @NonNull List<RequestData> query(long[] ids);
+    @NonNull List<RequestData> queryPage(@Nullable Long afterId, int limit);
+    @NonNull List<RequestData> query(@NonNull RequestQuery requestQuery);
     @NonNull List<RequestData> queryByGroupId(String groupId);
     void updateDownloadedBytes(final long id, final long downloadedBytes);
     void setDownloadedBytesAndTotalBytes(final long id, final long downloadedBytes, final long totalBytes);
+    void setDigestState(final long id, @Nullable final byte[] digestState);
     void remove(final long id);
+    void remove(final long[] ids);
     void setStatusAndError(final long id, final Status status, final int error);
+    void setStatusAndError(final long[] ids, final Status status, final int error);
+    void setStatusAndErrorByStatus(final Status fromStatus, final Status status, final int error);
+    void setStatusAndErrorByGroupId(@NonNull final String groupId, final Status fromStatus, final Status status, final int error);
+    void removeByStatus(final Status status);
+    void removeByGroupId(@NonNull final String groupId, final Status status);
+    @NonNull List<SegmentInfo> querySegments(final long id);
+    void saveSegments(final long id, List<SegmentInfo> segments);
+    void removeSegments(final long id);
 }
@@ -2,34 +2,100 @@ package com.tonyodev.fetch2;
 
 import android.arch.persistence.room.Room;
 import android.content.Context;
+import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 final class DatabaseManager implements Disposable {
 
+    /**
+     * SQLite allows at most 999 bound arguments per statement, so id sets are
+     * updated in chunks of this size.
+     * */
+    static final int MAX_IDS_PER_STATEMENT = 900;
+
+    /**
+     * The index is loaded by keyset pages of this size, so a large table never has to
+     * fit in a single cursor.
+     * */
+    static final int LOAD_PAGE_SIZE = 500;
+
     private volatile boolean isDisposed;
     private final FetchDatabase db;
+    private final RequestIndex requestIndex;
+    private final Object transactionLock;
+    private volatile boolean isIndexLoaded;
 
-    static DatabaseManager newInstance(Context context, String name) {
-        return new DatabaseManager(context,name);
+    static DatabaseManager newInstance(Context context, String name, GroupAggregator groupAggregator) {
+        return new DatabaseManager(context,name,groupAggregator);
     }
 
-    private DatabaseManager(Context context, String name) {
+    private DatabaseManager(Context context, String name, GroupAggregator groupAggregator) {
 
         db = Room.databaseBuilder(context,
-                FetchDatabase.class, name.concat(".db")).build();
+                FetchDatabase.class, name.concat(".db"))
+                .addMigrations(FetchDatabase.MIGRATIONS)
+                .build();
 
+        this.requestIndex = new RequestIndex(groupAggregator);
+        this.transactionLock = new Object();
+        this.isIndexLoaded = false;
         this.isDisposed = false;
     }
 
+    /**
+     * Runs onExecute inside a database transaction. The transaction is rolled back if
+     * onExecute throws. onPostExecute runs after the transaction has ended either way,
+     * so it is the place for work that should not hold the database lock.
+     *
+     * Reads are served from the RequestIndex. Writes are staged by the transaction and
+     * only applied to the RequestIndex once it has committed, so other threads never see
+     * changes that may still roll back. On rollback the staged changes are dropped.
+     * Transactions and the application of their changes are serialized, so the index
+     * takes the changes in commit order.
+     * */
     void executeTransaction(final Transaction transaction) {
 
+        final RealmDatabase database = new RealmDatabase(db,requestIndex);
+
+        try {
+            loadIndexIfNeeded();
+            transaction.onPreExecute();
+
+            synchronized (transactionLock) {
+                db.runInTransaction(new Runnable() {
+                    @Override
+                    public void run() {
+                        transaction.onExecute(database);
+                    }
+                });
+                database.applyStaged();
+            }
+        }catch (Exception e) {
+            e.printStackTrace();
+        }finally {
+            transaction.onPostExecute();
+        }
+    }
+
+    /**
+     * Runs a read only transaction against the RequestIndex, without opening a database
+     * transaction. Only the first read after startup touches the disk, to load the index.
+     * */
+    void executeRead(final Transaction transaction) {
+
         try {
+            loadIndexIfNeeded();
             transaction.onPreExecute();
-            transaction.onExecute(new RealmDatabase(db));
+            transaction.onExecute(new RealmDatabase(db,requestIndex));
         }catch (Exception e) {
             e.printStackTrace();
         }finally {
@@ -37,147 +103,408 @@ final class DatabaseManager implements Disposable {
         }
     }
 
+    private void loadIndexIfNeeded() {
+        if (!isIndexLoaded) {
+            synchronized (requestIndex) {
+                if (!isIndexLoaded) {
+                    List<RequestData> list = new ArrayList<>();
+                    List<RequestData> page = toRequestDataList(db.requestInfoDao().queryPage(LOAD_PAGE_SIZE));
+
+                    while (!page.isEmpty()) {
+                        list.addAll(page);
+
+                        if (page.size() < LOAD_PAGE_SIZE) {
+                            break;
+                        }
+
+                        long lastId = page.get(page.size() - 1).getId();
+                        page = toRequestDataList(db.requestInfoDao().queryPage(lastId,LOAD_PAGE_SIZE));
+                    }
+
+                    requestIndex.load(list);
+                    isIndexLoaded = true;
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private static List<RequestData> toRequestDataList(@Nullable List<RequestInfo> requestInfoList) {
+        List<RequestData> list = new ArrayList<>();
+
+        if (requestInfoList == null) {
+            return list;
+        }
+
+        for (RequestInfo requestInfo : requestInfoList) {
+            list.add(requestInfo.toRequestData());
+        }
+
+        return list;
+    }
+
     private static class RealmDatabase implements Database {
 
         private final FetchDatabase fetchDatabase;
+        private final RequestIndex requestIndex;
+        private final Map<Long,RequestData> staged;
 
-        public RealmDatabase(FetchDatabase fetchDatabase) {
+        public RealmDatabase(FetchDatabase fetchDatabase, RequestIndex requestIndex) {
             this.fetchDatabase = fetchDatabase;
+            this.requestIndex = requestIndex;
+            this.staged = new LinkedHashMap<>();
         }
 
         @Override
         public boolean contains(long id) {
-
-            RequestInfo requestInfo = fetchDatabase.requestInfoDao().query(id);
-
-            if (requestInfo == null) {
-                return false;
-            }
-
-            return true;
+            return get(id) != null;
         }
 
         @Override
-        public boolean insert(final long id,final String url,final String absoluteFilePath,String groupId) {
-            if(contains(id)) {
+        public boolean insert(final Request request) {
+            if(contains(request.getId())) {
                 return false;
             }
 
-            RequestInfo requestInfo = RequestInfo.newInstance(id,url,absoluteFilePath,groupId);
+            RequestInfo requestInfo = RequestInfo.newInstance(request);
             long inserted = fetchDatabase.requestInfoDao().insert(requestInfo);
 
             if (inserted == -1) {
                 return false;
             }
 
+            staged.put(request.getId(),requestInfo.toRequestData());
             return true;
         }
 
+        /**
+         * Inserts a batch with a single DAO call. Ids that are already stored or repeated
+         * in the batch are rejected in memory. Rows that clash with a stored file path
+         * are ignored by the database and rejected as well.
+         *
+         * @return whether each request was inserted, in the order of requests.
+         * */
         @Override
         @NonNull
-       public  List<RequestData> queryByStatus(int status) {
-            List<RequestData> list = new ArrayList<>();
-
-            List<RequestInfo> requestInfos = fetchDatabase.requestInfoDao().queryByStatus(status);
+        public boolean[] insert(@NonNull final List<Request> requests) {
+            boolean[] inserted = new boolean[requests.size()];
+            List<RequestInfo> requestInfoList = new ArrayList<>(requests.size());
+            List<Integer> positions = new ArrayList<>(requests.size());
+            Set<Long> ids = new HashSet<>();
+
+            for (int i = 0; i < requests.size(); i++) {
+                Request request = requests.get(i);
+
+                if (request != null && !contains(request.getId()) && ids.add(request.getId())) {
+                    requestInfoList.add(RequestInfo.newInstance(request));
+                    positions.add(i);
+                }
+            }
 
-            if (requestInfos == null) {
-                return list;
+            if (requestInfoList.isEmpty()) {
+                return inserted;
             }
 
+            List<Long> rowIds = fetchDatabase.requestInfoDao().insert(requestInfoList);
 
-            for (RequestInfo requestInfo : requestInfos) {
-                list.add(requestInfo.toRequestData());
+            for (int i = 0; i < rowIds.size(); i++) {
+                if (rowIds.get(i) != -1) {
+                    RequestInfo requestInfo = requestInfoList.get(i);
+                    inserted[positions.get(i)] = true;
+                    staged.put(requestInfo.getId(),requestInfo.toRequestData());
+                }
             }
 
-            return list;
+            return inserted;
+        }
+
+        @Override
+        @NonNull
+       public  List<RequestData> queryByStatus(int status) {
+            Status value = Status.valueOf(status);
+            return overlay(requestIndex.getByStatus(value),value,null);
         }
 
         @Override
         @Nullable
         public RequestData query(final long id) {
-            RequestData requestData = null;
+            return get(id);
+        }
 
-            RequestInfo requestInfo = fetchDatabase.requestInfoDao().query(id);
+        @Override
+        @NonNull
+        public List<RequestData> query() {
+            return overlay(requestIndex.getAll(),null,null);
+        }
 
-            if (requestInfo != null) {
-                requestData = requestInfo.toRequestData();
-            }
+        @Override
+        @NonNull
+        public List<RequestData> query(long[] ids) {
+            return get(ids);
+        }
 
-            return requestData;
+        @Override
+        @NonNull
+        public List<RequestData> queryPage(@Nullable Long afterId, int limit) {
+            return requestIndex.getPage(afterId,limit);
         }
 
         @Override
         @NonNull
-        public List<RequestData> query() {
-            List<RequestData> list = new ArrayList<>();
+        public List<RequestData> query(@NonNull RequestQuery requestQuery) {
+            Cursor cursor = fetchDatabase.query(requestQuery.getSql(),requestQuery.getArgs());
 
-            List<RequestInfo> requestInfoList = fetchDatabase.requestInfoDao().query();
+            try {
+                long[] ids = new long[cursor.getCount()];
 
-            if (requestInfoList == null) {
-                return list;
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    ids[i] = cursor.getLong(0);
+                }
+
+                return get(ids);
+            }finally {
+                cursor.close();
             }
+        }
+
+        @NonNull
+        @Override
+        public List<RequestData> queryByGroupId(String groupId) {
+            return overlay(requestIndex.getByGroupId(groupId),null,groupId);
+        }
 
-            for (RequestInfo requestInfo : requestInfoList) {
-                list.add(requestInfo.toRequestData());
+        @Override
+        public void updateDownloadedBytes(final long id,final long downloadedBytes) {
+            fetchDatabase.requestInfoDao().updateDownloadedBytes(id,downloadedBytes);
+
+            RequestData requestData = get(id);
+
+            if (requestData != null) {
+                staged.put(id,requestData.withBytes(downloadedBytes,requestData.getTotalBytes()));
             }
+        }
 
-            return list;
+        @Override
+        public void setDownloadedBytesAndTotalBytes(final long id, final long downloadedBytes, final long totalBytes){
+            fetchDatabase.requestInfoDao().setDownloadedBytesAndTotalBytes(id,downloadedBytes,totalBytes);
+
+            RequestData requestData = get(id);
+
+            if (requestData != null) {
+                staged.put(id,requestData.withBytes(downloadedBytes,
+                        totalBytes < 0 ? requestData.getTotalBytes() : totalBytes));
+            }
         }
 
         @Override
-        @NonNull
-        public List<RequestData> query(long[] ids) {
-            List<RequestData> list = new ArrayList<>();
+        public void setDigestState(final long id, @Nullable final byte[] digestState) {
+            fetchDatabase.requestInfoDao().setDigestState(id,digestState);
+
+            RequestData requestData = get(id);
+
+            if (requestData != null) {
+                staged.put(id,requestData.withDigestState(digestState));
+            }
+        }
 
-            List<RequestInfo> requestInfos = fetchDatabase.requestInfoDao().query(ids);
+        @Override
+        public void remove(final long id) {
+            fetchDatabase.requestInfoDao().remove(id);
+            fetchDatabase.segmentInfoDao().remove(id);
 
-            if (requestInfos == null) {
-             return list;
+            staged.put(id,null);
+        }
+
+        @Override
+        public void remove(final long[] ids) {
+            for (int start = 0; start < ids.length; start += MAX_IDS_PER_STATEMENT) {
+                long[] chunk = chunk(ids,start);
+                fetchDatabase.requestInfoDao().remove(chunk);
+                fetchDatabase.segmentInfoDao().remove(chunk);
             }
 
-            for (RequestInfo requestInfo : requestInfos) {
-                list.add(requestInfo.toRequestData());
+            for (long id : ids) {
+                staged.put(id,null);
             }
+        }
 
-            return list;
+        @Override
+        public void setStatusAndError(final long id,final Status status, final int error) {
+            fetchDatabase.requestInfoDao().setStatusAndError(id,status.getValue(),error);
+            stageStatusAndError(id,status,error);
         }
 
-        @NonNull
         @Override
-        public List<RequestData> queryByGroupId(String groupId) {
-            List<RequestData> list = new ArrayList<>();
+        public void setStatusAndError(final long[] ids, final Status status, final int error) {
+            for (int start = 0; start < ids.length; start += MAX_IDS_PER_STATEMENT) {
+                fetchDatabase.requestInfoDao().setStatusAndError(chunk(ids,start),status.getValue(),error);
+            }
 
-            List<RequestInfo> requestInfos = fetchDatabase.requestInfoDao().queryByGroupId(groupId);
+            for (long id : ids) {
+                stageStatusAndError(id,status,error);
+            }
+        }
 
-            if (requestInfos == null) {
-                return list;
+        @Override
+        public void setStatusAndErrorByStatus(final Status fromStatus, final Status status, final int error) {
+            List<RequestData> requestDataList = queryByStatus(fromStatus.getValue());
+            fetchDatabase.requestInfoDao().setStatusAndErrorByStatus(fromStatus.getValue(),status.getValue(),error);
+
+            for (RequestData requestData : requestDataList) {
+                staged.put(requestData.getId(),requestData.withStatus(status,error));
             }
+        }
 
-            for (RequestInfo requestInfo : requestInfos) {
-                list.add(requestInfo.toRequestData());
+        @Override
+        public void setStatusAndErrorByGroupId(@NonNull final String groupId, final Status fromStatus,
+                                               final Status status, final int error) {
+            List<RequestData> requestDataList = getByGroupId(groupId,fromStatus);
+            fetchDatabase.requestInfoDao().setStatusAndErrorByGroupId(groupId,fromStatus.getValue(),status.getValue(),error);
+
+            for (RequestData requestData : requestDataList) {
+                staged.put(requestData.getId(),requestData.withStatus(status,error));
             }
+        }
 
-            return list;
+        @Override
+        public void removeByStatus(final Status status) {
+            List<RequestData> requestDataList = queryByStatus(status.getValue());
+            fetchDatabase.segmentInfoDao().removeByStatus(status.getValue());
+            fetchDatabase.requestInfoDao().removeByStatus(status.getValue());
+
+            for (RequestData requestData : requestDataList) {
+                staged.put(requestData.getId(),null);
+            }
         }
 
         @Override
-        public void updateDownloadedBytes(final long id,final long downloadedBytes) {
-            fetchDatabase.requestInfoDao().updateDownloadedBytes(id,downloadedBytes);
+        public void removeByGroupId(@NonNull final String groupId, final Status status) {
+            List<RequestData> requestDataList = getByGroupId(groupId,status);
+            fetchDatabase.segmentInfoDao().removeByGroupId(groupId,status.getValue());
+            fetchDatabase.requestInfoDao().removeByGroupId(groupId,status.getValue());
+
+            for (RequestData requestData : requestDataList) {
+                staged.put(requestData.getId(),null);
+            }
         }
 
         @Override
-        public void setDownloadedBytesAndTotalBytes(final long id, final long downloadedBytes, final long totalBytes){
-            fetchDatabase.requestInfoDao().setDownloadedBytesAndTotalBytes(id,downloadedBytes,totalBytes);
+        @NonNull
+        public List<SegmentInfo> querySegments(final long id) {
+            List<SegmentInfo> segmentInfos = fetchDatabase.segmentInfoDao().query(id);
+
+            if (segmentInfos == null) {
+                return new ArrayList<>();
+            }
+
+            return segmentInfos;
         }
 
         @Override
-        public void remove(final long id) {
-            fetchDatabase.requestInfoDao().remove(id);
+        public void saveSegments(final long id, List<SegmentInfo> segments) {
+            fetchDatabase.segmentInfoDao().insert(segments);
         }
 
         @Override
-        public void setStatusAndError(final long id,final Status status, final int error) {
-            fetchDatabase.requestInfoDao().setStatusAndError(id,status.getValue(),error);
+        public void removeSegments(final long id) {
+            fetchDatabase.segmentInfoDao().remove(id);
+        }
+
+        /**
+         * Hands the changes of the committed transaction to the RequestIndex.
+         * */
+        void applyStaged() {
+            if (!staged.isEmpty()) {
+                requestIndex.apply(staged);
+                staged.clear();
+            }
+        }
+
+        /**
+         * @return the request as this transaction sees it, with its own staged changes.
+         * */
+        @Nullable
+        private RequestData get(long id) {
+            if (staged.containsKey(id)) {
+                return staged.get(id);
+            }
+
+            return requestIndex.get(id);
+        }
+
+        @NonNull
+        private List<RequestData> get(long[] ids) {
+            if (staged.isEmpty()) {
+                return requestIndex.get(ids);
+            }
+
+            List<RequestData> list = new ArrayList<>(ids.length);
+
+            for (long id : ids) {
+                RequestData requestData = get(id);
+
+                if (requestData != null) {
+                    list.add(requestData);
+                }
+            }
+
+            return list;
+        }
+
+        /**
+         * Replaces the requests of an index listing with their staged versions, dropping
+         * those that no longer match and adding staged requests that now do.
+         * */
+        @NonNull
+        private List<RequestData> overlay(List<RequestData> list, @Nullable Status status, @Nullable String groupId) {
+            if (staged.isEmpty()) {
+                return list;
+            }
+
+            List<RequestData> result = new ArrayList<>(list.size());
+
+            for (RequestData requestData : list) {
+                if (!staged.containsKey(requestData.getId())) {
+                    result.add(requestData);
+                }
+            }
+
+            for (RequestData requestData : staged.values()) {
+                if (requestData != null && (status == null || requestData.getStatus() == status)
+                        && (groupId == null || groupId.equals(requestData.getGroupId()))) {
+                    result.add(requestData);
+                }
+            }
+
+            return result;
+        }
+
+        private void stageStatusAndError(long id, Status status, int error) {
+            RequestData requestData = get(id);
+
+            if (requestData != null) {
+                staged.put(id,requestData.withStatus(status,error));
+            }
+        }
+
+        private List<RequestData> getByGroupId(String groupId, Status status) {
+            List<RequestData> requestDataList = queryByGroupId(groupId);
+
+            for (int i = requestDataList.size() - 1; i >= 0; i--) {
+                if (requestDataList.get(i).getStatus() != status) {
+                    requestDataList.remove(i);
+                }
+            }
+
+            return requestDataList;
+        }
+
+        private long[] chunk(long[] ids, int start) {
+            if (start == 0 && ids.length <= MAX_IDS_PER_STATEMENT) {
+                return ids;
+            }
+
+            return Arrays.copyOfRange(ids,start,Math.min(ids.length,start + MAX_IDS_PER_STATEMENT));
         }
     };
 
@@ -192,4 +519,4 @@ final class DatabaseManager implements Disposable {
     public boolean isDisposed() {
         return isDisposed;
     }
-}
\ No newline at end of file
+}
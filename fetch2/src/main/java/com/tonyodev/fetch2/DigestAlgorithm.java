@@ -0,0 +1,39 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+
+public enum DigestAlgorithm {
+    NONE(0, 0), MD5(1, 16), SHA1(2, 20), SHA256(3, 32), CRC32C(4, 4);
+
+    private int value;
+    private int digestLength;
+
+    DigestAlgorithm(int value, int digestLength) {
+        this.value = value;
+        this.digestLength = digestLength;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    int getDigestLength() {
+        return digestLength;
+    }
+
+    @NonNull
+    public static DigestAlgorithm valueOf(int digestAlgorithm) {
+        switch (digestAlgorithm) {
+            case 1:return MD5;
+            case 2:return SHA1;
+            case 3:return SHA256;
+            case 4:return CRC32C;
+            default:return NONE;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DigestAlgorithm: " + value;
+    }
+}
@@ -2,6 +2,12 @@ package com.tonyodev.fetch2;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 
@@ -9,9 +15,29 @@ final class DownloadHelper {
 
     private DownloadHelper() {}
 
-    static okhttp3.Request createHttpRequest(RequestData requestData) {
+    static final Comparator<RequestData> PRIORITY_COMPARATOR = new Comparator<RequestData>() {
+        @Override
+        public int compare(RequestData first, RequestData second) {
+            return second.getPriority().getValue() - first.getPriority().getValue();
+        }
+    };
+
+    static okhttp3.Request createHttpRequest(RequestData requestData, long startByte) {
+
+        okhttp3.Request.Builder builder = new okhttp3.Request.Builder();
+
+        builder.url(requestData.getUrl());
+
+        for (String key : requestData.getHeaders().keySet()) {
+            builder.addHeader(key,requestData.getHeaders().get(key));
+        }
+
+        builder.addHeader("Range","bytes=" + startByte + "-");
+        return builder.build();
+    }
+
+    static okhttp3.Request createHttpRequest(RequestData requestData, long startByte, long endByte) {
 
-        File file = new File(requestData.getAbsoluteFilePath());
         okhttp3.Request.Builder builder = new okhttp3.Request.Builder();
 
         builder.url(requestData.getUrl());
@@ -20,10 +46,29 @@ final class DownloadHelper {
             builder.addHeader(key,requestData.getHeaders().get(key));
         }
 
-        builder.addHeader("Range","bytes=" + file.length() + "-");
+        builder.addHeader("Range","bytes=" + startByte + "-" + endByte);
         return builder.build();
     }
 
+    static long getContentRangeTotal(String contentRange) {
+
+        if (contentRange == null) {
+            return -1;
+        }
+
+        int index = contentRange.lastIndexOf('/');
+
+        if (index == -1 || index == contentRange.length() - 1) {
+            return -1;
+        }
+
+        try {
+            return Long.valueOf(contentRange.substring(index + 1).trim());
+        }catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     static int calculateProgress(long downloadedBytes, long fileSize) {
 
         if (fileSize < 1 || downloadedBytes < 1) {
@@ -67,6 +112,16 @@ final class DownloadHelper {
         return file.exists() || file.createNewFile();
     }
 
+    static long[] getIds(List<RequestData> requestDataList) {
+        long[] ids = new long[requestDataList.size()];
+
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = requestDataList.get(i).getId();
+        }
+
+        return ids;
+    }
+
     static boolean canRetry(Status status) {
         switch (status) {
             case COMPLETED:
@@ -84,4 +139,112 @@ final class DownloadHelper {
                 return true;
         }
     }
+
+    /**
+     * Reads what the source has available into the buffer, blocking only until the
+     * first bytes arrive. A partly filled buffer is handed on right away, so a slow
+     * connection does not hold back progress, pauses or interruptions until a whole
+     * buffer has arrived. The buffer is flipped and ready to be written when this returns.
+     *
+     * @return number of bytes read, 0 if the thread was interrupted before any
+     * bytes arrived, or -1 if the source is exhausted.
+     * */
+    static int read(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int read = 0;
+
+        while (read == 0 && !Thread.currentThread().isInterrupted()) {
+            read = source.read(buffer);
+        }
+
+        buffer.flip();
+        return read;
+    }
+
+    /**
+     * Opens the output for a download according to its OutputStrategy. Preallocated and
+     * memory mapped outputs need a known length and otherwise fall back to appending.
+     * */
+    static FileOutput createFileOutput(RandomAccessFile file, OutputStrategy outputStrategy,
+                                       long position, long totalBytes) throws IOException {
+
+        if (outputStrategy == OutputStrategy.DEFAULT || totalBytes < 1) {
+            if (position == 0) {
+                file.setLength(0);
+            }
+            return new ChannelFileOutput(file.getChannel(), position);
+        }
+
+        if (file.length() != totalBytes) {
+            file.setLength(totalBytes);
+        }
+
+        if (outputStrategy == OutputStrategy.MEMORY_MAPPED) {
+            return new MappedFileOutput(file.getChannel(), position, totalBytes);
+        }
+
+        return new ChannelFileOutput(file.getChannel(), position);
+    }
+
+    static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Returns a digest covering the first position bytes of the file. The saved state is
+     * reused when it is not ahead of the file, so only the bytes written after the last
+     * progress flush are read back. Otherwise the prefix is hashed from the start.
+     * */
+    static StreamingDigest createDigest(RequestData requestData, File file, long position) throws IOException {
+        StreamingDigest digest = StreamingDigest.restore(requestData.getDigestAlgorithm(), requestData.getDigestState());
+
+        if (digest == null || digest.getLength() > position) {
+            digest = StreamingDigest.newInstance(requestData.getDigestAlgorithm());
+        }
+
+        updateDigest(digest, file, position);
+        return digest;
+    }
+
+    /**
+     * Hashes the bytes of the file from the current digest length up to end.
+     * */
+    static void updateDigest(StreamingDigest digest, File file, long end) throws IOException {
+        if (digest.getLength() >= end) {
+            return;
+        }
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        FileChannel channel = input.getChannel();
+        ByteBuffer buffer = ByteBufferPool.acquire();
+
+        try {
+            long position = digest.getLength();
+
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+
+                if (read == -1) {
+                    throw new IOException("checksum mismatch");
+                }
+
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+        }finally {
+            ByteBufferPool.release(buffer);
+            input.close();
+        }
+    }
 }
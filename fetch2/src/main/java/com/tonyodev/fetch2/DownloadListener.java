@@ -10,4 +10,5 @@ interface DownloadListener {
     void onPause(long id, int progress, long downloadedBytes, long totalBytes);
     void onCancelled(long id, int progress, long downloadedBytes, long totalBytes);
     void onRemoved(long id, int progress, long downloadedBytes, long totalBytes);
+    void onQueued(long id, int progress, long downloadedBytes, long totalBytes);
 }
@@ -2,13 +2,18 @@ package com.tonyodev.fetch2;
 
 
 import android.content.Context;
+import android.support.annotation.Nullable;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -16,33 +21,57 @@ import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.BufferedSource;
 
 
 final class DownloadManager implements Disposable {
 
+    private static final Set<Status> RETRYABLE = EnumSet.noneOf(Status.class);
+    private static final Set<Status> CANCELLABLE = EnumSet.noneOf(Status.class);
+
+    static {
+        for (Status status : Status.values()) {
+            if (DownloadHelper.canRetry(status)) {
+                RETRYABLE.add(status);
+            }
+
+            if (DownloadHelper.canCancel(status)) {
+                CANCELLABLE.add(status);
+            }
+        }
+    }
+
     private final Context context;
     private final OkHttpClient okHttpClient;
     private final DatabaseManager databaseManager;
+    private final ProgressStore progressStore;
+    private final DownloadScheduler downloadScheduler;
+    private final BandwidthLimiter bandwidthLimiter;
     private final DownloadListener downloadListener;
     private final ConcurrentHashMap<Long,DownloadRunnable> downloadsMap;
+    private final ConcurrentHashMap<Long,TransferStats> transferStatsMap;
     private volatile boolean isDisposed;
-    private final ActionProcessor<Runnable> actionProcessor;
 
-    static DownloadManager newInstance(Context context, DatabaseManager databaseManager,
-                                       OkHttpClient client, DownloadListener downloadListener, ActionProcessor<Runnable> actionProcessor) {
-        return new DownloadManager(context,databaseManager,client,downloadListener,actionProcessor);
+    static DownloadManager newInstance(Context context, DatabaseManager databaseManager, ProgressStore progressStore,
+                                       DownloadScheduler downloadScheduler, BandwidthLimiter bandwidthLimiter, OkHttpClient client,
+                                       DownloadListener downloadListener) {
+        return new DownloadManager(context,databaseManager,progressStore,downloadScheduler,bandwidthLimiter,client,
+                downloadListener);
     }
 
-    private DownloadManager(Context context,DatabaseManager databaseManager,
-                            OkHttpClient client,DownloadListener downloadListener,
-                            ActionProcessor<Runnable> actionProcessor) {
+    private DownloadManager(Context context,DatabaseManager databaseManager,ProgressStore progressStore,
+                            DownloadScheduler downloadScheduler,BandwidthLimiter bandwidthLimiter,OkHttpClient client,
+                            DownloadListener downloadListener) {
         this.isDisposed = false;
         this.context = context;
         this.databaseManager = databaseManager;
+        this.progressStore = progressStore;
+        this.downloadScheduler = downloadScheduler;
+        this.bandwidthLimiter = bandwidthLimiter;
         this.okHttpClient = client;
         this.downloadListener = downloadListener;
         this.downloadsMap = new ConcurrentHashMap<>();
-        this.actionProcessor = actionProcessor;
+        this.transferStatsMap = new ConcurrentHashMap<>();
     }
 
     void pause(long id) {
@@ -51,7 +80,6 @@ final class DownloadManager implements Disposable {
         }
 
         interrupt(id, InterruptReason.PAUSED);
-        actionProcessor.processNext();
     }
 
     void pauseAll() {
@@ -60,7 +88,18 @@ final class DownloadManager implements Disposable {
         }
 
         interruptAll(InterruptReason.PAUSED);
-        actionProcessor.processNext();
+    }
+
+    void pauseGroup(String groupId) {
+        if (isDisposed) {
+            return;
+        }
+
+        for (Map.Entry<Long,DownloadRunnable> entry : downloadsMap.entrySet()) {
+            if (groupId.equals(entry.getValue().getGroupId())) {
+                interrupt(entry.getKey(), InterruptReason.PAUSED);
+            }
+        }
     }
 
     void resume(final long id) {
@@ -68,7 +107,7 @@ final class DownloadManager implements Disposable {
             return;
         }
 
-        databaseManager.executeTransaction(new Transaction() {
+        databaseManager.executeTransaction(new AbstractTransaction<RequestData>() {
 
             @Override
             public void onPreExecute() {
@@ -80,54 +119,54 @@ final class DownloadManager implements Disposable {
                 if(!downloadsMap.containsKey(id)){
                     RequestData requestData = database.query(id);
                     if(requestData != null && DownloadHelper.canRetry(requestData.getStatus())) {
-                        database.setStatusAndError(id, Status.DOWNLOADING, Error.NONE.getValue());
-                        download(requestData);
+                        database.setStatusAndError(id, Status.QUEUED, Error.NONE.getValue());
+                        setValue(requestData);
                     }
                 }
             }
 
             @Override
             public void onPostExecute() {
-
+                download(getValue());
             }
         });
-
-        actionProcessor.processNext();
     }
 
     void resumeAll() {
+        resumeAll(null);
+    }
+
+    void resumeGroup(String groupId) {
+        resumeAll(groupId);
+    }
+
+    private void resumeAll(@Nullable final String groupId) {
         if (isDisposed) {
             return;
         }
 
-        databaseManager.executeTransaction(new Transaction() {
+        databaseManager.executeTransaction(new AbstractTransaction<List<RequestData>>() {
 
             @Override
             public void onPreExecute() {
-
+                setValue(new ArrayList<RequestData>());
             }
 
             @Override
             public void onExecute(Database database) {
-                List<RequestData> requestDataList = database.query();
-
-                for (RequestData requestData : requestDataList) {
-
-                    if(!downloadsMap.containsKey(requestData.getId())
-                            && DownloadHelper.canRetry(requestData.getStatus())){
-                        database.setStatusAndError(requestData.getId(), Status.DOWNLOADING, Error.NONE.getValue());
-                        download(requestData);
-                    }
-                }
+                List<RequestData> resumed = setStatusAndError(database, groupId, RETRYABLE, Status.QUEUED,
+                        new ArrayList<Long>());
+                Collections.sort(resumed, DownloadHelper.PRIORITY_COMPARATOR);
+                setValue(resumed);
             }
 
             @Override
             public void onPostExecute() {
-
+                for (RequestData requestData : getValue()) {
+                    download(requestData);
+                }
             }
         });
-
-        actionProcessor.processNext();
     }
 
     void retry(long id) {
@@ -139,7 +178,9 @@ final class DownloadManager implements Disposable {
             return;
         }
 
-        databaseManager.executeTransaction(new Transaction() {
+        databaseManager.executeTransaction(new AbstractTransaction<RequestData>() {
+
+            private boolean running;
 
             @Override
             public void onPreExecute() {
@@ -151,65 +192,74 @@ final class DownloadManager implements Disposable {
                 RequestData requestData = database.query(id);
 
                 if(requestData != null && DownloadHelper.canCancel(requestData.getStatus())) {
+                    running = downloadsMap.containsKey(id);
 
-                    if(downloadsMap.containsKey(requestData.getId())) {
-                        interrupt(requestData.getId(), InterruptReason.CANCELLED);
-                    }else {
+                    if(!running) {
                         database.setStatusAndError(id, Status.CANCELLED, Error.NONE.getValue());
-                        downloadListener.onCancelled(id, DownloadHelper.calculateProgress(requestData.getDownloadedBytes(), requestData.getTotalBytes())
-                                , requestData.getDownloadedBytes(), requestData.getTotalBytes());
                     }
+
+                    setValue(requestData);
                 }
             }
 
             @Override
             public void onPostExecute() {
+                RequestData requestData = getValue();
+
+                if (requestData == null) {
+                    return;
+                }
 
+                if (running) {
+                    interrupt(id, InterruptReason.CANCELLED);
+                } else {
+                    downloadListener.onCancelled(id, DownloadHelper.calculateProgress(requestData.getDownloadedBytes(), requestData.getTotalBytes())
+                            , requestData.getDownloadedBytes(), requestData.getTotalBytes());
+                }
             }
         });
-        actionProcessor.processNext();
     }
 
     void cancelAll() {
+        cancelAll(null);
+    }
+
+    void cancelGroup(String groupId) {
+        cancelAll(groupId);
+    }
+
+    private void cancelAll(@Nullable final String groupId) {
         if (isDisposed) {
             return;
         }
 
-        databaseManager.executeTransaction(new Transaction() {
+        databaseManager.executeTransaction(new AbstractTransaction<List<RequestData>>() {
+
+            private final List<Long> running = new ArrayList<>();
 
             @Override
             public void onPreExecute() {
-
+                setValue(new ArrayList<RequestData>());
             }
 
             @Override
             public void onExecute(Database database) {
-                List<RequestData> list = database.query();
-
-                for (RequestData requestData : list) {
-
-                    if(DownloadHelper.canCancel(requestData.getStatus())) {
-
-                        if(downloadsMap.containsKey(requestData.getId())){
-                            interrupt(requestData.getId(), InterruptReason.CANCELLED);
-
-                        }else {
-
-                            database.setStatusAndError(requestData.getId(), Status.CANCELLED, Error.NONE.getValue());
-                            downloadListener.onCancelled(requestData.getId(),
-                                    DownloadHelper.calculateProgress(requestData.getDownloadedBytes(), requestData.getTotalBytes())
-                                    , requestData.getDownloadedBytes(), requestData.getTotalBytes());
-                        }
-                    }
-                }
+                setValue(setStatusAndError(database, groupId, CANCELLABLE, Status.CANCELLED, running));
             }
 
             @Override
             public void onPostExecute() {
+                for (Long id : running) {
+                    interrupt(id, InterruptReason.CANCELLED);
+                }
 
+                for (RequestData requestData : getValue()) {
+                    downloadListener.onCancelled(requestData.getId(),
+                            DownloadHelper.calculateProgress(requestData.getDownloadedBytes(), requestData.getTotalBytes())
+                            , requestData.getDownloadedBytes(), requestData.getTotalBytes());
+                }
             }
         });
-        actionProcessor.processNext();
     }
 
     void remove(final long id) {
@@ -221,7 +271,7 @@ final class DownloadManager implements Disposable {
             interrupt(id, InterruptReason.REMOVED);
         }else {
 
-            databaseManager.executeTransaction(new Transaction() {
+            databaseManager.executeTransaction(new AbstractTransaction<RequestData>() {
 
                 @Override
                 public void onPreExecute() {
@@ -233,60 +283,159 @@ final class DownloadManager implements Disposable {
                     RequestData requestData = database.query(id);
                     if(requestData != null) {
                         database.remove(id);
-
-                        downloadListener.onRemoved(id,
-                                DownloadHelper.calculateProgress(requestData.getDownloadedBytes(), requestData.getTotalBytes())
-                                , requestData.getDownloadedBytes(), requestData.getTotalBytes());
+                        setValue(requestData);
                     }
                 }
 
                 @Override
                 public void onPostExecute() {
+                    RequestData requestData = getValue();
+
+                    if (requestData != null) {
+                        transferStatsMap.remove(id);
+                        bandwidthLimiter.removeRequest(id);
 
+                        downloadListener.onRemoved(id,
+                                DownloadHelper.calculateProgress(requestData.getDownloadedBytes(), requestData.getTotalBytes())
+                                , requestData.getDownloadedBytes(), requestData.getTotalBytes());
+                    }
                 }
             });
         }
-
-        actionProcessor.processNext();
     }
 
     void removeAll() {
+        removeAll(null);
+    }
+
+    void removeGroup(String groupId) {
+        removeAll(groupId);
+    }
+
+    private void removeAll(@Nullable final String groupId) {
         if (isDisposed) {
             return;
         }
 
-        databaseManager.executeTransaction(new Transaction() {
+        databaseManager.executeTransaction(new AbstractTransaction<List<RequestData>>() {
+
+            private final List<Long> running = new ArrayList<>();
 
             @Override
             public void onPreExecute() {
-
+                setValue(new ArrayList<RequestData>());
             }
 
             @Override
             public void onExecute(Database database) {
-                List<RequestData> list = database.query();
-
-                for (RequestData requestData : list) {
+                List<RequestData> removed = new ArrayList<>();
 
-                    if(downloadsMap.containsKey(requestData.getId())){
-                        interrupt(requestData.getId(), InterruptReason.REMOVED);
+                for (Status status : Status.values()) {
+                    List<RequestData> idle = new ArrayList<>();
 
-                    }else {
-                        database.remove(requestData.getId());
-                        downloadListener.onRemoved(requestData.getId(),
-                                DownloadHelper.calculateProgress(requestData.getDownloadedBytes(), requestData.getTotalBytes())
-                                , requestData.getDownloadedBytes(), requestData.getTotalBytes());
+                    if (partition(database, groupId, status, idle, running)) {
+                        if (groupId == null) {
+                            database.removeByStatus(status);
+                        } else {
+                            database.removeByGroupId(groupId, status);
+                        }
+                    } else {
+                        database.remove(DownloadHelper.getIds(idle));
                     }
+
+                    removed.addAll(idle);
                 }
+
+                setValue(removed);
             }
 
             @Override
             public void onPostExecute() {
+                for (Long id : running) {
+                    interrupt(id, InterruptReason.REMOVED);
+                }
 
+                for (RequestData requestData : getValue()) {
+                    transferStatsMap.remove(requestData.getId());
+                    bandwidthLimiter.removeRequest(requestData.getId());
+                    downloadListener.onRemoved(requestData.getId(),
+                            DownloadHelper.calculateProgress(requestData.getDownloadedBytes(), requestData.getTotalBytes())
+                            , requestData.getDownloadedBytes(), requestData.getTotalBytes());
+                }
             }
         });
+    }
+
+    /**
+     * Moves the stored requests with one of the statuses, of the group or of every group
+     * when groupId is null, to the new status. Requests handed to the scheduler are left
+     * alone and added to running. A status none of them is in is changed with a single
+     * set-based statement, the others by id. Every status is looked up before any of them
+     * is changed, so requests moved to one of the statuses are not picked up again.
+     *
+     * @return the requests that were changed, as they were before.
+     * */
+    private List<RequestData> setStatusAndError(Database database, @Nullable String groupId, Set<Status> statuses,
+                                                Status status, List<Long> running) {
+        Map<Status,List<RequestData>> idleByStatus = new EnumMap<>(Status.class);
+        Set<Status> setBased = EnumSet.noneOf(Status.class);
+
+        for (Status fromStatus : statuses) {
+            List<RequestData> idle = new ArrayList<>();
+
+            if (partition(database, groupId, fromStatus, idle, running)) {
+                setBased.add(fromStatus);
+            }
+
+            idleByStatus.put(fromStatus, idle);
+        }
+
+        List<RequestData> changed = new ArrayList<>();
+
+        for (Map.Entry<Status,List<RequestData>> entry : idleByStatus.entrySet()) {
+            Status fromStatus = entry.getKey();
+            List<RequestData> idle = entry.getValue();
+
+            if (!setBased.contains(fromStatus)) {
+                database.setStatusAndError(DownloadHelper.getIds(idle), status, Error.NONE.getValue());
+            } else if (groupId == null) {
+                database.setStatusAndErrorByStatus(fromStatus, status, Error.NONE.getValue());
+            } else {
+                database.setStatusAndErrorByGroupId(groupId, fromStatus, status, Error.NONE.getValue());
+            }
+
+            changed.addAll(idle);
+        }
+
+        return changed;
+    }
+
+    /**
+     * Splits the stored requests with the status, of the group or of every group when
+     * groupId is null, into the ones handed to the scheduler and the idle ones.
+     *
+     * @return true if there are idle requests and none of them is running.
+     * */
+    private boolean partition(Database database, @Nullable String groupId, Status status,
+                              List<RequestData> idle, List<Long> running) {
+        List<RequestData> list = groupId == null ? database.queryByStatus(status.getValue())
+                : database.queryByGroupId(groupId);
+        boolean allIdle = true;
+
+        for (RequestData requestData : list) {
+            if (requestData.getStatus() != status) {
+                continue;
+            }
 
-        actionProcessor.processNext();
+            if (downloadsMap.containsKey(requestData.getId())) {
+                running.add(requestData.getId());
+                allIdle = false;
+            } else {
+                idle.add(requestData);
+            }
+        }
+
+        return allIdle && !idle.isEmpty();
     }
 
     private void interrupt(long id,InterruptReason interruptReason) {
@@ -296,10 +445,8 @@ final class DownloadManager implements Disposable {
             if (downloadRunnable != null) {
                 downloadRunnable.interrupt(interruptReason);
 
-                try {
-                    downloadRunnable.getThread().join(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                if (downloadScheduler.unschedule(downloadRunnable)) {
+                    downloadRunnable.onUnscheduled();
                 }
             }
         }
@@ -315,37 +462,90 @@ final class DownloadManager implements Disposable {
             if (downloadRunnable != null) {
                 downloadRunnable.interrupt(reason);
 
-                try {
-                    downloadRunnable.getThread().join(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                if (downloadScheduler.unschedule(downloadRunnable)) {
+                    downloadRunnable.onUnscheduled();
                 }
             }
         }
     }
 
+    /**
+     * Starts requests that were just inserted and are already queued, handing them
+     * to the scheduler as one batch.
+     * */
+    void enqueue(List<RequestData> requestDataList) {
+        if (isDisposed) {
+            return;
+        }
+
+        List<DownloadRunnable> downloadRunnables = new ArrayList<>(requestDataList.size());
+
+        for (RequestData requestData : requestDataList) {
+            if (downloadsMap.containsKey(requestData.getId())) {
+                continue;
+            }
+
+            DownloadRunnable downloadRunnable = new DownloadRunnable(requestData);
+            downloadsMap.put(requestData.getId(),downloadRunnable);
+            downloadRunnables.add(downloadRunnable);
+        }
+
+        downloadScheduler.schedule(downloadRunnables);
+    }
+
     private void download(final RequestData requestData) {
         if(requestData == null || downloadsMap.containsKey(requestData.getId())) {
             return;
         }
 
         DownloadRunnable downloadRunnable = new DownloadRunnable(requestData);
-        Thread thread = new Thread(downloadRunnable);
-        downloadRunnable.setThread(thread);
         downloadsMap.put(requestData.getId(),downloadRunnable);
-        thread.start();
+        downloadScheduler.schedule(downloadRunnable);
+    }
+
+    @Nullable
+    TransferStats getTransferStats(long id) {
+        DownloadRunnable downloadRunnable = downloadsMap.get(id);
+
+        if (downloadRunnable != null) {
+            TransferPipeline pipeline = downloadRunnable.getPipeline();
+
+            if (pipeline != null) {
+                return pipeline.getStats();
+            }
+        }
+
+        return transferStatsMap.get(id);
+    }
+
+    void setMaxParallelDownloads(int maxParallelDownloads) {
+        if (isDisposed) {
+            return;
+        }
+
+        downloadScheduler.setMaxParallelDownloads(maxParallelDownloads);
+    }
+
+    void setGroupWeight(String groupId, int weight) {
+        if (isDisposed) {
+            return;
+        }
+
+        downloadScheduler.setGroupWeight(groupId, weight);
+        bandwidthLimiter.setGroupWeight(groupId, weight);
     }
 
-    private class DownloadRunnable implements Runnable {
+    private class DownloadRunnable implements DownloadScheduler.Task, BandwidthLimiter.Interruptible {
         private final RequestData request;
         private volatile boolean isInterrupted;
         private InterruptReason interruptReason;
-        private Thread thread;
+        private volatile SegmentedDownloader segmentedDownloader;
+        private volatile TransferPipeline pipeline;
 
         Response response = null;
         ResponseBody body = null;
-        BufferedInputStream input = null;
         RandomAccessFile output = null;
+        StreamingDigest digest = null;
         long downloadedBytes = 0L;
         long totalBytes = 0L;
         int progress = 0;
@@ -357,47 +557,101 @@ final class DownloadManager implements Disposable {
             this.isInterrupted = false;
         }
 
-        void setThread(Thread thread) {
-            this.thread = thread;
-        }
-
-        void interrupt(InterruptReason reason){
-            if(isInterrupted){
+        synchronized void interrupt(InterruptReason reason){
+            if(isInterrupted && interruptReason != InterruptReason.PREEMPTED){
                 return;
             }
             interruptReason = reason;
             isInterrupted = true;
-        }
 
-        Thread getThread() {
-            return thread;
+            SegmentedDownloader downloader = segmentedDownloader;
+            if(downloader != null) {
+                downloader.interrupt();
+            }
         }
 
-        boolean isInterrupted() {
+        @Override
+        public boolean isInterrupted() {
             return isInterrupted;
         }
 
+        TransferPipeline getPipeline() {
+            return pipeline;
+        }
+
+        @Override
+        public int getPriority() {
+            return request.getPriority().getValue();
+        }
+
+        @Override
+        public String getGroupId() {
+            return request.getGroupId();
+        }
+
+        @Override
+        public void preempt() {
+            interrupt(InterruptReason.PREEMPTED);
+        }
+
         @Override
         public void run() {
 
+            Thread thread = Thread.currentThread();
             String oldThreadName = thread.getName();
             thread.setName("DownloaderThread url:"+request.getUrl());
+            bandwidthLimiter.onDownloadStarted(request.getGroupId());
 
             try {
 
+                if (!isInterrupted()) {
+                    databaseManager.executeTransaction(new Transaction() {
+
+                        @Override
+                        public void onPreExecute() {
+
+                        }
+
+                        @Override
+                        public void onExecute(Database database) {
+                            database.setStatusAndError(request.getId(), Status.DOWNLOADING, Error.NONE.getValue());
+                        }
+
+                        @Override
+                        public void onPostExecute() {
+
+                        }
+                    });
+                }
+
                 File file = DownloadHelper.createFileOrThrow(request.getAbsoluteFilePath());
-                downloadedBytes = file.length();
+
+                if (request.getOutputStrategy() == OutputStrategy.DEFAULT) {
+                    downloadedBytes = file.length();
+                } else {
+                    downloadedBytes = Math.min(request.getDownloadedBytes(), file.length());
+                }
                 totalBytes = request.getTotalBytes();
                 progress = DownloadHelper.calculateProgress(totalBytes, downloadedBytes);
 
-                if (!isInterrupted()) {
+                boolean segmented = false;
 
-                    Call call = okHttpClient.newCall(DownloadHelper.createHttpRequest(request));
+                if (!isInterrupted() && request.getSegments() > 1) {
+                    segmented = downloadSegmented();
+                }
+
+                if (!segmented && !isInterrupted()) {
+
+                    Call call = okHttpClient.newCall(DownloadHelper.createHttpRequest(request, downloadedBytes));
                     response = call.execute();
                     body = response.body();
 
                     if(response.isSuccessful() && body != null && !isInterrupted()) {
 
+                        if (response.code() != HttpURLConnection.HTTP_PARTIAL) {
+                            downloadedBytes = 0;
+                        }
+
                         totalBytes = downloadedBytes + Long.valueOf(response.header("Content-Length"));
 
                         databaseManager.executeTransaction(new Transaction() {
@@ -418,78 +672,69 @@ final class DownloadManager implements Disposable {
                             }
                         });
 
-                        input = new BufferedInputStream(body.byteStream());
-                        output = new RandomAccessFile(request.getAbsoluteFilePath(), "rw");
-
-                        if (response.code() == HttpURLConnection.HTTP_PARTIAL) {
-                            output.seek(downloadedBytes);
-                        } else {
-                            output.seek(0);
+                        if (request.getDigestAlgorithm() != DigestAlgorithm.NONE) {
+                            digest = DownloadHelper.createDigest(request, file, downloadedBytes);
                         }
 
-                        byte[] buffer = new byte[1024];
-                        int read;
-                        long startTime, stopTime;
+                        BufferedSource source = body.source();
+                        output = new RandomAccessFile(request.getAbsoluteFilePath(), "rw");
+                        FileOutput fileOutput = DownloadHelper.createFileOutput(output,
+                                request.getOutputStrategy(), downloadedBytes, totalBytes);
+
+                        final long startBytes = downloadedBytes;
+                        pipeline = new TransferPipeline(request.getId(), source, fileOutput,
+                                downloadScheduler.getWriterExecutor(), digest);
 
-                        startTime = System.nanoTime();
-                        while((read = input.read(buffer, 0, 1024)) != -1 && !isInterrupted()) {
-                            output.write(buffer, 0, read);
-                            downloadedBytes += read;
+                        try {
+                            pipeline.transfer(new TransferPipeline.Callback() {
 
-                            databaseManager.executeTransaction(new Transaction() {
+                                long startTime = System.nanoTime();
 
                                 @Override
-                                public void onPreExecute() {
-
+                                public boolean isInterrupted() {
+                                    return DownloadRunnable.this.isInterrupted();
                                 }
 
                                 @Override
-                                public void onExecute(Database database) {
-                                    database.updateDownloadedBytes(request.getId(), downloadedBytes);
+                                public void onRead(int bytes) throws InterruptedException {
+                                    bandwidthLimiter.acquire(request.getId(), request.getGroupId(), bytes, DownloadRunnable.this);
                                 }
 
                                 @Override
-                                public void onPostExecute() {
+                                public void onProgress(long bytesWritten) {
+                                    downloadedBytes = startBytes + bytesWritten;
 
-                                }
-                            });
+                                    progressStore.update(request.getId(), downloadedBytes, totalBytes, digest);
 
-                            progress = DownloadHelper.calculateProgress(downloadedBytes,totalBytes);
+                                    progress = DownloadHelper.calculateProgress(downloadedBytes,totalBytes);
 
-                            stopTime = System.nanoTime();
-                            if (DownloadHelper.hasTwoSecondsPassed(startTime, stopTime)) {
-                                downloadListener.onProgress(request.getId(), progress, downloadedBytes, totalBytes);
-                                startTime = System.nanoTime();
-                            }
+                                    long stopTime = System.nanoTime();
+                                    if (DownloadHelper.hasTwoSecondsPassed(startTime, stopTime)) {
+                                        downloadListener.onProgress(request.getId(), progress, downloadedBytes, totalBytes);
+                                        startTime = System.nanoTime();
+                                    }
+                                }
+                            });
+                        }finally {
+                            transferStatsMap.put(request.getId(), pipeline.getStats());
+                            pipeline = null;
                         }
                     }else if(!response.isSuccessful()) {
                         throw new IOException("invalid server response");
                     }
                 }
 
-                databaseManager.executeTransaction(new Transaction() {
-
-                    @Override
-                    public void onPreExecute() {
-
-                    }
-
-                    @Override
-                    public void onExecute(Database database) {
-                        database.setDownloadedBytesAndTotalBytes(request.getId(), downloadedBytes, totalBytes);
-                    }
-
-                    @Override
-                    public void onPostExecute() {
-
-                    }
-                });
+                progressStore.flush(request.getId(), downloadedBytes, totalBytes, digest);
 
                 progress = DownloadHelper.calculateProgress(downloadedBytes, totalBytes);
                 downloadListener.onProgress(request.getId(), progress, downloadedBytes, totalBytes);
 
                 if (!isInterrupted()) {
 
+                    if (request.getDigestAlgorithm() != DigestAlgorithm.NONE) {
+                        verifyDigest(file);
+                    }
+
                     databaseManager.executeTransaction(new Transaction() {
 
                         @Override
@@ -500,6 +745,7 @@ final class DownloadManager implements Disposable {
                         @Override
                         public void onExecute(Database database) {
                             database.setStatusAndError(request.getId(), Status.COMPLETED, Error.NONE.getValue());
+                            database.removeSegments(request.getId());
                         }
 
                         @Override
@@ -510,82 +756,121 @@ final class DownloadManager implements Disposable {
 
                     downloadListener.onComplete(request.getId(), progress, downloadedBytes, totalBytes);
                 } else {
-                    switch (interruptReason) {
-                        case PAUSED: {
-
-                            databaseManager.executeTransaction(new Transaction() {
+                    onInterrupted();
+                }
+            }catch (Exception e){
+                final Error reason = ErrorUtils.getCode(e.getMessage());
 
-                                @Override
-                                public void onPreExecute() {
+                progressStore.flush(request.getId(), downloadedBytes, totalBytes, digest);
 
-                                }
+                if(!NetworkUtils.isNetworkAvailable(context) && reason == Error.HTTP_NOT_FOUND) {
 
-                                @Override
-                                public void onExecute(Database database) {
-                                    database.setStatusAndError(request.getId(), Status.PAUSED, Error.NONE.getValue());
-                                }
+                    databaseManager.executeTransaction(new Transaction() {
 
-                                @Override
-                                public void onPostExecute() {
+                        @Override
+                        public void onPreExecute() {
 
-                                }
-                            });
+                        }
 
-                            downloadListener.onPause(request.getId(), progress, downloadedBytes, totalBytes);
-                            break;
+                        @Override
+                        public void onExecute(Database database) {
+                            database.setStatusAndError(request.getId(), Status.ERROR, Error.NO_NETWORK_CONNECTION.getValue());
                         }
-                        case CANCELLED: {
 
-                            databaseManager.executeTransaction(new Transaction() {
+                        @Override
+                        public void onPostExecute() {
+
+                        }
+                    });
 
-                                @Override
-                                public void onPreExecute() {
+                }else{
+                    databaseManager.executeTransaction(new Transaction() {
 
-                                }
+                        @Override
+                        public void onPreExecute() {
 
-                                @Override
-                                public void onExecute(Database database) {
-                                    database.setStatusAndError(request.getId(), Status.CANCELLED, Error.NONE.getValue());
-                                }
+                        }
 
-                                @Override
-                                public void onPostExecute() {
+                        @Override
+                        public void onExecute(Database database) {
+                            database.setStatusAndError(request.getId(), Status.ERROR,reason.getValue());
+                        }
 
-                                }
-                            });
+                        @Override
+                        public void onPostExecute() {
 
-                            downloadListener.onCancelled(request.getId(), progress, downloadedBytes, totalBytes);
-                            break;
                         }
-                        case REMOVED: {
+                    });
+                }
 
-                            databaseManager.executeTransaction(new Transaction() {
+                downloadListener.onError(request.getId(),reason,progress,downloadedBytes,totalBytes);
+            }finally {
+                downloadsMap.remove(request.getId());
+                bandwidthLimiter.onDownloadFinished(request.getGroupId());
 
-                                @Override
-                                public void onPreExecute() {
+                if (isInterrupted() && interruptReason == InterruptReason.PREEMPTED) {
+                    requeue();
+                }
 
-                                }
+                if(response != null) {
+                    response.close();
+                }
+                if(body != null) {
+                    body.close();
+                }
+                if(output != null){
+                    try {
+                        output.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
 
-                                @Override
-                                public void onExecute(Database database) {
-                                    database.remove(request.getId());
-                                }
+                thread.setName(oldThreadName);
+            }
+        }
 
-                                @Override
-                                public void onPostExecute() {
+        /**
+         * Finishes a download that was interrupted while it was still waiting for a
+         * slot, without running it, so its file is not created and no slot is taken.
+         * */
+        void onUnscheduled() {
+            downloadsMap.remove(request.getId());
+            downloadedBytes = request.getDownloadedBytes();
+            totalBytes = request.getTotalBytes();
+            progress = DownloadHelper.calculateProgress(downloadedBytes, totalBytes);
+            onInterrupted();
+        }
 
-                                }
-                            });
+        /**
+         * Stores the status for the reason the download was interrupted and reports it.
+         * */
+        private void onInterrupted() {
+            switch (interruptReason) {
+                case PAUSED: {
+
+                    databaseManager.executeTransaction(new Transaction() {
+
+                        @Override
+                        public void onPreExecute() {
 
-                            downloadListener.onRemoved(request.getId(), progress, downloadedBytes, totalBytes);
-                            break;
                         }
-                    }
-                }
-            }catch (Exception e){
-                final Error reason = ErrorUtils.getCode(e.getMessage());
 
-                if(!NetworkUtils.isNetworkAvailable(context) && reason == Error.HTTP_NOT_FOUND) {
+                        @Override
+                        public void onExecute(Database database) {
+                            database.setStatusAndError(request.getId(), Status.PAUSED, Error.NONE.getValue());
+                        }
+
+                        @Override
+                        public void onPostExecute() {
+
+                        }
+                    });
+
+                    downloadListener.onPause(request.getId(), progress, downloadedBytes, totalBytes);
+                    break;
+                }
+                case CANCELLED: {
 
                     databaseManager.executeTransaction(new Transaction() {
 
@@ -596,7 +881,7 @@ final class DownloadManager implements Disposable {
 
                         @Override
                         public void onExecute(Database database) {
-                            database.setStatusAndError(request.getId(), Status.ERROR, Error.NO_NETWORK_CONNECTION.getValue());
+                            database.setStatusAndError(request.getId(), Status.CANCELLED, Error.NONE.getValue());
                         }
 
                         @Override
@@ -605,7 +890,40 @@ final class DownloadManager implements Disposable {
                         }
                     });
 
-                }else{
+                    downloadListener.onCancelled(request.getId(), progress, downloadedBytes, totalBytes);
+                    break;
+                }
+                case REMOVED: {
+
+                    databaseManager.executeTransaction(new AbstractTransaction<Long>() {
+
+                        @Override
+                        public void onPreExecute() {
+
+                        }
+
+                        @Override
+                        public void onExecute(Database database) {
+                            database.remove(request.getId());
+                            setValue(request.getId());
+                        }
+
+                        @Override
+                        public void onPostExecute() {
+                            Long id = getValue();
+
+                            if (id != null) {
+                                transferStatsMap.remove(id);
+                                bandwidthLimiter.removeRequest(id);
+                            }
+                        }
+                    });
+
+                    downloadListener.onRemoved(request.getId(), progress, downloadedBytes, totalBytes);
+                    break;
+                }
+                case PREEMPTED: {
+
                     databaseManager.executeTransaction(new Transaction() {
 
                         @Override
@@ -615,7 +933,7 @@ final class DownloadManager implements Disposable {
 
                         @Override
                         public void onExecute(Database database) {
-                            database.setStatusAndError(request.getId(), Status.ERROR,reason.getValue());
+                            database.setStatusAndError(request.getId(), Status.QUEUED, Error.NONE.getValue());
                         }
 
                         @Override
@@ -623,48 +941,123 @@ final class DownloadManager implements Disposable {
 
                         }
                     });
+
+                    downloadListener.onQueued(request.getId(), progress, downloadedBytes, totalBytes);
+                    break;
                 }
+            }
+        }
 
-                downloadListener.onError(request.getId(),reason,progress,downloadedBytes,totalBytes);
-            }finally {
-                downloadsMap.remove(request.getId());
+        /**
+         * Compares the finished checksum with the expected one. Segmented downloads write
+         * their ranges out of order, so their file is hashed here in a single pass. A
+         * corrupt file is deleted so a retry starts over instead of resuming.
+         * */
+        private void verifyDigest(File file) throws IOException {
+            if (digest == null) {
+                digest = StreamingDigest.newInstance(request.getDigestAlgorithm());
+            }
+
+            DownloadHelper.updateDigest(digest, file, downloadedBytes);
+            String actualDigest = digest.digest();
+            digest = null;
+
+            if (actualDigest.equals(request.getExpectedDigest())) {
+                return;
+            }
+
+            if (output != null) {
+                output.close();
+                output = null;
+            }
+
+            file.delete();
+            downloadedBytes = 0;
+            progress = 0;
+
+            databaseManager.executeTransaction(new Transaction() {
+
+                @Override
+                public void onPreExecute() {
 
-                if(response != null) {
-                    response.close();
                 }
-                if(body != null) {
-                    body.close();
+
+                @Override
+                public void onExecute(Database database) {
+                    database.setDigestState(request.getId(), null);
+                    database.removeSegments(request.getId());
                 }
-                if(output != null){
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+
+                @Override
+                public void onPostExecute() {
+
                 }
-                if(input != null) {
-                    try {
-                        input.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+            });
+
+            throw new IOException("checksum mismatch");
+        }
+
+        private void requeue() {
+            databaseManager.executeTransaction(new Transaction() {
+
+                @Override
+                public void onPreExecute() {
+
+                }
+
+                @Override
+                public void onExecute(Database database) {
+                    RequestData requestData = database.query(request.getId());
+
+                    if (requestData != null && requestData.getStatus() == Status.QUEUED) {
+                        download(requestData);
                     }
                 }
 
-                thread.setName(oldThreadName);
+                @Override
+                public void onPostExecute() {
+
+                }
+            });
+        }
+
+        private boolean downloadSegmented() throws Exception {
+            SegmentedDownloader downloader = new SegmentedDownloader(okHttpClient, databaseManager,
+                    downloadScheduler.getSegmentExecutor(), bandwidthLimiter, downloadListener, request);
+            segmentedDownloader = downloader;
+
+            if(isInterrupted()) {
+                downloader.interrupt();
+            }
+
+            if(!downloader.prepare()) {
+                segmentedDownloader = null;
+                return false;
             }
+
+            try {
+                downloader.download();
+            }finally {
+                downloadedBytes = downloader.getDownloadedBytes();
+                totalBytes = downloader.getTotalBytes();
+            }
+
+            return true;
         }
     }
 
     enum InterruptReason {
         PAUSED,
         CANCELLED,
-        REMOVED
+        REMOVED,
+        PREEMPTED
     }
 
     @Override
     public synchronized void dispose() {
         if(!isDisposed) {
             pauseAll();
+            downloadScheduler.shutdown();
             isDisposed = true;
         }
     }
@@ -0,0 +1,45 @@
+package com.tonyodev.fetch2;
+
+/**
+ * Latest progress of a download as delivered to a FetchBatchListener. Instances are
+ * reused once the batch callback returns, so copy the values to keep them.
+ */
+public final class DownloadProgress {
+
+    private long id;
+    private int progress;
+    private long downloadedBytes;
+    private long totalBytes;
+
+    DownloadProgress() {
+    }
+
+    void set(long id, int progress, long downloadedBytes, long totalBytes) {
+        this.id = id;
+        this.progress = progress;
+        this.downloadedBytes = downloadedBytes;
+        this.totalBytes = totalBytes;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getProgress() {
+        return progress;
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "{\"id\":" + id + ",\"progress\":" + progress + ",\"downloadedBytes\":" + downloadedBytes
+                + ",\"totalBytes\":" + totalBytes + "}";
+    }
+}
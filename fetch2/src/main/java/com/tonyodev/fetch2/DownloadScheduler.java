@@ -0,0 +1,273 @@
+package com.tonyodev.fetch2;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs downloads on a reusable worker pool. At most maxParallelDownloads run at the
+ * same time. Extra downloads wait in a pending queue and start as slots free up.
+ * The highest priority starts first. Within a priority, slots are shared between groupIds
+ * by weighted fair queuing. Each task gets a virtual finish time that advances by
+ * 1/weight per task in its group. Tasks start in finish time order, so a large group
+ * cannot hold back a small one and every group makes steady progress. Changing the
+ * limit never interrupts downloads that are already running.
+ *
+ * A pending task is unscheduled by marking its entry as removed, found through an
+ * identity map, so the heap is not searched. Removed entries are dropped when they
+ * reach the head of the queue.
+ *
+ * When preemption is enabled and no slot is free, scheduling a task pauses the lowest
+ * priority running task that ranks below it. The preempted task is expected to reschedule
+ * itself once it has stopped.
+ */
+final class DownloadScheduler {
+
+    static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 4;
+
+    static final int DEFAULT_GROUP_WEIGHT = 1;
+
+    interface Task extends Runnable {
+        int getPriority();
+        String getGroupId();
+        void preempt();
+    }
+
+    private final ExecutorService downloadExecutor;
+    private final ExecutorService segmentExecutor;
+    private final ExecutorService writerExecutor;
+    private final PriorityQueue<Entry> pending;
+    private final Map<Task,Entry> pendingEntries;
+    private final List<Entry> active;
+    private final Map<String,Group> groups;
+    private final boolean preemptionEnabled;
+    private int maxParallelDownloads;
+    private long sequence;
+    private double virtualTime;
+
+    DownloadScheduler(int maxParallelDownloads, boolean preemptionEnabled) {
+        this.downloadExecutor = Executors.newCachedThreadPool();
+        this.segmentExecutor = Executors.newCachedThreadPool();
+        this.writerExecutor = Executors.newCachedThreadPool();
+        this.pending = new PriorityQueue<>(11, ENTRY_COMPARATOR);
+        this.pendingEntries = new IdentityHashMap<>();
+        this.active = new ArrayList<>();
+        this.groups = new HashMap<>();
+        this.maxParallelDownloads = maxParallelDownloads;
+        this.preemptionEnabled = preemptionEnabled;
+        this.sequence = 0;
+        this.virtualTime = 0;
+    }
+
+    synchronized void schedule(Task task) {
+        add(task);
+        startNext();
+    }
+
+    /**
+     * Schedules a batch of tasks under a single lock, then starts as many as fit.
+     * */
+    synchronized void schedule(List<? extends Task> tasks) {
+        for (Task task : tasks) {
+            add(task);
+        }
+
+        startNext();
+    }
+
+    private void add(Task task) {
+        Group group = getGroup(task.getGroupId());
+        double startTime = Math.max(virtualTime, group.finishTime);
+        group.finishTime = startTime + 1.0 / group.weight;
+        group.pendingCount++;
+
+        Entry entry = new Entry(task, group, sequence++, startTime, group.finishTime);
+        pending.add(entry);
+        pendingEntries.put(task, entry);
+
+        if (preemptionEnabled && active.size() >= maxParallelDownloads) {
+            preemptFor(entry);
+        }
+    }
+
+    /**
+     * Removes a task that has not started yet.
+     *
+     * @return true if the task was still pending.
+     * */
+    synchronized boolean unschedule(Task task) {
+        Entry entry = pendingEntries.remove(task);
+
+        if (entry == null) {
+            return false;
+        }
+
+        entry.removed = true;
+        release(entry.group);
+        return true;
+    }
+
+    synchronized void setMaxParallelDownloads(int maxParallelDownloads) {
+        this.maxParallelDownloads = maxParallelDownloads;
+        startNext();
+    }
+
+    synchronized int getMaxParallelDownloads() {
+        return maxParallelDownloads;
+    }
+
+    /**
+     * Sets the share of download slots a group gets relative to other groups.
+     * Tasks already waiting keep the finish time they were given.
+     * */
+    synchronized void setGroupWeight(String groupId, int weight) {
+        getGroup(groupId).weight = weight;
+    }
+
+    /**
+     * Pool used by segmented downloads for their range connections. These threads
+     * do not count against the download limit.
+     * */
+    ExecutorService getSegmentExecutor() {
+        return segmentExecutor;
+    }
+
+    /**
+     * Pool that runs the disk write stage of each download's TransferPipeline.
+     * */
+    ExecutorService getWriterExecutor() {
+        return writerExecutor;
+    }
+
+    synchronized void shutdown() {
+        pending.clear();
+        pendingEntries.clear();
+        groups.clear();
+        downloadExecutor.shutdown();
+        segmentExecutor.shutdown();
+        writerExecutor.shutdown();
+    }
+
+    private void preemptFor(Entry entry) {
+        Entry victim = null;
+
+        for (Entry candidate : active) {
+            if (!candidate.preempted && candidate.priority < entry.priority
+                    && (victim == null || ENTRY_COMPARATOR.compare(candidate, victim) > 0)) {
+                victim = candidate;
+            }
+        }
+
+        if (victim != null) {
+            victim.preempted = true;
+            victim.task.preempt();
+        }
+    }
+
+    private void startNext() {
+        while (active.size() < maxParallelDownloads && !pending.isEmpty() && !downloadExecutor.isShutdown()) {
+            final Entry entry = pending.poll();
+
+            if (entry.removed) {
+                continue;
+            }
+
+            pendingEntries.remove(entry.task);
+            virtualTime = Math.max(virtualTime, entry.startTime);
+            release(entry.group);
+            active.add(entry);
+
+            downloadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        entry.task.run();
+                    }finally {
+                        onFinished(entry);
+                    }
+                }
+            });
+        }
+    }
+
+    private Group getGroup(String groupId) {
+        Group group = groups.get(groupId);
+
+        if (group == null) {
+            group = new Group(groupId);
+            groups.put(groupId, group);
+        }
+
+        return group;
+    }
+
+    private void release(Group group) {
+        group.pendingCount--;
+
+        if (group.pendingCount == 0 && group.weight == DEFAULT_GROUP_WEIGHT) {
+            groups.remove(group.groupId);
+        }
+    }
+
+    private synchronized void onFinished(Entry entry) {
+        active.remove(entry);
+        startNext();
+    }
+
+    private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry first, Entry second) {
+            if (first.priority != second.priority) {
+                return first.priority > second.priority ? -1 : 1;
+            }
+
+            if (first.finishTime != second.finishTime) {
+                return first.finishTime < second.finishTime ? -1 : 1;
+            }
+
+            return first.sequence < second.sequence ? -1 : (first.sequence == second.sequence ? 0 : 1);
+        }
+    };
+
+    private static final class Entry {
+        private final Task task;
+        private final Group group;
+        private final int priority;
+        private final long sequence;
+        private final double startTime;
+        private final double finishTime;
+        private boolean preempted;
+        private boolean removed;
+
+        Entry(Task task, Group group, long sequence, double startTime, double finishTime) {
+            this.task = task;
+            this.group = group;
+            this.priority = task.getPriority();
+            this.sequence = sequence;
+            this.startTime = startTime;
+            this.finishTime = finishTime;
+            this.preempted = false;
+            this.removed = false;
+        }
+    }
+
+    private static final class Group {
+        private final String groupId;
+        private int weight;
+        private int pendingCount;
+        private double finishTime;
+
+        Group(String groupId) {
+            this.groupId = groupId;
+            this.weight = DEFAULT_GROUP_WEIGHT;
+            this.pendingCount = 0;
+            this.finishTime = 0;
+        }
+    }
+}
@@ -20,7 +20,8 @@ public enum Error {
     NO_NETWORK_CONNECTION (12),
     BAD_URL (13),
     BAD_FILE_PATH (14),
-    INVALID_SERVER_RESPONSE(15);
+    INVALID_SERVER_RESPONSE(15),
+    CHECKSUM_MISMATCH(16);
 
     private int value;
 
@@ -52,6 +53,7 @@ public enum Error {
             case 13:return BAD_URL;
             case 14:return BAD_FILE_PATH;
             case 15:return INVALID_SERVER_RESPONSE;
+            case 16:return CHECKSUM_MISMATCH;
             default:return UNKNOWN;
         }
     }
@@ -35,6 +35,9 @@ final class ErrorUtils {
         else if(message.equalsIgnoreCase("invalid server response")){
             return Error.INVALID_SERVER_RESPONSE;
         }
+        else if(message.equalsIgnoreCase("checksum mismatch")){
+            return Error.CHECKSUM_MISMATCH;
+        }
         else {
             return Error.UNKNOWN;
         }
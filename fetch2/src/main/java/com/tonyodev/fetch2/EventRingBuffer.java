@@ -0,0 +1,154 @@
+package com.tonyodev.fetch2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi producer, single consumer queue of download events. Events are stored
+ * as primitives in preallocated parallel arrays, so publishing and draining never
+ * allocate. Producers claim a slot with a CAS on the head sequence, fill it in and
+ * then publish the slot's sequence number. The consumer only reads a slot once its
+ * sequence has been published.
+ */
+final class EventRingBuffer {
+
+    /**
+     * Longest time in milliseconds a blocked producer waits before checking for a free slot again.
+     * */
+    static final long PUT_WAIT_INTERVAL = 10;
+
+    interface Consumer {
+        void onEvent(int status, long id, int error, int progress, long downloadedBytes, long totalBytes);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int[] statuses;
+    private final long[] ids;
+    private final int[] errors;
+    private final int[] progresses;
+    private final long[] downloadedBytes;
+    private final long[] totalBytes;
+    private final AtomicLongArray published;
+    private final AtomicLong head;
+    private volatile long tail;
+    private final Object spaceLock = new Object();
+    private final AtomicInteger waitingProducers = new AtomicInteger(0);
+
+    /**
+     * @param capacity number of slots. Rounded up to a power of two.
+     * */
+    EventRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.statuses = new int[size];
+        this.ids = new long[size];
+        this.errors = new int[size];
+        this.progresses = new int[size];
+        this.downloadedBytes = new long[size];
+        this.totalBytes = new long[size];
+        this.published = new AtomicLongArray(size);
+        this.head = new AtomicLong(0);
+        this.tail = 0;
+
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Publishes an event if there is a free slot.
+     *
+     * @return false if the buffer is full.
+     * */
+    boolean offer(int status, long id, int error, int progress, long downloaded, long total) {
+        long sequence;
+
+        do {
+            sequence = head.get();
+
+            if (sequence - tail >= capacity) {
+                return false;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int index = (int) (sequence & mask);
+        statuses[index] = status;
+        ids[index] = id;
+        errors[index] = error;
+        progresses[index] = progress;
+        downloadedBytes[index] = downloaded;
+        totalBytes[index] = total;
+        published.lazySet(index, sequence);
+        return true;
+    }
+
+    /**
+     * Publishes an event. If the buffer is full the calling thread blocks until the
+     * consumer frees a slot. An interrupt does not end the wait, the event is still
+     * published and the interrupt status is restored.
+     * */
+    void put(int status, long id, int error, int progress, long downloaded, long total) {
+        if (offer(status, id, error, progress, downloaded, total)) {
+            return;
+        }
+
+        boolean interrupted = false;
+        waitingProducers.incrementAndGet();
+
+        try {
+            synchronized (spaceLock) {
+                while (!offer(status, id, error, progress, downloaded, total)) {
+                    try {
+                        spaceLock.wait(PUT_WAIT_INTERVAL);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            waitingProducers.decrementAndGet();
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Hands every published event to the consumer in publishing order. Must only be
+     * called from one thread at a time.
+     *
+     * @return number of events consumed.
+     * */
+    int drain(Consumer consumer) {
+        long sequence = tail;
+        int count = 0;
+
+        while (true) {
+            int index = (int) (sequence & mask);
+
+            if (published.get(index) != sequence) {
+                break;
+            }
+
+            consumer.onEvent(statuses[index], ids[index], errors[index], progresses[index],
+                    downloadedBytes[index], totalBytes[index]);
+
+            sequence++;
+            tail = sequence;
+            count++;
+        }
+
+        if (count > 0 && waitingProducers.get() > 0) {
+            synchronized (spaceLock) {
+                spaceLock.notifyAll();
+            }
+        }
+
+        return count;
+    }
+}
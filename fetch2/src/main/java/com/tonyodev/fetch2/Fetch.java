@@ -1,21 +1,18 @@
 package com.tonyodev.fetch2;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import android.support.annotation.NonNull;
-import android.support.v4.util.ArrayMap;
-import android.support.v4.util.ArraySet;
+import android.support.annotation.Nullable;
 
 import java.io.File;
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -24,14 +21,22 @@ import okhttp3.OkHttpClient;
 
 public final class Fetch extends FetchCore {
 
+    private static final int READ_THREADS = 2;
+
     private static ConcurrentHashMap<String,Fetch> pool = new ConcurrentHashMap<>();
 
     private final String name;
     private final DatabaseManager databaseManager;
     private final DownloadManager downloadManager;
-    private final Handler mainHandler;
+    private final ProgressStore progressStore;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final CallbackExecutor callbackExecutor;
+    private final ProgressDispatcher progressDispatcher;
     private final ExecutorService executor;
-    private final Set<WeakReference<FetchListener>> listeners;
+    private final ExecutorService readExecutor;
+    private final ActionProcessor<Runnable> actionProcessor;
+    private final ListenerRegistry listenerRegistry;
+    private final GroupAggregator groupAggregator;
     private volatile boolean isDisposed;
 
     @NonNull
@@ -51,6 +56,14 @@ public final class Fetch extends FetchCore {
         private String name;
         private OkHttpClient client;
         private Context context;
+        private long progressFlushInterval;
+        private long progressFlushThreshold;
+        private int maxParallelDownloads;
+        private long globalBandwidthLimit;
+        private boolean preemptionEnabled;
+        private boolean weightedBandwidthSharing;
+        private long progressDispatchInterval;
+        private CallbackExecutor callbackExecutor;
 
         public Builder(@NonNull Context context) {
             this(context,FetchHelper.getDefaultDatabaseName());
@@ -62,6 +75,11 @@ public final class Fetch extends FetchCore {
             this.name = name;
             this.context = context.getApplicationContext();
             this.client = NetworkUtils.okHttpClient();
+            this.progressFlushInterval = ProgressStore.DEFAULT_FLUSH_INTERVAL;
+            this.progressFlushThreshold = ProgressStore.DEFAULT_FLUSH_THRESHOLD;
+            this.maxParallelDownloads = DownloadScheduler.DEFAULT_MAX_PARALLEL_DOWNLOADS;
+            this.progressDispatchInterval = ProgressDispatcher.DEFAULT_DISPATCH_INTERVAL;
+            this.callbackExecutor = CallbackExecutor.mainThread();
         }
 
         @NonNull
@@ -78,6 +96,69 @@ public final class Fetch extends FetchCore {
             return this;
         }
 
+        @NonNull
+        public Builder progressFlushInterval(long intervalInMilliseconds) {
+            FetchHelper.throwIfValueIsNegative(intervalInMilliseconds, "progressFlushInterval");
+            this.progressFlushInterval = intervalInMilliseconds;
+            return this;
+        }
+
+        @NonNull
+        public Builder progressFlushThreshold(long bytes) {
+            FetchHelper.throwIfValueIsNegative(bytes, "progressFlushThreshold");
+            this.progressFlushThreshold = bytes;
+            return this;
+        }
+
+        /**
+         * Minimum time between progress deliveries. Progress reported in between is
+         * conflated so listeners only see the latest progress of each download.
+         * */
+        @NonNull
+        public Builder progressDispatchInterval(long intervalInMilliseconds) {
+            FetchHelper.throwIfValueIsNegative(intervalInMilliseconds, "progressDispatchInterval");
+            this.progressDispatchInterval = intervalInMilliseconds;
+            return this;
+        }
+
+        /**
+         * Thread on which listener and Query callbacks run. Defaults to the main thread.
+         * Listeners registered with their own CallbackExecutor are handed a copy of
+         * each event from this executor.
+         * */
+        @NonNull
+        public Builder callbackExecutor(@NonNull CallbackExecutor callbackExecutor) {
+            FetchHelper.throwIfCallbackExecutorIsNull(callbackExecutor);
+            this.callbackExecutor = callbackExecutor;
+            return this;
+        }
+
+        @NonNull
+        public Builder maxParallelDownloads(int maxParallelDownloads) {
+            FetchHelper.throwIfMaxParallelDownloadsIsInvalid(maxParallelDownloads);
+            this.maxParallelDownloads = maxParallelDownloads;
+            return this;
+        }
+
+        @NonNull
+        public Builder enablePreemption(boolean enabled) {
+            this.preemptionEnabled = enabled;
+            return this;
+        }
+
+        @NonNull
+        public Builder enableWeightedBandwidthSharing(boolean enabled) {
+            this.weightedBandwidthSharing = enabled;
+            return this;
+        }
+
+        @NonNull
+        public Builder globalBandwidthLimit(long bytesPerSecond) {
+            FetchHelper.throwIfValueIsNegative(bytesPerSecond, "bytesPerSecond");
+            this.globalBandwidthLimit = bytesPerSecond;
+            return this;
+        }
+
         @NonNull
         public Fetch build() {
 
@@ -93,47 +174,32 @@ public final class Fetch extends FetchCore {
 
     private Fetch(Builder builder) {
         this.isDisposed = false;
-        this.listeners = new ArraySet<>();
-        this.mainHandler = new Handler(Looper.getMainLooper());
-        this.executor = Executors.newSingleThreadExecutor();
+        this.listenerRegistry = new ListenerRegistry();
+        this.groupAggregator = new GroupAggregator();
+        this.callbackExecutor = builder.callbackExecutor;
+        this.executor = Executors.newCachedThreadPool();
+        this.readExecutor = Executors.newFixedThreadPool(READ_THREADS);
+        this.actionProcessor = new LaneActionProcessor(executor,readExecutor);
+        this.progressDispatcher = new ProgressDispatcher(callbackExecutor,builder.progressDispatchInterval,getDelivery());
 
         this.name = builder.name;
-        this.databaseManager = DatabaseManager.newInstance(builder.context.getApplicationContext(),name);
+        this.databaseManager = DatabaseManager.newInstance(builder.context.getApplicationContext(),name,groupAggregator);
+        this.progressStore = new ProgressStore(databaseManager,builder.progressFlushInterval,builder.progressFlushThreshold);
+        this.bandwidthLimiter = new BandwidthLimiter(builder.globalBandwidthLimit,builder.weightedBandwidthSharing);
         this.downloadManager = DownloadManager.newInstance(builder.context.getApplicationContext(),databaseManager,
-                builder.client,getDownloadListener(),actionProcessor);
-    }
-
-    private final ActionProcessor<Runnable> actionProcessor = new ActionProcessor<Runnable>() {
-
-        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+                progressStore,new DownloadScheduler(builder.maxParallelDownloads,builder.preemptionEnabled),bandwidthLimiter,builder.client,
+                progressDispatcher);
 
-        @Override
-        public synchronized void queueAction(Runnable action) {
-            boolean wasEmpty = queue.isEmpty();
-
-            queue.add(action);
-
-            if (wasEmpty) {
-                processNext();
-            }
-        }
-
-        @Override
-        public synchronized void processNext() {
-            if(!executor.isShutdown() && !queue.isEmpty()) {
-                executor.execute(queue.remove());
+        actionProcessor.queueAction(new Runnable() {
+            @Override
+            public void run() {
+                progressStore.recover();
             }
-        }
-
-        @Override
-        public void clearQueue() {
-            queue.clear();
-        }
-    };
-
+        });
+    }
 
-    private synchronized void postOnMain(Runnable action) {
-        mainHandler.post(action);
+    private void postCallback(Runnable action) {
+        callbackExecutor.execute(action);
     }
 
     @NonNull
@@ -141,7 +207,7 @@ public final class Fetch extends FetchCore {
         FetchHelper.throwIfDisposed(this);
         FetchHelper.throwIfRequestIsNull(request);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueAction(request.getId(),new Runnable() {
             @Override
             public void run() {
 
@@ -152,7 +218,7 @@ public final class Fetch extends FetchCore {
 
                     @Override
                     public void onExecute(Database database) {
-                        Boolean inserted = database.insert(request.getId(),request.getUrl(),request.getAbsoluteFilePath(),request.getGroupId());
+                        Boolean inserted = database.insert(request);
                         setValue(inserted);
                     }
 
@@ -174,7 +240,7 @@ public final class Fetch extends FetchCore {
         FetchHelper.throwIfRequestIsNull(request);
         FetchHelper.throwIfCallbackIsNull(callback);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueAction(request.getId(),new Runnable() {
             @Override
             public void run() {
 
@@ -186,7 +252,7 @@ public final class Fetch extends FetchCore {
                     @Override
                     public void onExecute(Database database) {
 
-                        boolean inserted = database.insert(request.getId(), request.getUrl(), request.getAbsoluteFilePath(),request.getGroupId());
+                        boolean inserted = database.insert(request);
                         setValue(inserted);
                     }
 
@@ -194,7 +260,7 @@ public final class Fetch extends FetchCore {
                     public void onPostExecute() {
 
                         if (getValue()){
-                            postOnMain(new Runnable() {
+                            postCallback(new Runnable() {
                                 @Override
                                 public void run() {
                                     callback.onQueued(request);
@@ -203,7 +269,7 @@ public final class Fetch extends FetchCore {
 
                             downloadManager.resume(request.getId());
                         }else {
-                            postOnMain(new Runnable() {
+                            postCallback(new Runnable() {
                                 @Override
                                 public void run() {
                                     callback.onFailure(request,Error.UNKNOWN);
@@ -216,6 +282,10 @@ public final class Fetch extends FetchCore {
         });
     }
 
+    /**
+     * Enqueues a batch of requests in one transaction. Requests whose id or file path
+     * is already stored, or that repeat an id earlier in the list, are skipped.
+     * */
     @NonNull
     public void download(@NonNull final List<Request> requests) {
         FetchHelper.throwIfDisposed(this);
@@ -224,36 +294,32 @@ public final class Fetch extends FetchCore {
         actionProcessor.queueAction(new Runnable() {
             @Override
             public void run() {
-                databaseManager.executeTransaction(new AbstractTransaction<List<Long>>() {
+                databaseManager.executeTransaction(new AbstractTransaction<List<RequestData>>() {
                     @Override
                     public void onPreExecute() {
+                        setValue(new ArrayList<RequestData>());
                     }
 
                     @Override
                     public void onExecute(Database database) {
-
-                        List<Long> ids = new ArrayList<>();
-
-                        for (Request request : requests) {
-                            if(request != null && database.insert(request.getId(),request.getUrl(),request.getAbsoluteFilePath(),request.getGroupId())) {
-                                ids.add(request.getId());
-                            }
-                        }
-
-                        setValue(ids);
+                        boolean[] inserted = database.insert(requests);
+                        setValue(database.query(getInsertedIds(requests,inserted)));
                     }
 
                     @Override
                     public void onPostExecute() {
-                        for (Long id : getValue()) {
-                            downloadManager.resume(id);
-                        }
+                        downloadManager.enqueue(getValue());
                     }
                 });
             }
         });
     }
 
+    /**
+     * Enqueues a batch of requests in one transaction and reports the result of each
+     * request. Requests whose id or file path is already stored, or that repeat an id
+     * earlier in the list, fail with Error.REQUEST_ALREADY_EXIST.
+     * */
     @NonNull
     public void download(@NonNull final List<Request> requests, @NonNull final Callback callback) {
         FetchHelper.throwIfDisposed(this);
@@ -264,7 +330,10 @@ public final class Fetch extends FetchCore {
             @Override
             public void run() {
 
-                databaseManager.executeTransaction(new AbstractTransaction<Map<Request,Boolean>>() {
+                databaseManager.executeTransaction(new AbstractTransaction<boolean[]>() {
+
+                    private List<RequestData> queued = new ArrayList<>();
+
                     @Override
                     public void onPreExecute() {
 
@@ -272,56 +341,102 @@ public final class Fetch extends FetchCore {
 
                     @Override
                     public void onExecute(Database database) {
-
-                        Map<Request,Boolean> map = new ArrayMap<>();
-
-                        for (final Request request : requests) {
-                            if(request != null) {
-                                boolean inserted = database.insert(request.getId(), request.getUrl(), request.getAbsoluteFilePath(),request.getGroupId());
-                                map.put(request, inserted);
-                            }
-                        }
-                        setValue(map);
+                        boolean[] inserted = database.insert(requests);
+                        queued = database.query(getInsertedIds(requests,inserted));
+                        setValue(inserted);
                     }
 
                     @Override
                     public void onPostExecute() {
+                        final boolean[] inserted = getValue();
 
-                        Set<Request> requests = getValue().keySet();
-
-                        for (final Request request : requests) {
-
-                            if (getValue().get(request)) {
+                        if (inserted != null) {
+                            downloadManager.enqueue(queued);
+                        }
 
-                                downloadManager.resume(request.getId());
+                        postCallback(new Runnable() {
+                            @Override
+                            public void run() {
+                                for (int i = 0; i < requests.size(); i++) {
+                                    Request request = requests.get(i);
 
-                                postOnMain(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        callback.onQueued(request);
+                                    if (request == null) {
+                                        continue;
                                     }
-                                });
 
-                            } else {
-                                postOnMain(new Runnable() {
-                                    @Override
-                                    public void run() {
+                                    if (inserted == null) {
                                         callback.onFailure(request,Error.UNKNOWN);
+                                    } else if (inserted[i]) {
+                                        callback.onQueued(request);
+                                    } else {
+                                        callback.onFailure(request,Error.REQUEST_ALREADY_EXIST);
                                     }
-                                });
+                                }
                             }
-                        }
+                        });
                     }
                 });
             }
         });
     }
 
+    private static long[] getInsertedIds(List<Request> requests, boolean[] inserted) {
+        int count = 0;
+
+        for (boolean value : inserted) {
+            if (value) {
+                count++;
+            }
+        }
+
+        long[] ids = new long[count];
+
+        for (int i = 0, j = 0; i < inserted.length; i++) {
+            if (inserted[i]) {
+                ids[j++] = requests.get(i).getId();
+            }
+        }
+
+        return ids;
+    }
+
+    public void setMaxParallelDownloads(int maxParallelDownloads) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfMaxParallelDownloadsIsInvalid(maxParallelDownloads);
+        downloadManager.setMaxParallelDownloads(maxParallelDownloads);
+    }
+
+    public void setGlobalBandwidthLimit(long bytesPerSecond) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfValueIsNegative(bytesPerSecond, "bytesPerSecond");
+        bandwidthLimiter.setGlobalLimit(bytesPerSecond);
+    }
+
+    public void setBandwidthLimit(long id, long bytesPerSecond) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfValueIsNegative(bytesPerSecond, "bytesPerSecond");
+        bandwidthLimiter.setRequestLimit(id, bytesPerSecond);
+    }
+
+    public void setGroupBandwidthLimit(@NonNull String groupId, long bytesPerSecond) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfGroupIDIsNull(groupId);
+        FetchHelper.throwIfValueIsNegative(bytesPerSecond, "bytesPerSecond");
+        bandwidthLimiter.setGroupLimit(groupId, bytesPerSecond);
+    }
+
+    public void setGroupWeight(@NonNull String groupId, int weight) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfGroupIDIsNull(groupId);
+        FetchHelper.throwIfGroupWeightIsInvalid(weight);
+        downloadManager.setGroupWeight(groupId, weight);
+    }
+
     @NonNull
     public void pause(final long id) {
         FetchHelper.throwIfDisposed(this);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueAction(id,new Runnable() {
             @Override
             public void run() {
                 downloadManager.pause(id);
@@ -340,11 +455,23 @@ public final class Fetch extends FetchCore {
         });
     }
 
+    @NonNull
+    public void pauseGroup(@NonNull final String groupId) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfGroupIDIsNull(groupId);
+        actionProcessor.queueAction(new Runnable() {
+            @Override
+            public void run() {
+                downloadManager.pauseGroup(groupId);
+            }
+        });
+    }
+
     @NonNull
     public void resume(final long id) {
         FetchHelper.throwIfDisposed(this);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueAction(id,new Runnable() {
             @Override
             public void run() {
                 downloadManager.resume(id);
@@ -363,11 +490,23 @@ public final class Fetch extends FetchCore {
         });
     }
 
+    @NonNull
+    public void resumeGroup(@NonNull final String groupId) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfGroupIDIsNull(groupId);
+        actionProcessor.queueAction(new Runnable() {
+            @Override
+            public void run() {
+                downloadManager.resumeGroup(groupId);
+            }
+        });
+    }
+
     @NonNull
     public void retry(final long id) {
         FetchHelper.throwIfDisposed(this);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueAction(id,new Runnable() {
             @Override
             public void run() {
                 downloadManager.retry(id);
@@ -380,7 +519,7 @@ public final class Fetch extends FetchCore {
         FetchHelper.throwIfDisposed(this);
 
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueAction(id,new Runnable() {
             @Override
             public void run() {
                 downloadManager.cancel(id);
@@ -399,11 +538,23 @@ public final class Fetch extends FetchCore {
         });
     }
 
+    @NonNull
+    public void cancelGroup(@NonNull final String groupId) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfGroupIDIsNull(groupId);
+        actionProcessor.queueAction(new Runnable() {
+            @Override
+            public void run() {
+                downloadManager.cancelGroup(groupId);
+            }
+        });
+    }
+
     @NonNull
     public void remove(final long id) {
         FetchHelper.throwIfDisposed(this);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueAction(id,new Runnable() {
             @Override
             public void run() {
                 downloadManager.remove(id);
@@ -423,9 +574,21 @@ public final class Fetch extends FetchCore {
     }
 
     @NonNull
-    public void delete(final long id) {
+    public void removeGroup(@NonNull final String groupId) {
         FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfGroupIDIsNull(groupId);
         actionProcessor.queueAction(new Runnable() {
+            @Override
+            public void run() {
+                downloadManager.removeGroup(groupId);
+            }
+        });
+    }
+
+    @NonNull
+    public void delete(final long id) {
+        FetchHelper.throwIfDisposed(this);
+        actionProcessor.queueAction(id,new Runnable() {
             @Override
             public void run() {
                 databaseManager.executeTransaction(new AbstractTransaction<RequestData>() {
@@ -498,11 +661,11 @@ public final class Fetch extends FetchCore {
         FetchHelper.throwIfDisposed(this);
         FetchHelper.throwIfQueryIsNull(query);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueRead(id,new Runnable() {
             @Override
             public void run() {
 
-                databaseManager.executeTransaction(new Transaction() {
+                databaseManager.executeRead(new Transaction() {
                     @Override
                     public void onPreExecute() {
 
@@ -511,7 +674,7 @@ public final class Fetch extends FetchCore {
                     @Override
                     public void onExecute(Database database) {
                         final RequestData requestData = database.query(id);
-                        postOnMain(new Runnable() {
+                        postCallback(new Runnable() {
                             @Override
                             public void run() {
                                 query.onResult(requestData);
@@ -533,11 +696,11 @@ public final class Fetch extends FetchCore {
         FetchHelper.throwIfQueryIsNull(query);
         FetchHelper.throwIfIdListIsNull(ids);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueRead(new Runnable() {
             @Override
             public void run() {
 
-                databaseManager.executeTransaction(new Transaction() {
+                databaseManager.executeRead(new Transaction() {
 
                     @Override
                     public void onPreExecute() {
@@ -548,7 +711,7 @@ public final class Fetch extends FetchCore {
                     public void onExecute(Database database) {
 
                         final List<RequestData> results = database.query(FetchHelper.createIdArray(ids));
-                        postOnMain(new Runnable() {
+                        postCallback(new Runnable() {
                             @Override
                             public void run() {
                                 query.onResult(results);
@@ -569,10 +732,10 @@ public final class Fetch extends FetchCore {
         FetchHelper.throwIfDisposed(this);
         FetchHelper.throwIfQueryIsNull(query);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueRead(new Runnable() {
             @Override
             public void run() {
-                databaseManager.executeTransaction(new Transaction() {
+                databaseManager.executeRead(new Transaction() {
 
                     @Override
                     public void onPreExecute() {
@@ -582,7 +745,106 @@ public final class Fetch extends FetchCore {
                     @Override
                     public void onExecute(Database database) {
                         final List<RequestData> result = database.query();
-                        postOnMain(new Runnable() {
+                        postCallback(new Runnable() {
+                            @Override
+                            public void run() {
+                                query.onResult(result);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onPostExecute() {
+
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Queries the first page of requests, ordered by id. Pass the id of the last
+     * request of a page to queryPage(long, int, Query) to get the page after it.
+     * */
+    public void queryPage(int pageSize, @NonNull final Query<List<RequestData>> query) {
+        queryPage(null,pageSize,query);
+    }
+
+    /**
+     * Queries up to pageSize requests with an id greater than afterId, ordered by id.
+     * The cost of a page does not depend on how many requests come before it.
+     * */
+    public void queryPage(long afterId, int pageSize, @NonNull final Query<List<RequestData>> query) {
+        queryPage(Long.valueOf(afterId),pageSize,query);
+    }
+
+    private void queryPage(@Nullable final Long afterId, final int pageSize, @NonNull final Query<List<RequestData>> query) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfQueryIsNull(query);
+        FetchHelper.throwIfPageSizeIsInvalid(pageSize);
+
+        actionProcessor.queueRead(new Runnable() {
+            @Override
+            public void run() {
+                databaseManager.executeRead(new Transaction() {
+
+                    @Override
+                    public void onPreExecute() {
+
+                    }
+
+                    @Override
+                    public void onExecute(Database database) {
+                        final List<RequestData> result = database.queryPage(afterId,pageSize);
+                        postCallback(new Runnable() {
+                            @Override
+                            public void run() {
+                                query.onResult(result);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onPostExecute() {
+
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Opens a cursor that walks through every request, pageSize requests at a time.
+     * */
+    @NonNull
+    public RequestCursor openCursor(int pageSize) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfPageSizeIsInvalid(pageSize);
+        return new RequestCursor(this,pageSize);
+    }
+
+    /**
+     * Queries the requests that match a RequestQuery, in the order it specifies.
+     * */
+    public void query(@NonNull final RequestQuery requestQuery, @NonNull final Query<List<RequestData>> query) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfQueryIsNull(query);
+        FetchHelper.throwIfRequestQueryIsNull(requestQuery);
+
+        actionProcessor.queueRead(new Runnable() {
+            @Override
+            public void run() {
+                databaseManager.executeRead(new Transaction() {
+
+                    @Override
+                    public void onPreExecute() {
+
+                    }
+
+                    @Override
+                    public void onExecute(Database database) {
+                        final List<RequestData> result = database.query(requestQuery);
+                        postCallback(new Runnable() {
                             @Override
                             public void run() {
                                 query.onResult(result);
@@ -604,10 +866,10 @@ public final class Fetch extends FetchCore {
         FetchHelper.throwIfQueryIsNull(query);
         FetchHelper.throwIfStatusIsNull(status);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueRead(new Runnable() {
             @Override
             public void run() {
-                databaseManager.executeTransaction(new Transaction() {
+                databaseManager.executeRead(new Transaction() {
 
                     @Override
                     public void onPreExecute() {
@@ -617,7 +879,7 @@ public final class Fetch extends FetchCore {
                     @Override
                     public void onExecute(Database database) {
                         final List<RequestData> result = database.queryByStatus(status.getValue());
-                        postOnMain(new Runnable() {
+                        postCallback(new Runnable() {
                             @Override
                             public void run() {
                                 query.onResult(result);
@@ -639,10 +901,10 @@ public final class Fetch extends FetchCore {
         FetchHelper.throwIfQueryIsNull(query);
         FetchHelper.throwIfGroupIDIsNull(groupId);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueRead(new Runnable() {
             @Override
             public void run() {
-                databaseManager.executeTransaction(new Transaction() {
+                databaseManager.executeRead(new Transaction() {
                     @Override
                     public void onPreExecute() {
 
@@ -651,7 +913,7 @@ public final class Fetch extends FetchCore {
                     @Override
                     public void onExecute(Database database) {
                         final List<RequestData> result = database.queryByGroupId(groupId);
-                        postOnMain(new Runnable() {
+                        postCallback(new Runnable() {
                             @Override
                             public void run() {
                                 query.onResult(result);
@@ -672,11 +934,11 @@ public final class Fetch extends FetchCore {
         FetchHelper.throwIfDisposed(this);
         FetchHelper.throwIfQueryIsNull(query);
 
-        actionProcessor.queueAction(new Runnable() {
+        actionProcessor.queueRead(id,new Runnable() {
             @Override
             public void run() {
 
-                databaseManager.executeTransaction(new Transaction() {
+                databaseManager.executeRead(new Transaction() {
 
                     @Override
                     public void onPreExecute() {
@@ -686,7 +948,7 @@ public final class Fetch extends FetchCore {
                     @Override
                     public void onExecute(Database database) {
                         final boolean found = database.contains(id);
-                        postOnMain(new Runnable() {
+                        postCallback(new Runnable() {
                             @Override
                             public void run() {
                                 query.onResult(found);
@@ -703,66 +965,143 @@ public final class Fetch extends FetchCore {
         });
     }
 
-    @NonNull
-    public synchronized void addListener(@NonNull FetchListener fetchListener) {
+    public void queryTransferStats(final long id, @NonNull final Query<TransferStats> query) {
         FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfQueryIsNull(query);
 
-        if(fetchListener != null && !containsListener(fetchListener)) {
-            fetchListener.onAttach(this);
-            listeners.add(new WeakReference<>(fetchListener));
+        actionProcessor.queueRead(id,new Runnable() {
+            @Override
+            public void run() {
+                final TransferStats transferStats = downloadManager.getTransferStats(id);
+                postCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        query.onResult(transferStats);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Queries the aggregate progress of a group. The stats are kept up to date as
+     * downloads change, so they are read from memory without touching the database.
+     * */
+    public void queryGroupStats(@NonNull final String groupId, @NonNull final Query<GroupStats> query) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfGroupIDIsNull(groupId);
+        FetchHelper.throwIfQueryIsNull(query);
+
+        final GroupStats groupStats = groupAggregator.getStats(groupId);
+        postCallback(new Runnable() {
+            @Override
+            public void run() {
+                query.onResult(groupStats);
+            }
+        });
+    }
+
+    /**
+     * Registers a listener for the aggregate progress of a group. It is called with
+     * fresh GroupStats whenever a download of the group reports an event.
+     * */
+    public void addGroupStatsListener(@NonNull String groupId, @NonNull GroupListener groupListener) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfGroupIDIsNull(groupId);
+
+        if (groupListener != null) {
+            listenerRegistry.addForGroupStats(groupId,groupListener);
         }
     }
 
-    private boolean containsListener(FetchListener fetchListener) {
-        Iterator<WeakReference<FetchListener>> iterator = listeners.iterator();
-        WeakReference<FetchListener> ref;
+    /**
+     * Removes every registration of the GroupListener.
+     * */
+    public void removeGroupStatsListener(@NonNull GroupListener groupListener) {
+        FetchHelper.throwIfDisposed(this);
 
-        while (iterator.hasNext()) {
-            ref = iterator.next();
+        if (groupListener != null) {
+            listenerRegistry.removeForGroupStats(groupListener);
+        }
+    }
 
-            if (ref.get() != null && ref.get() == fetchListener){
-                return true;
-            }
+    /**
+     * Registers a listener for the events of every download.
+     * */
+    @NonNull
+    public void addListener(@NonNull FetchListener fetchListener) {
+        addListener(fetchListener,null);
+    }
+
+    /**
+     * Registers a listener for the events of every download, called on the given
+     * CallbackExecutor instead of the one of this instance.
+     * */
+    @NonNull
+    public void addListener(@NonNull FetchListener fetchListener, @Nullable CallbackExecutor callbackExecutor) {
+        FetchHelper.throwIfDisposed(this);
+
+        if(fetchListener != null && listenerRegistry.addForAll(fetchListener,callbackExecutor)) {
+            fetchListener.onAttach(this);
         }
+    }
 
-        return false;
+    /**
+     * Registers a listener for the events of a single download. A listener can be
+     * registered for several ids and groups. It is called once for every registration
+     * that matches an event, so it should not also be registered for every download.
+     * */
+    @NonNull
+    public void addListener(long id, @NonNull FetchListener fetchListener) {
+        addListener(id,fetchListener,null);
     }
 
     @NonNull
-    public synchronized void removeListener(@NonNull FetchListener fetchListener) {
+    public void addListener(long id, @NonNull FetchListener fetchListener, @Nullable CallbackExecutor callbackExecutor) {
         FetchHelper.throwIfDisposed(this);
 
-        if (fetchListener != null) {
+        if(fetchListener != null && listenerRegistry.addForId(id,fetchListener,callbackExecutor)) {
+            fetchListener.onAttach(this);
+        }
+    }
 
-            Iterator<WeakReference<FetchListener>> iterator = listeners.iterator();
-            WeakReference<FetchListener> ref;
+    /**
+     * Registers a listener for the events of the downloads in a group.
+     * */
+    @NonNull
+    public void addGroupListener(@NonNull String groupId, @NonNull FetchListener fetchListener) {
+        addGroupListener(groupId,fetchListener,null);
+    }
 
-            while (iterator.hasNext()) {
-                ref = iterator.next();
+    @NonNull
+    public void addGroupListener(@NonNull String groupId, @NonNull FetchListener fetchListener,
+                                 @Nullable CallbackExecutor callbackExecutor) {
+        FetchHelper.throwIfDisposed(this);
+        FetchHelper.throwIfGroupIDIsNull(groupId);
 
-                if (ref.get() != null && ref.get() == fetchListener){
-                    iterator.remove();
-                    fetchListener.onDetach(this);
-                    break;
-                }
-            }
+        if(fetchListener != null && listenerRegistry.addForGroup(groupId,fetchListener,callbackExecutor)) {
+            fetchListener.onAttach(this);
         }
     }
 
+    /**
+     * Removes every registration of the listener.
+     * */
     @NonNull
-    public synchronized void removeListeners() {
+    public void removeListener(@NonNull FetchListener fetchListener) {
         FetchHelper.throwIfDisposed(this);
 
-        Iterator<WeakReference<FetchListener>> iterator = listeners.iterator();
-        WeakReference<FetchListener> ref;
+        if (fetchListener != null && listenerRegistry.remove(fetchListener)) {
+            fetchListener.onDetach(this);
+        }
+    }
 
-        while(iterator.hasNext()) {
-            ref = iterator.next();
-            iterator.remove();
+    @NonNull
+    public void removeListeners() {
+        FetchHelper.throwIfDisposed(this);
 
-            if (ref.get() != null) {
-                ref.get().onDetach(this);
-            }
+        for (FetchListener fetchListener : listenerRegistry.clear()) {
+            fetchListener.onDetach(this);
         }
     }
 
@@ -780,9 +1119,13 @@ public final class Fetch extends FetchCore {
     public synchronized void dispose() {
         if(!isDisposed) {
             removeListeners();
+            listenerRegistry.clearGroupStats();
             executor.shutdown();
+            readExecutor.shutdown();
             actionProcessor.clearQueue();
             downloadManager.dispose();
+            progressStore.dispose();
+            progressDispatcher.dispose();
             databaseManager.dispose();
             isDisposed = true;
             pool.remove(getName());
@@ -794,91 +1137,230 @@ public final class Fetch extends FetchCore {
         return isDisposed;
     }
 
-    private DownloadListener getDownloadListener() {
-        return new DownloadListener() {
+    private ProgressDispatcher.Delivery getDelivery() {
+        return new ProgressDispatcher.Delivery() {
+
+            private final Map<ListenerRegistry.Subscription,List<DownloadProgress>> scopedBatches = new IdentityHashMap<>();
+            private final List<List<DownloadProgress>> spareBatches = new ArrayList<>();
+            private final Set<String> updatedGroups = new HashSet<>();
+
             @Override
-            public void onComplete(final long id,final int progress,final long downloadedBytes,final long totalBytes) {
-                postOnMain(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (WeakReference<FetchListener> ref : listeners) {
-                            if (ref.get() != null) {
-                                ref.get().onComplete(id,progress,downloadedBytes,totalBytes);
-                            }
-                        }
-                    }
-                });
+            public void onComplete(long id, int progress, long downloadedBytes, long totalBytes) {
+                dispatch(Status.COMPLETED,id,Error.NONE,progress,downloadedBytes,totalBytes);
             }
 
             @Override
-            public void onError(final long id,@NonNull final  Error error,final int progress,final long downloadedBytes,final long totalBytes) {
-                postOnMain(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (WeakReference<FetchListener> ref : listeners) {
-                            if(ref.get() != null) {
-                                ref.get().onError(id,error,progress,downloadedBytes,totalBytes);
-                            }
-                        }
-                    }
-                });
+            public void onError(long id, @NonNull Error error, int progress, long downloadedBytes, long totalBytes) {
+                dispatch(Status.ERROR,id,error,progress,downloadedBytes,totalBytes);
             }
 
             @Override
-            public void onProgress(final long id,final int progress,final long downloadedBytes,final long totalBytes) {
-                postOnMain(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (WeakReference<FetchListener> ref : listeners) {
-                            if(ref.get() != null) {
-                                ref.get().onProgress(id,progress,downloadedBytes,totalBytes);
-                            }
-                        }
-                    }
-                });
+            public void onProgress(long id, int progress, long downloadedBytes, long totalBytes) {
+                dispatch(Status.DOWNLOADING,id,Error.NONE,progress,downloadedBytes,totalBytes);
             }
 
             @Override
-            public void onPause(final long id,final int progress,final long downloadedBytes,final long totalBytes) {
-                postOnMain(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (WeakReference<FetchListener> ref : listeners) {
-                            if(ref.get() != null) {
-                                ref.get().onPause(id,progress,downloadedBytes,totalBytes);
-                            }
-                        }
+            public void onProgressBatch(@NonNull List<DownloadProgress> progressList) {
+                ListenerRegistry.Snapshot snapshot = listenerRegistry.getSnapshot();
+                boolean hasGroupStats = snapshot.hasGroupStats();
+
+                for (int i = 0; i < progressList.size(); i++) {
+                    DownloadProgress downloadProgress = progressList.get(i);
+                    String groupId = groupAggregator.onEvent(downloadProgress.getId(),
+                            downloadProgress.getDownloadedBytes(),downloadProgress.getTotalBytes());
+
+                    if (hasGroupStats && groupId != null) {
+                        updatedGroups.add(groupId);
                     }
-                });
+
+                    addToBatches(snapshot.forId(downloadProgress.getId()),downloadProgress);
+                    addToBatches(snapshot.forGroup(groupId),downloadProgress);
+                }
+
+                for (ListenerRegistry.Subscription subscription : snapshot.all) {
+                    deliverBatch(subscription,progressList);
+                }
+
+                for (Map.Entry<ListenerRegistry.Subscription,List<DownloadProgress>> entry : scopedBatches.entrySet()) {
+                    List<DownloadProgress> batch = entry.getValue();
+                    deliverBatch(entry.getKey(),Collections.unmodifiableList(batch));
+                    batch.clear();
+                    spareBatches.add(batch);
+                }
+
+                scopedBatches.clear();
+
+                for (String groupId : updatedGroups) {
+                    notifyGroupStats(snapshot,groupId);
+                }
+
+                updatedGroups.clear();
+            }
+
+            private void addToBatches(ListenerRegistry.Subscription[] subscriptions, DownloadProgress downloadProgress) {
+                for (ListenerRegistry.Subscription subscription : subscriptions) {
+                    List<DownloadProgress> batch = scopedBatches.get(subscription);
+
+                    if (batch == null) {
+                        batch = spareBatches.isEmpty() ? new ArrayList<DownloadProgress>()
+                                : spareBatches.remove(spareBatches.size() - 1);
+                        scopedBatches.put(subscription,batch);
+                    }
+
+                    batch.add(downloadProgress);
+                }
             }
 
             @Override
-            public void onCancelled(final long id,final int progress,final long downloadedBytes,final long totalBytes) {
-                postOnMain(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (WeakReference<FetchListener> ref : listeners) {
-                            if(ref.get() != null) {
-                                ref.get().onCancelled(id,progress,downloadedBytes,totalBytes);
+            public void onPause(long id, int progress, long downloadedBytes, long totalBytes) {
+                dispatch(Status.PAUSED,id,Error.NONE,progress,downloadedBytes,totalBytes);
+            }
+
+            @Override
+            public void onCancelled(long id, int progress, long downloadedBytes, long totalBytes) {
+                dispatch(Status.CANCELLED,id,Error.NONE,progress,downloadedBytes,totalBytes);
+            }
+
+            @Override
+            public void onRemoved(long id, int progress, long downloadedBytes, long totalBytes) {
+                dispatch(Status.REMOVED,id,Error.NONE,progress,downloadedBytes,totalBytes);
+                groupAggregator.onRemoved(id);
+            }
+
+            @Override
+            public void onQueued(long id, int progress, long downloadedBytes, long totalBytes) {
+                dispatch(Status.QUEUED,id,Error.NONE,progress,downloadedBytes,totalBytes);
+            }
+
+            private void dispatch(Status status, long id, Error error, int progress, long downloadedBytes, long totalBytes) {
+                String groupId = groupAggregator.onEvent(id,downloadedBytes,totalBytes);
+                ListenerRegistry.Snapshot snapshot = listenerRegistry.getSnapshot();
+
+                dispatch(snapshot.all,status,id,error,progress,downloadedBytes,totalBytes);
+                dispatch(snapshot.forId(id),status,id,error,progress,downloadedBytes,totalBytes);
+                dispatch(snapshot.forGroup(groupId),status,id,error,progress,downloadedBytes,totalBytes);
+                notifyGroupStats(snapshot,groupId);
+            }
+
+            /**
+             * Hands the current stats of the group to its GroupListeners, on the calling thread.
+             * */
+            private void notifyGroupStats(ListenerRegistry.Snapshot snapshot, @Nullable String groupId) {
+                ListenerRegistry.StatsSubscription[] subscriptions = snapshot.forGroupStats(groupId);
+
+                if (subscriptions.length == 0) {
+                    return;
+                }
+
+                GroupStats groupStats = groupAggregator.getStats(groupId);
+
+                for (ListenerRegistry.StatsSubscription subscription : subscriptions) {
+                    GroupListener listener = subscription.get();
+
+                    if (listener != null) {
+                        listener.onGroupUpdated(groupStats);
+                    }
+                }
+            }
+
+            private void dispatch(ListenerRegistry.Subscription[] subscriptions, final Status status, final long id,
+                                  final Error error, final int progress, final long downloadedBytes, final long totalBytes) {
+                for (ListenerRegistry.Subscription subscription : subscriptions) {
+                    final FetchListener listener = subscription.get();
+
+                    if (listener == null || (status == Status.DOWNLOADING && listener instanceof FetchBatchListener)) {
+                        continue;
+                    }
+
+                    CallbackExecutor listenerExecutor = subscription.getCallbackExecutor();
+
+                    if (listenerExecutor == null || listenerExecutor == callbackExecutor) {
+                        deliver(listener,status,id,error,progress,downloadedBytes,totalBytes);
+                    } else {
+                        listenerExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                deliver(listener,status,id,error,progress,downloadedBytes,totalBytes);
                             }
-                        }
+                        });
                     }
-                });
+                }
             }
 
-            @Override
-            public void onRemoved(final long id,final int progress,final long downloadedBytes,final long totalBytes) {
-                postOnMain(new Runnable() {
+            /**
+             * The batch and its DownloadProgress objects are reused after this returns, so
+             * listeners on their own executor are handed a copy.
+             * */
+            private void deliverBatch(ListenerRegistry.Subscription subscription, List<DownloadProgress> progressList) {
+                final FetchListener listener = subscription.get();
+
+                if (listener == null) {
+                    return;
+                }
+
+                CallbackExecutor listenerExecutor = subscription.getCallbackExecutor();
+
+                if (listenerExecutor == null || listenerExecutor == callbackExecutor) {
+                    deliverBatch(listener,progressList);
+                    return;
+                }
+
+                final List<DownloadProgress> copy = new ArrayList<>(progressList.size());
+                for (int i = 0; i < progressList.size(); i++) {
+                    DownloadProgress downloadProgress = progressList.get(i);
+                    DownloadProgress copied = new DownloadProgress();
+                    copied.set(downloadProgress.getId(), downloadProgress.getProgress(),
+                            downloadProgress.getDownloadedBytes(), downloadProgress.getTotalBytes());
+                    copy.add(copied);
+                }
+
+                listenerExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        for (WeakReference<FetchListener> ref : listeners) {
-                            if(ref.get() != null) {
-                                ref.get().onRemoved(id,progress,downloadedBytes,totalBytes);
-                            }
-                        }
+                        deliverBatch(listener,Collections.unmodifiableList(copy));
                     }
                 });
             }
+
+            private void deliverBatch(FetchListener listener, List<DownloadProgress> progressList) {
+                if (listener instanceof FetchBatchListener) {
+                    ((FetchBatchListener) listener).onProgressBatch(progressList);
+                    return;
+                }
+
+                for (int i = 0; i < progressList.size(); i++) {
+                    DownloadProgress downloadProgress = progressList.get(i);
+                    listener.onProgress(downloadProgress.getId(), downloadProgress.getProgress(),
+                            downloadProgress.getDownloadedBytes(), downloadProgress.getTotalBytes());
+                }
+            }
+
+            private void deliver(FetchListener listener, Status status, long id, Error error, int progress,
+                                 long downloadedBytes, long totalBytes) {
+                switch (status) {
+                    case COMPLETED:
+                        listener.onComplete(id,progress,downloadedBytes,totalBytes);
+                        break;
+                    case ERROR:
+                        listener.onError(id,error,progress,downloadedBytes,totalBytes);
+                        break;
+                    case DOWNLOADING:
+                        listener.onProgress(id,progress,downloadedBytes,totalBytes);
+                        break;
+                    case PAUSED:
+                        listener.onPause(id,progress,downloadedBytes,totalBytes);
+                        break;
+                    case CANCELLED:
+                        listener.onCancelled(id,progress,downloadedBytes,totalBytes);
+                        break;
+                    case REMOVED:
+                        listener.onRemoved(id,progress,downloadedBytes,totalBytes);
+                        break;
+                    case QUEUED:
+                        listener.onQueued(id,progress,downloadedBytes,totalBytes);
+                        break;
+                }
+            }
         };
     }
-}
\ No newline at end of file
+}
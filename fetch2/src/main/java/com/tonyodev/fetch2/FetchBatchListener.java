@@ -0,0 +1,14 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * FetchListener that receives progress as one batch per dispatch instead of
+ * one onProgress call per download. Batch listeners do not receive onProgress.
+ * The list and its elements are reused after the call returns.
+ */
+public interface FetchBatchListener extends FetchListener {
+    void onProgressBatch(@NonNull List<DownloadProgress> progressList);
+}
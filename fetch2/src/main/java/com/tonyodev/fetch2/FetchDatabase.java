@@ -1,13 +1,58 @@
 package com.tonyodev.fetch2;
 
+import android.arch.persistence.db.SupportSQLiteDatabase;
 import android.arch.persistence.room.RoomDatabase;
 import android.arch.persistence.room.Database;
+import android.arch.persistence.room.migration.Migration;
 
 /**
  * Created by tonyofrancis on 6/14/17.
  */
 
-@Database(entities = {RequestInfo.class},version = 1,exportSchema = false)
+@Database(entities = {RequestInfo.class,SegmentInfo.class},version = 6,exportSchema = false)
 public abstract class FetchDatabase extends RoomDatabase {
     public abstract RequestInfoDao requestInfoDao();
+    public abstract SegmentInfoDao segmentInfoDao();
+
+    static final Migration MIGRATION_1_2 = new Migration(1,2) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE requestInfos ADD COLUMN segments INTEGER NOT NULL DEFAULT 1");
+            database.execSQL("CREATE TABLE IF NOT EXISTS segmentInfos (requestId INTEGER NOT NULL, "
+                    + "position INTEGER NOT NULL, startByte INTEGER NOT NULL, endByte INTEGER NOT NULL, "
+                    + "downloadedBytes INTEGER NOT NULL, PRIMARY KEY(requestId, position))");
+        }
+    };
+
+    static final Migration MIGRATION_2_3 = new Migration(2,3) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE requestInfos ADD COLUMN outputStrategy INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    static final Migration MIGRATION_3_4 = new Migration(3,4) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE requestInfos ADD COLUMN priority INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    static final Migration MIGRATION_4_5 = new Migration(4,5) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE requestInfos ADD COLUMN digestAlgorithm INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE requestInfos ADD COLUMN expectedDigest TEXT");
+            database.execSQL("ALTER TABLE requestInfos ADD COLUMN digestState BLOB");
+        }
+    };
+
+    static final Migration MIGRATION_5_6 = new Migration(5,6) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX IF NOT EXISTS index_requestInfos_groupId_status ON requestInfos (groupId, status)");
+        }
+    };
+
+    static final Migration[] MIGRATIONS = {MIGRATION_1_2,MIGRATION_2_3,MIGRATION_3_4,MIGRATION_4_5,MIGRATION_5_6};
 }
@@ -51,6 +51,13 @@ final class FetchHelper {
         }
     }
 
+    static void throwIfCallbackExecutorIsNull(CallbackExecutor callbackExecutor) {
+
+        if(callbackExecutor == null) {
+            throw new IllegalArgumentException("CallbackExecutor cannot be null");
+        }
+    }
+
     static void throwIfStatusIsNull(Status status) {
 
         if(status == null) {
@@ -86,6 +93,41 @@ final class FetchHelper {
         }
     }
 
+    static void throwIfValueIsNegative(long value, String name) {
+
+        if(value < 0) {
+            throw new IllegalArgumentException(name + " cannot be less than 0");
+        }
+    }
+
+    static void throwIfMaxParallelDownloadsIsInvalid(int maxParallelDownloads) {
+
+        if(maxParallelDownloads < 1) {
+            throw new IllegalArgumentException("maxParallelDownloads cannot be less than 1");
+        }
+    }
+
+    static void throwIfGroupWeightIsInvalid(int weight) {
+
+        if(weight < 1) {
+            throw new IllegalArgumentException("weight cannot be less than 1");
+        }
+    }
+
+    static void throwIfRequestQueryIsNull(RequestQuery requestQuery) {
+
+        if(requestQuery == null) {
+            throw new IllegalArgumentException("RequestQuery cannot be null");
+        }
+    }
+
+    static void throwIfPageSizeIsInvalid(int pageSize) {
+
+        if(pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+    }
+
     static void throwIfDisposed(Disposable disposable) {
 
         if(disposable.isDisposed()) {
@@ -0,0 +1,13 @@
+package com.tonyodev.fetch2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+interface FileOutput {
+    void write(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Makes every written byte part of the file. The file itself is closed by its owner.
+     * */
+    void close() throws IOException;
+}
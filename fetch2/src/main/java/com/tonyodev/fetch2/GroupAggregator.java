@@ -0,0 +1,227 @@
+package com.tonyodev.fetch2;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps running counters for every groupId, so the progress of a group is known
+ * without walking its downloads. The RequestIndex reports each request as it is
+ * loaded, changed or removed, which keeps the status counts in line with the
+ * database. Progress events then move the byte counts between database writes.
+ * Every update adjusts the counters by the difference with the last known values
+ * of the request, so it costs the same however large the group is.
+ */
+final class GroupAggregator {
+
+    /**
+     * The download rate of a group is sampled at most this often, in milliseconds.
+     * */
+    static final long RATE_INTERVAL = 1000;
+
+    /**
+     * Weight of the newest sample in the smoothed download rate.
+     * */
+    private static final double RATE_WEIGHT = 0.3;
+
+    private static final class Entry {
+        private final String groupId;
+        private Status status;
+        private long downloadedBytes;
+        private long totalBytes;
+
+        private Entry(String groupId) {
+            this.groupId = groupId;
+        }
+    }
+
+    private static final class Counter {
+        private final int[] counts = new int[Status.values().length];
+        private int count;
+        private int unknownSizeCount;
+        private long downloadedBytes;
+        private long totalBytes;
+        private double downloadRate;
+        private long sampleTime;
+        private long sampleBytes;
+
+        private void add(Entry entry, int sign) {
+            counts[entry.status.ordinal()] += sign;
+            count += sign;
+            downloadedBytes += sign * entry.downloadedBytes;
+
+            if (entry.totalBytes > 0) {
+                totalBytes += sign * entry.totalBytes;
+            } else {
+                unknownSizeCount += sign;
+            }
+        }
+
+        private void sample(long now) {
+            if (sampleTime == 0) {
+                sampleTime = now;
+                sampleBytes = downloadedBytes;
+                return;
+            }
+
+            long elapsed = now - sampleTime;
+
+            if (elapsed >= RATE_INTERVAL) {
+                double rate = Math.max(0, downloadedBytes - sampleBytes) * 1000.0 / elapsed;
+                downloadRate = downloadRate == 0 ? rate : downloadRate + RATE_WEIGHT * (rate - downloadRate);
+                sampleTime = now;
+                sampleBytes = downloadedBytes;
+            }
+        }
+
+        private void resetRate() {
+            downloadRate = 0;
+            sampleTime = 0;
+        }
+    }
+
+    private final Map<Long,Entry> entries;
+    private final Map<String,Counter> counters;
+    private final Map<Long,String> removed;
+
+    GroupAggregator() {
+        this.entries = new HashMap<>();
+        this.counters = new HashMap<>();
+        this.removed = new HashMap<>();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        counters.clear();
+        removed.clear();
+    }
+
+    /**
+     * Records the stored state of a request. While a request keeps downloading the
+     * stored bytes lag behind the progress events, so the larger count is kept.
+     * */
+    synchronized void put(@NonNull RequestData requestData) {
+        Entry entry = entries.get(requestData.getId());
+        long downloadedBytes = requestData.getDownloadedBytes();
+
+        if (entry != null) {
+            if (entry.status == Status.DOWNLOADING && requestData.getStatus() == Status.DOWNLOADING
+                    && entry.groupId.equals(requestData.getGroupId())) {
+                downloadedBytes = Math.max(downloadedBytes, entry.downloadedBytes);
+            }
+
+            detach(entry);
+        }
+
+        entry = new Entry(requestData.getGroupId());
+        entry.status = requestData.getStatus();
+        entry.downloadedBytes = downloadedBytes;
+        entry.totalBytes = requestData.getTotalBytes();
+        entries.put(requestData.getId(), entry);
+        counter(entry.groupId).add(entry, 1);
+
+        if (entry.status != Status.DOWNLOADING) {
+            resetRateIfIdle(entry.groupId);
+        }
+    }
+
+    synchronized void remove(long id) {
+        Entry entry = entries.remove(id);
+
+        if (entry != null) {
+            detach(entry);
+            resetRateIfIdle(entry.groupId);
+            removed.put(id, entry.groupId);
+        }
+    }
+
+    /**
+     * Forgets the groupId of a removed request once its REMOVED event has been dispatched.
+     * */
+    synchronized void onRemoved(long id) {
+        removed.remove(id);
+    }
+
+    /**
+     * Applies the byte counts of a download event. A removed request keeps its groupId
+     * until onRemoved, so the events still in flight reach its group listeners.
+     *
+     * @return the groupId of the download, or null if it is not known.
+     * */
+    @Nullable
+    synchronized String onEvent(long id, long downloadedBytes, long totalBytes) {
+        Entry entry = entries.get(id);
+
+        if (entry == null) {
+            return removed.get(id);
+        }
+
+        if (entry.downloadedBytes != downloadedBytes || (totalBytes > 0 && entry.totalBytes != totalBytes)) {
+            Counter counter = counters.get(entry.groupId);
+            counter.add(entry, -1);
+            entry.downloadedBytes = downloadedBytes;
+
+            if (totalBytes > 0) {
+                entry.totalBytes = totalBytes;
+            }
+
+            counter.add(entry, 1);
+
+            if (entry.status == Status.DOWNLOADING) {
+                counter.sample(SystemClock.elapsedRealtime());
+            }
+        }
+
+        return entry.groupId;
+    }
+
+    @NonNull
+    synchronized GroupStats getStats(@NonNull String groupId) {
+        Counter counter = counters.get(groupId);
+
+        if (counter == null) {
+            return new GroupStats(groupId, new int[Status.values().length], 0, 0, 0, 0, -1);
+        }
+
+        long downloadRate = (long) counter.downloadRate;
+        long eta = -1;
+
+        if (downloadRate > 0 && counter.unknownSizeCount == 0 && counter.counts[Status.DOWNLOADING.ordinal()] > 0) {
+            eta = Math.max(0, counter.totalBytes - counter.downloadedBytes) * 1000 / downloadRate;
+        }
+
+        return new GroupStats(groupId, counter.counts.clone(), counter.count, counter.downloadedBytes,
+                counter.totalBytes, downloadRate, eta);
+    }
+
+    private Counter counter(String groupId) {
+        Counter counter = counters.get(groupId);
+
+        if (counter == null) {
+            counter = new Counter();
+            counters.put(groupId, counter);
+        }
+
+        return counter;
+    }
+
+    private void detach(Entry entry) {
+        Counter counter = counters.get(entry.groupId);
+        counter.add(entry, -1);
+
+        if (counter.count == 0) {
+            counters.remove(entry.groupId);
+        }
+    }
+
+    private void resetRateIfIdle(String groupId) {
+        Counter counter = counters.get(groupId);
+
+        if (counter != null && counter.counts[Status.DOWNLOADING.ordinal()] == 0) {
+            counter.resetRate();
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+
+public interface GroupListener {
+    void onGroupUpdated(@NonNull GroupStats groupStats);
+}
@@ -0,0 +1,83 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Snapshot of the aggregate progress of the downloads that share a groupId.
+ * */
+public final class GroupStats {
+
+    private final String groupId;
+    private final int[] counts;
+    private final int count;
+    private final long downloadedBytes;
+    private final long totalBytes;
+    private final long downloadRate;
+    private final long eta;
+
+    GroupStats(String groupId, int[] counts, int count, long downloadedBytes, long totalBytes,
+               long downloadRate, long eta) {
+        this.groupId = groupId;
+        this.counts = counts;
+        this.count = count;
+        this.downloadedBytes = downloadedBytes;
+        this.totalBytes = totalBytes;
+        this.downloadRate = downloadRate;
+        this.eta = eta;
+    }
+
+    @NonNull
+    public String getGroupId() {
+        return groupId;
+    }
+
+    /**
+     * @return number of downloads in the group.
+     * */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return number of downloads in the group with the given status.
+     * */
+    public int getCount(@NonNull Status status) {
+        return counts[status.ordinal()];
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    /**
+     * Sum of the total bytes of the downloads whose size is known.
+     * */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public int getProgress() {
+        return DownloadHelper.calculateProgress(downloadedBytes,totalBytes);
+    }
+
+    /**
+     * Smoothed download rate of the group in bytes per second.
+     * */
+    public long getDownloadRate() {
+        return downloadRate;
+    }
+
+    /**
+     * Estimated milliseconds until the group is downloaded, or -1 if the group is not
+     * downloading or the size of a download is not known yet.
+     * */
+    public long getEta() {
+        return eta;
+    }
+
+    @Override
+    public String toString() {
+        return "GroupStats groupId: " + groupId + " count: " + count + " downloadedBytes: " + downloadedBytes
+                + " totalBytes: " + totalBytes + " downloadRate: " + downloadRate + " eta: " + eta;
+    }
+}
@@ -0,0 +1,200 @@
+package com.tonyodev.fetch2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * ActionProcessor that splits actions into lanes. Actions wait in a single queue in the order they were queued. An action for an id starts
+ * as soon as no earlier action for that id is running or waiting. An action without an id
+ * waits for everything before it to finish and holds back everything after it. A slow
+ * pause of one download therefore no longer delays queries or actions on other downloads.
+ *
+ * Reads run on the read executor, in parallel with each other. A read remembers the last
+ * action queued before it and waits until every earlier action it depends on is done, so
+ * a query always sees the downloads that were enqueued before it was made. A read for an
+ * id only depends on earlier actions for that id and on earlier actions without an id.
+ */
+final class LaneActionProcessor implements ActionProcessor<Runnable> {
+
+    private static final long NO_ID = Long.MIN_VALUE;
+
+    private final ExecutorService actionExecutor;
+    private final ExecutorService readExecutor;
+    private final ArrayDeque<Entry> queue;
+    private final Set<Long> runningIds;
+    private final TreeMap<Long,Entry> unfinished;
+    private final List<Entry> waitingReads;
+    private long sequence;
+    private int runningCount;
+    private boolean exclusiveRunning;
+
+    LaneActionProcessor(ExecutorService actionExecutor, ExecutorService readExecutor) {
+        this.actionExecutor = actionExecutor;
+        this.readExecutor = readExecutor;
+        this.queue = new ArrayDeque<>();
+        this.runningIds = new HashSet<>();
+        this.unfinished = new TreeMap<>();
+        this.waitingReads = new ArrayList<>();
+        this.sequence = 0;
+        this.runningCount = 0;
+        this.exclusiveRunning = false;
+    }
+
+    @Override
+    public synchronized void queueAction(Runnable action) {
+        add(new Entry(NO_ID, sequence++, action));
+        startNext();
+    }
+
+    @Override
+    public synchronized void queueAction(long id, Runnable action) {
+        add(new Entry(id, sequence++, action));
+        startNext();
+    }
+
+    @Override
+    public synchronized void queueRead(Runnable action) {
+        read(new Entry(NO_ID, sequence - 1, action));
+    }
+
+    @Override
+    public synchronized void queueRead(long id, Runnable action) {
+        read(new Entry(id, sequence - 1, action));
+    }
+
+    @Override
+    public synchronized void clearQueue() {
+        for (Entry entry : queue) {
+            unfinished.remove(entry.sequence);
+        }
+
+        queue.clear();
+        startReads();
+    }
+
+    private void add(Entry entry) {
+        queue.add(entry);
+        unfinished.put(entry.sequence, entry);
+    }
+
+    private void read(Entry entry) {
+        if (isReadReady(entry)) {
+            startRead(entry);
+        } else {
+            waitingReads.add(entry);
+        }
+    }
+
+    /**
+     * A read is ready once no action queued before it, that it depends on, is waiting or running.
+     * */
+    private boolean isReadReady(Entry read) {
+        for (Entry entry : unfinished.headMap(read.sequence, true).values()) {
+            if (read.id == NO_ID || entry.id == NO_ID || entry.id == read.id) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void startReads() {
+        Iterator<Entry> iterator = waitingReads.iterator();
+
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+
+            if (isReadReady(entry)) {
+                iterator.remove();
+                startRead(entry);
+            }
+        }
+    }
+
+    private void startRead(Entry entry) {
+        try {
+            readExecutor.execute(entry.action);
+        }catch (RejectedExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void startNext() {
+        Iterator<Entry> iterator = queue.iterator();
+
+        while (iterator.hasNext() && !exclusiveRunning && !actionExecutor.isShutdown()) {
+            Entry entry = iterator.next();
+
+            if (entry.id == NO_ID) {
+                if (runningCount == 0 && queue.peek() == entry) {
+                    iterator.remove();
+                    exclusiveRunning = true;
+                    start(entry);
+                }
+                return;
+            }
+
+            if (runningIds.add(entry.id)) {
+                iterator.remove();
+                start(entry);
+            }
+        }
+    }
+
+    private void start(final Entry entry) {
+        runningCount++;
+
+        try {
+            actionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        entry.action.run();
+                    }finally {
+                        onFinished(entry);
+                    }
+                }
+            });
+        }catch (RejectedExecutionException e) {
+            runningCount--;
+            release(entry);
+            unfinished.remove(entry.sequence);
+            startReads();
+        }
+    }
+
+    private synchronized void onFinished(Entry entry) {
+        runningCount--;
+        release(entry);
+        unfinished.remove(entry.sequence);
+        startNext();
+        startReads();
+    }
+
+    private void release(Entry entry) {
+        if (entry.id == NO_ID) {
+            exclusiveRunning = false;
+        } else {
+            runningIds.remove(entry.id);
+        }
+    }
+
+    private static final class Entry {
+        private final long id;
+        private final long sequence;
+        private final Runnable action;
+
+        Entry(long id, long sequence, Runnable action) {
+            this.id = id;
+            this.sequence = sequence;
+            this.action = action;
+        }
+    }
+}
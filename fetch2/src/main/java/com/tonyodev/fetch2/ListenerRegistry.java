@@ -0,0 +1,380 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copy-on-write registry of FetchListeners. A listener subscribes to every download,
+ * to a single request id or to a groupId. Changes rebuild an immutable Snapshot that
+ * is published through a volatile field, so dispatch reads it without locking and
+ * only visits the listeners that are interested in an event. Listeners are held
+ * weakly, as before, and cleared references are dropped on the next change.
+ *
+ * Group subscriptions are matched against the groupId the GroupAggregator reports
+ * for each event, so no separate copy of the groupIds is kept here.
+ *
+ * GroupListeners for the aggregate stats of a group are kept in the same snapshot,
+ * and are added and removed under the same lock.
+ */
+final class ListenerRegistry {
+
+    static final class Subscription {
+        private final WeakReference<FetchListener> ref;
+        private final boolean all;
+        private final long id;
+        private final String groupId;
+        private final CallbackExecutor callbackExecutor;
+
+        private Subscription(FetchListener listener, boolean all, long id, String groupId,
+                             CallbackExecutor callbackExecutor) {
+            this.ref = new WeakReference<>(listener);
+            this.all = all;
+            this.id = id;
+            this.groupId = groupId;
+            this.callbackExecutor = callbackExecutor;
+        }
+
+        @Nullable
+        FetchListener get() {
+            return ref.get();
+        }
+
+        /**
+         * @return the executor the listener asked for, or null to use the one of the Fetch instance.
+         * */
+        @Nullable
+        CallbackExecutor getCallbackExecutor() {
+            return callbackExecutor;
+        }
+
+    }
+
+    static final class StatsSubscription {
+        private final WeakReference<GroupListener> ref;
+        private final String groupId;
+
+        private StatsSubscription(GroupListener listener, String groupId) {
+            this.ref = new WeakReference<>(listener);
+            this.groupId = groupId;
+        }
+
+        @Nullable
+        GroupListener get() {
+            return ref.get();
+        }
+    }
+
+    static final class Snapshot {
+        private static final Subscription[] NONE = new Subscription[0];
+        private static final StatsSubscription[] NO_STATS = new StatsSubscription[0];
+
+        final Subscription[] all;
+        final Subscription[] scoped;
+        private final Map<Long,Subscription[]> byId;
+        private final Map<String,Subscription[]> byGroup;
+        private final Map<String,StatsSubscription[]> statsByGroup;
+
+        private Snapshot(Subscription[] all, Subscription[] scoped,
+                         Map<Long,Subscription[]> byId, Map<String,Subscription[]> byGroup,
+                         Map<String,StatsSubscription[]> statsByGroup) {
+            this.all = all;
+            this.scoped = scoped;
+            this.byId = byId;
+            this.byGroup = byGroup;
+            this.statsByGroup = statsByGroup;
+        }
+
+        @NonNull
+        Subscription[] forId(long id) {
+            if (byId.isEmpty()) {
+                return NONE;
+            }
+
+            Subscription[] subscriptions = byId.get(id);
+            return subscriptions != null ? subscriptions : NONE;
+        }
+
+        @NonNull
+        Subscription[] forGroup(@Nullable String groupId) {
+            if (byGroup.isEmpty() || groupId == null) {
+                return NONE;
+            }
+
+            Subscription[] subscriptions = byGroup.get(groupId);
+            return subscriptions != null ? subscriptions : NONE;
+        }
+
+        @NonNull
+        StatsSubscription[] forGroupStats(@Nullable String groupId) {
+            if (statsByGroup.isEmpty() || groupId == null) {
+                return NO_STATS;
+            }
+
+            StatsSubscription[] subscriptions = statsByGroup.get(groupId);
+            return subscriptions != null ? subscriptions : NO_STATS;
+        }
+
+        boolean hasGroupStats() {
+            return !statsByGroup.isEmpty();
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(Snapshot.NONE, Snapshot.NONE,
+            Collections.<Long,Subscription[]>emptyMap(), Collections.<String,Subscription[]>emptyMap(),
+            Collections.<String,StatsSubscription[]>emptyMap());
+
+    private volatile Snapshot snapshot;
+
+    ListenerRegistry() {
+        this.snapshot = EMPTY;
+    }
+
+    @NonNull
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return true if this is the first subscription of the listener.
+     * */
+    synchronized boolean addForAll(@NonNull FetchListener listener, @Nullable CallbackExecutor callbackExecutor) {
+        return add(new Subscription(listener, true, -1, null, callbackExecutor));
+    }
+
+    synchronized boolean addForId(long id, @NonNull FetchListener listener, @Nullable CallbackExecutor callbackExecutor) {
+        return add(new Subscription(listener, false, id, null, callbackExecutor));
+    }
+
+    synchronized boolean addForGroup(@NonNull String groupId, @NonNull FetchListener listener,
+                                     @Nullable CallbackExecutor callbackExecutor) {
+        return add(new Subscription(listener, false, -1, groupId, callbackExecutor));
+    }
+
+    /**
+     * Removes every subscription of the listener.
+     *
+     * @return true if the listener was registered.
+     * */
+    synchronized boolean remove(@NonNull FetchListener listener) {
+        List<Subscription> subscriptions = live();
+        boolean removed = false;
+
+        for (int i = subscriptions.size() - 1; i >= 0; i--) {
+            if (subscriptions.get(i).get() == listener) {
+                subscriptions.remove(i);
+                removed = true;
+            }
+        }
+
+        publish(subscriptions);
+        return removed;
+    }
+
+    /**
+     * Removes every subscription.
+     *
+     * @return the listeners that were registered, each listed once.
+     * */
+    @NonNull
+    synchronized List<FetchListener> clear() {
+        List<FetchListener> listeners = new ArrayList<>();
+
+        for (Subscription subscription : live()) {
+            FetchListener listener = subscription.get();
+
+            if (listener != null && !listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+        }
+
+        snapshot = new Snapshot(Snapshot.NONE, Snapshot.NONE, EMPTY.byId, EMPTY.byGroup, snapshot.statsByGroup);
+        return listeners;
+    }
+
+    /**
+     * @return true if the listener was not yet registered for the group.
+     * */
+    synchronized boolean addForGroupStats(@NonNull String groupId, @NonNull GroupListener listener) {
+        List<StatsSubscription> subscriptions = liveStats();
+
+        for (StatsSubscription existing : subscriptions) {
+            if (existing.get() == listener && existing.groupId.equals(groupId)) {
+                return false;
+            }
+        }
+
+        subscriptions.add(new StatsSubscription(listener, groupId));
+        publishStats(subscriptions);
+        return true;
+    }
+
+    /**
+     * Removes every group stats subscription of the listener.
+     *
+     * @return true if the listener was registered.
+     * */
+    synchronized boolean removeForGroupStats(@NonNull GroupListener listener) {
+        List<StatsSubscription> subscriptions = liveStats();
+        boolean removed = false;
+
+        for (int i = subscriptions.size() - 1; i >= 0; i--) {
+            if (subscriptions.get(i).get() == listener) {
+                subscriptions.remove(i);
+                removed = true;
+            }
+        }
+
+        publishStats(subscriptions);
+        return removed;
+    }
+
+    synchronized void clearGroupStats() {
+        Snapshot current = snapshot;
+        snapshot = new Snapshot(current.all, current.scoped, current.byId, current.byGroup, EMPTY.statsByGroup);
+    }
+
+    synchronized boolean contains(@NonNull FetchListener listener) {
+        return indexOf(listener) != -1;
+    }
+
+    private boolean add(Subscription subscription) {
+        FetchListener listener = subscription.get();
+        List<Subscription> subscriptions = live();
+
+        for (Subscription existing : subscriptions) {
+            if (existing.get() == listener && existing.all == subscription.all && existing.id == subscription.id
+                    && (existing.groupId == null ? subscription.groupId == null : existing.groupId.equals(subscription.groupId))) {
+                return false;
+            }
+        }
+
+        boolean first = indexOf(listener) == -1;
+        subscriptions.add(subscription);
+        publish(subscriptions);
+        return first;
+    }
+
+    private int indexOf(FetchListener listener) {
+        Subscription[] all = snapshot.all;
+        for (int i = 0; i < all.length; i++) {
+            if (all[i].get() == listener) {
+                return i;
+            }
+        }
+
+        Subscription[] scoped = snapshot.scoped;
+        for (int i = 0; i < scoped.length; i++) {
+            if (scoped[i].get() == listener) {
+                return all.length + i;
+            }
+        }
+
+        return -1;
+    }
+
+    private List<Subscription> live() {
+        Snapshot current = snapshot;
+        List<Subscription> subscriptions = new ArrayList<>(current.all.length + current.scoped.length);
+
+        for (Subscription subscription : current.all) {
+            if (subscription.get() != null) {
+                subscriptions.add(subscription);
+            }
+        }
+
+        for (Subscription subscription : current.scoped) {
+            if (subscription.get() != null) {
+                subscriptions.add(subscription);
+            }
+        }
+
+        return subscriptions;
+    }
+
+    private void publish(List<Subscription> subscriptions) {
+        List<Subscription> all = new ArrayList<>();
+        List<Subscription> scoped = new ArrayList<>();
+        Map<Long,List<Subscription>> byId = new HashMap<>();
+        Map<String,List<Subscription>> byGroup = new HashMap<>();
+
+        for (Subscription subscription : subscriptions) {
+            if (subscription.all) {
+                all.add(subscription);
+                continue;
+            }
+
+            scoped.add(subscription);
+
+            if (subscription.groupId != null) {
+                List<Subscription> list = byGroup.get(subscription.groupId);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    byGroup.put(subscription.groupId, list);
+                }
+                list.add(subscription);
+            } else {
+                List<Subscription> list = byId.get(subscription.id);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    byId.put(subscription.id, list);
+                }
+                list.add(subscription);
+            }
+        }
+
+        Map<Long,Subscription[]> idArrays = new HashMap<>();
+        for (Map.Entry<Long,List<Subscription>> entry : byId.entrySet()) {
+            idArrays.put(entry.getKey(), entry.getValue().toArray(Snapshot.NONE));
+        }
+
+        Map<String,Subscription[]> groupArrays = new HashMap<>();
+        for (Map.Entry<String,List<Subscription>> entry : byGroup.entrySet()) {
+            groupArrays.put(entry.getKey(), entry.getValue().toArray(Snapshot.NONE));
+        }
+
+        snapshot = new Snapshot(all.toArray(Snapshot.NONE), scoped.toArray(Snapshot.NONE), idArrays, groupArrays,
+                snapshot.statsByGroup);
+    }
+
+    private List<StatsSubscription> liveStats() {
+        List<StatsSubscription> subscriptions = new ArrayList<>();
+
+        for (StatsSubscription[] group : snapshot.statsByGroup.values()) {
+            for (StatsSubscription subscription : group) {
+                if (subscription.get() != null) {
+                    subscriptions.add(subscription);
+                }
+            }
+        }
+
+        return subscriptions;
+    }
+
+    private void publishStats(List<StatsSubscription> subscriptions) {
+        Map<String,List<StatsSubscription>> byGroup = new HashMap<>();
+
+        for (StatsSubscription subscription : subscriptions) {
+            List<StatsSubscription> list = byGroup.get(subscription.groupId);
+            if (list == null) {
+                list = new ArrayList<>();
+                byGroup.put(subscription.groupId, list);
+            }
+            list.add(subscription);
+        }
+
+        Map<String,StatsSubscription[]> groupArrays = new HashMap<>();
+        for (Map.Entry<String,List<StatsSubscription>> entry : byGroup.entrySet()) {
+            groupArrays.put(entry.getKey(), entry.getValue().toArray(Snapshot.NO_STATS));
+        }
+
+        Snapshot current = snapshot;
+        snapshot = new Snapshot(current.all, current.scoped, current.byId, current.byGroup, groupArrays);
+    }
+}
@@ -0,0 +1,109 @@
+package com.tonyodev.fetch2;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes into the file through a sliding MappedByteBuffer window. A single mapping is
+ * limited to Integer.MAX_VALUE bytes, so the file is mapped WINDOW_SIZE bytes at a time
+ * using long offsets. This lets files larger than 2GB be written.
+ *
+ * A window is forced to the file before it is replaced and on close, then unmapped.
+ * Where the platform does not allow unmapping, old windows stay mapped until they are
+ * garbage collected. At most MAX_RETAINED_WINDOWS are kept that way, after which the rest
+ * of the file is written through the channel so address space stays bounded.
+ */
+final class MappedFileOutput implements FileOutput {
+
+    static final long WINDOW_SIZE = 64 * 1024 * 1024;
+    static final int MAX_RETAINED_WINDOWS = 4;
+
+    private final FileChannel channel;
+    private final long totalBytes;
+    private long position;
+    private MappedByteBuffer window;
+    private int retainedWindows;
+
+    MappedFileOutput(FileChannel channel, long position, long totalBytes) {
+        this.channel = channel;
+        this.position = position;
+        this.totalBytes = totalBytes;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining()) {
+
+            if (window == null || !window.hasRemaining()) {
+                release();
+
+                if (retainedWindows >= MAX_RETAINED_WINDOWS) {
+                    int count = buffer.remaining();
+                    DownloadHelper.write(channel, buffer, position);
+                    position += count;
+                    return;
+                }
+
+                long size = Math.max(Math.min(WINDOW_SIZE, totalBytes - position), buffer.remaining());
+                window = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+                retainedWindows++;
+            }
+
+            int count = Math.min(buffer.remaining(), window.remaining());
+            int limit = buffer.limit();
+
+            buffer.limit(buffer.position() + count);
+            window.put(buffer);
+            buffer.limit(limit);
+
+            position += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+    }
+
+    private void release() {
+        if (window == null) {
+            return;
+        }
+
+        window.force();
+
+        if (unmap(window)) {
+            retainedWindows--;
+        }
+
+        window = null;
+    }
+
+    /**
+     * Unmaps the buffer through its cleaner. The buffer must not be used afterwards.
+     *
+     * @return false if the platform does not expose the cleaner.
+     * */
+    private static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+
+            if (cleaner == null) {
+                return false;
+            }
+
+            Method cleanMethod = cleaner.getClass().getMethod("clean");
+            cleanMethod.setAccessible(true);
+            cleanMethod.invoke(cleaner);
+            return true;
+        }catch (Exception e) {
+            return false;
+        }
+    }
+}
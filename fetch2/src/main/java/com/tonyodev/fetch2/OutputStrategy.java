@@ -0,0 +1,31 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+
+public enum OutputStrategy {
+    DEFAULT(0), PREALLOCATE(1), MEMORY_MAPPED(2);
+
+    private int value;
+
+    OutputStrategy(int value) {
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    @NonNull
+    public static OutputStrategy valueOf(int outputStrategy) {
+        switch (outputStrategy) {
+            case 1:return PREALLOCATE;
+            case 2:return MEMORY_MAPPED;
+            default:return DEFAULT;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OutputStrategy: " + value;
+    }
+}
@@ -0,0 +1,31 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+
+public enum Priority {
+    LOW(-1), NORMAL(0), HIGH(1);
+
+    private int value;
+
+    Priority(int value) {
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    @NonNull
+    public static Priority valueOf(int priority) {
+        switch (priority) {
+            case -1:return LOW;
+            case 1:return HIGH;
+            default:return NORMAL;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Priority: " + value;
+    }
+}
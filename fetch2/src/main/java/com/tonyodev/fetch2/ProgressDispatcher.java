@@ -0,0 +1,208 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects download events from the download threads and hands them to the CallbackExecutor
+ * in batches. Only the latest progress of each download is kept between dispatches,
+ * so a busy download posts at most one update per dispatch interval. All other events
+ * are never dropped and are delivered in the order they happened. They are dispatched
+ * right away, and progress older than an event of the same download is discarded.
+ *
+ * Events travel through a preallocated EventRingBuffer and the progress batch reuses
+ * its DownloadProgress objects, so steady state downloading does not allocate.
+ *
+ * Batches are handed to the Delivery on the CallbackExecutor. With direct delivery the
+ * thread that reports an event drains the ring itself, so draining is serialized.
+ */
+final class ProgressDispatcher implements DownloadListener {
+
+    static final long DEFAULT_DISPATCH_INTERVAL = 16;
+    static final int RING_BUFFER_CAPACITY = 1024;
+
+    private static final int IDLE = 0;
+    private static final int SCHEDULED_DELAYED = 1;
+    private static final int SCHEDULED_IMMEDIATE = 2;
+
+    interface Delivery extends DownloadListener {
+        void onProgressBatch(@NonNull List<DownloadProgress> progressList);
+    }
+
+    private final CallbackExecutor callbackExecutor;
+    private final long dispatchInterval;
+    private final Delivery delivery;
+    private final EventRingBuffer ringBuffer;
+    private final AtomicInteger scheduleState;
+    private final List<DownloadProgress> batch;
+    private final List<DownloadProgress> batchView;
+    private final List<DownloadProgress> recycled;
+    private volatile boolean isDisposed;
+
+    ProgressDispatcher(CallbackExecutor callbackExecutor, long dispatchInterval, Delivery delivery) {
+        this.callbackExecutor = callbackExecutor;
+        this.dispatchInterval = dispatchInterval;
+        this.delivery = delivery;
+        this.ringBuffer = new EventRingBuffer(RING_BUFFER_CAPACITY);
+        this.scheduleState = new AtomicInteger(IDLE);
+        this.batch = new ArrayList<>();
+        this.batchView = Collections.unmodifiableList(batch);
+        this.recycled = new ArrayList<>();
+        this.isDisposed = false;
+    }
+
+    /**
+     * Progress is dropped when the ring buffer is full. A later update or the final
+     * event of the download supersedes it.
+     * */
+    @Override
+    public void onProgress(long id, int progress, long downloadedBytes, long totalBytes) {
+        if (ringBuffer.offer(Status.DOWNLOADING.getValue(), id, Error.NONE.getValue(),
+                progress, downloadedBytes, totalBytes)) {
+            schedule(false);
+        }
+    }
+
+    @Override
+    public void onComplete(long id, int progress, long downloadedBytes, long totalBytes) {
+        publish(Status.COMPLETED, id, Error.NONE, progress, downloadedBytes, totalBytes);
+    }
+
+    @Override
+    public void onError(long id, @NonNull Error error, int progress, long downloadedBytes, long totalBytes) {
+        publish(Status.ERROR, id, error, progress, downloadedBytes, totalBytes);
+    }
+
+    @Override
+    public void onPause(long id, int progress, long downloadedBytes, long totalBytes) {
+        publish(Status.PAUSED, id, Error.NONE, progress, downloadedBytes, totalBytes);
+    }
+
+    @Override
+    public void onCancelled(long id, int progress, long downloadedBytes, long totalBytes) {
+        publish(Status.CANCELLED, id, Error.NONE, progress, downloadedBytes, totalBytes);
+    }
+
+    @Override
+    public void onRemoved(long id, int progress, long downloadedBytes, long totalBytes) {
+        publish(Status.REMOVED, id, Error.NONE, progress, downloadedBytes, totalBytes);
+    }
+
+    @Override
+    public void onQueued(long id, int progress, long downloadedBytes, long totalBytes) {
+        publish(Status.QUEUED, id, Error.NONE, progress, downloadedBytes, totalBytes);
+    }
+
+    void dispose() {
+        isDisposed = true;
+        callbackExecutor.cancel(dispatchRunnable);
+    }
+
+    private void publish(Status status, long id, Error error, int progress, long downloadedBytes, long totalBytes) {
+        if (isDisposed) {
+            return;
+        }
+
+        ringBuffer.put(status.getValue(), id, error.getValue(), progress, downloadedBytes, totalBytes);
+        schedule(true);
+    }
+
+    private void schedule(boolean immediate) {
+        while (!isDisposed) {
+            int state = scheduleState.get();
+
+            if (state == SCHEDULED_IMMEDIATE || (state == SCHEDULED_DELAYED && !immediate)) {
+                return;
+            }
+
+            int next = immediate ? SCHEDULED_IMMEDIATE : SCHEDULED_DELAYED;
+
+            if (scheduleState.compareAndSet(state, next)) {
+                if (immediate) {
+                    callbackExecutor.cancel(dispatchRunnable);
+                    callbackExecutor.execute(dispatchRunnable);
+                } else {
+                    callbackExecutor.executeDelayed(dispatchRunnable, dispatchInterval);
+                }
+                return;
+            }
+        }
+    }
+
+    private final EventRingBuffer.Consumer consumer = new EventRingBuffer.Consumer() {
+        @Override
+        public void onEvent(int status, long id, int error, int progress, long downloadedBytes, long totalBytes) {
+            if (status == Status.DOWNLOADING.getValue()) {
+                DownloadProgress downloadProgress = findInBatch(id);
+
+                if (downloadProgress == null) {
+                    downloadProgress = recycled.isEmpty() ? new DownloadProgress() : recycled.remove(recycled.size() - 1);
+                    batch.add(downloadProgress);
+                }
+
+                downloadProgress.set(id, progress, downloadedBytes, totalBytes);
+                return;
+            }
+
+            DownloadProgress downloadProgress = findInBatch(id);
+            if (downloadProgress != null) {
+                batch.remove(downloadProgress);
+                recycled.add(downloadProgress);
+            }
+
+            switch (Status.valueOf(status)) {
+                case COMPLETED:
+                    delivery.onComplete(id, progress, downloadedBytes, totalBytes);
+                    break;
+                case ERROR:
+                    delivery.onError(id, Error.valueOf(error), progress, downloadedBytes, totalBytes);
+                    break;
+                case PAUSED:
+                    delivery.onPause(id, progress, downloadedBytes, totalBytes);
+                    break;
+                case CANCELLED:
+                    delivery.onCancelled(id, progress, downloadedBytes, totalBytes);
+                    break;
+                case REMOVED:
+                    delivery.onRemoved(id, progress, downloadedBytes, totalBytes);
+                    break;
+                case QUEUED:
+                    delivery.onQueued(id, progress, downloadedBytes, totalBytes);
+                    break;
+            }
+        }
+
+        private DownloadProgress findInBatch(long id) {
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.get(i).getId() == id) {
+                    return batch.get(i);
+                }
+            }
+
+            return null;
+        }
+    };
+
+    private final Runnable dispatchRunnable = new Runnable() {
+        @Override
+        public synchronized void run() {
+            scheduleState.set(IDLE);
+
+            if (isDisposed) {
+                return;
+            }
+
+            ringBuffer.drain(consumer);
+
+            if (!batch.isEmpty()) {
+                delivery.onProgressBatch(batchView);
+                recycled.addAll(batch);
+                batch.clear();
+            }
+        }
+    };
+}
@@ -0,0 +1,295 @@
+package com.tonyodev.fetch2;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the byte counts of active downloads in memory. Counts are written to the
+ * database in one batched transaction once the flush interval or byte threshold is
+ * reached, instead of once per buffer read. When a download is verified with a
+ * StreamingDigest, the digest state is saved in the same transaction.
+ *
+ * Progress updates only record the counts. The periodic transaction runs on the store's
+ * own flush thread, so the threads that read from the network never wait on SQLite.
+ * The digest of a download is updated by the TransferPipeline's writer thread while the
+ * download thread reports progress. The download thread takes the snapshot: it holds the
+ * digest's monitor, which every digest update also holds, while it exports the state and
+ * reads the number of bytes the state covers. That count is saved with the state, so the
+ * two always match even when the writer is ahead of the reported progress. The flush
+ * thread only writes the snapshot.
+ */
+final class ProgressStore {
+
+    static final long DEFAULT_FLUSH_INTERVAL = 2000;
+    static final long DEFAULT_FLUSH_THRESHOLD = 1024 * 1024;
+
+    private final DatabaseManager databaseManager;
+    private final ConcurrentHashMap<Long,Entry> entries;
+    private final long flushInterval;
+    private final long flushThreshold;
+    private final ExecutorService flushExecutor;
+    private final AtomicBoolean flushScheduled;
+    private final Runnable flushRunnable;
+    private volatile long lastFlushTime;
+
+    ProgressStore(DatabaseManager databaseManager, long flushInterval, long flushThreshold) {
+        this.databaseManager = databaseManager;
+        this.entries = new ConcurrentHashMap<>();
+        this.flushInterval = flushInterval;
+        this.flushThreshold = flushThreshold;
+        this.flushExecutor = Executors.newSingleThreadExecutor();
+        this.flushScheduled = new AtomicBoolean(false);
+        this.flushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                flush();
+            }
+        };
+        this.lastFlushTime = SystemClock.elapsedRealtime();
+    }
+
+    void update(long id, long downloadedBytes, long totalBytes) {
+        update(id, downloadedBytes, totalBytes, null);
+    }
+
+    void update(long id, long downloadedBytes, long totalBytes, StreamingDigest digest) {
+        Entry entry = entries.get(id);
+
+        if (entry == null) {
+            entry = new Entry(id);
+            Entry existing = entries.putIfAbsent(id, entry);
+
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+
+        entry.set(downloadedBytes, totalBytes, digest);
+
+        if (entry.getPendingBytes() >= flushThreshold
+                || SystemClock.elapsedRealtime() - lastFlushTime >= flushInterval) {
+            entry.snapshot();
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Hands a flush to the flush thread. Does nothing if one is already waiting to run.
+     * */
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        lastFlushTime = SystemClock.elapsedRealtime();
+
+        try {
+            flushExecutor.execute(flushRunnable);
+        }catch (RejectedExecutionException e) {
+            flushScheduled.set(false);
+        }
+    }
+
+    /**
+     * Writes the final byte counts of a download, together with every other pending
+     * count, and stops tracking it. Called on pause, cancel, error and complete.
+     * It runs on the calling thread, so the count is stored when it returns.
+     * */
+    void flush(long id, long downloadedBytes, long totalBytes) {
+        flush(id, downloadedBytes, totalBytes, null);
+    }
+
+    void flush(long id, long downloadedBytes, long totalBytes, StreamingDigest digest) {
+        Entry entry = new Entry(id);
+        entry.set(downloadedBytes, totalBytes, digest);
+        entry.snapshot();
+        entries.put(id, entry);
+
+        flush();
+        entries.remove(id);
+    }
+
+    synchronized void flush() {
+        final List<Entry> dirty = new ArrayList<>();
+
+        for (Entry entry : entries.values()) {
+            if (entry.prepare()) {
+                dirty.add(entry);
+            }
+        }
+
+        lastFlushTime = SystemClock.elapsedRealtime();
+
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        databaseManager.executeTransaction(new Transaction() {
+            @Override
+            public void onPreExecute() {
+
+            }
+
+            @Override
+            public void onExecute(Database database) {
+                for (Entry entry : dirty) {
+                    entry.flush(database);
+                }
+            }
+
+            @Override
+            public void onPostExecute() {
+
+            }
+        });
+    }
+
+    void dispose() {
+        flushExecutor.shutdown();
+    }
+
+    /**
+     * Downloads that were running when the process died can have a stored byte count
+     * that is behind the data on disk. The file is the source of truth for single
+     * connection downloads, so the stored count is reset to the file length.
+     * Segmented downloads keep their own per-range resume points and preallocated
+     * files already have their full length, so both resume from the stored count.
+     * */
+    void recover() {
+        databaseManager.executeTransaction(new Transaction() {
+            @Override
+            public void onPreExecute() {
+
+            }
+
+            @Override
+            public void onExecute(Database database) {
+                List<RequestData> list = database.queryByStatus(Status.DOWNLOADING.getValue());
+
+                for (RequestData requestData : list) {
+
+                    if (requestData.getSegments() > 1
+                            || requestData.getOutputStrategy() != OutputStrategy.DEFAULT) {
+                        continue;
+                    }
+
+                    File file = new File(requestData.getAbsoluteFilePath());
+                    long downloadedBytes = file.exists() ? file.length() : 0;
+
+                    if (requestData.getTotalBytes() > 0) {
+                        downloadedBytes = Math.min(downloadedBytes, requestData.getTotalBytes());
+                    }
+
+                    if (downloadedBytes != requestData.getDownloadedBytes()) {
+                        database.updateDownloadedBytes(requestData.getId(), downloadedBytes);
+                    }
+                }
+            }
+
+            @Override
+            public void onPostExecute() {
+
+            }
+        });
+    }
+
+    private static final class Entry {
+        private final long id;
+        private long downloadedBytes;
+        private long totalBytes;
+        private long flushedBytes;
+        private StreamingDigest digest;
+        private long savedBytes;
+        private long savedTotalBytes;
+        private byte[] savedDigestState;
+        private boolean saved;
+
+        Entry(long id) {
+            this.id = id;
+            this.flushedBytes = -1;
+        }
+
+        synchronized void set(long downloadedBytes, long totalBytes, StreamingDigest digest) {
+            if (flushedBytes == -1) {
+                flushedBytes = downloadedBytes;
+            }
+
+            this.downloadedBytes = downloadedBytes;
+            this.totalBytes = totalBytes;
+            this.digest = digest;
+        }
+
+        synchronized long getPendingBytes() {
+            return Math.abs(downloadedBytes - flushedBytes);
+        }
+
+        /**
+         * Saves the current counts for the next flush. With a digest, the saved count
+         * is the length the exported state covers, read under the digest's monitor.
+         * Those bytes have already been written, as the writer hashes a buffer only
+         * after writing it.
+         * */
+        synchronized void snapshot() {
+            if (digest == null) {
+                save(downloadedBytes, null);
+                return;
+            }
+
+            byte[] digestState;
+            long digestLength;
+
+            synchronized (digest) {
+                digestState = digest.exportState();
+                digestLength = digest.getLength();
+            }
+
+            save(digestLength, digestState);
+        }
+
+        /**
+         * Called on the flush thread. Counts without a digest can be saved here, a
+         * download with a digest is only written from its last snapshot.
+         *
+         * @return true if the entry has counts to write.
+         * */
+        synchronized boolean prepare() {
+            if (digest == null && downloadedBytes != flushedBytes) {
+                save(downloadedBytes, null);
+            }
+
+            return saved;
+        }
+
+        synchronized void flush(Database database) {
+            if (!saved) {
+                return;
+            }
+
+            database.setDownloadedBytesAndTotalBytes(id, savedBytes, savedTotalBytes);
+
+            if (savedDigestState != null) {
+                database.setDigestState(id, savedDigestState);
+            }
+
+            flushedBytes = savedBytes;
+            savedDigestState = null;
+            saved = false;
+        }
+
+        private void save(long bytes, byte[] digestState) {
+            savedBytes = bytes;
+            savedTotalBytes = totalBytes;
+            savedDigestState = digestState;
+            saved = true;
+        }
+    }
+}
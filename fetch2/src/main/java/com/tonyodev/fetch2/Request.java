@@ -4,6 +4,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.util.ArrayMap;
 
+import java.util.Locale;
 import java.util.Map;
 
 
@@ -14,6 +15,11 @@ public final class Request {
     private final String absoluteFilePath;
     private final Map<String,String> headers;
     private String groupId;
+    private int segments;
+    private OutputStrategy outputStrategy;
+    private Priority priority;
+    private DigestAlgorithm digestAlgorithm;
+    private String expectedDigest;
 
     public Request(@NonNull String url, @NonNull String absoluteFilePath) {
         this(url,absoluteFilePath,null);
@@ -36,6 +42,11 @@ public final class Request {
         this.absoluteFilePath = absoluteFilePath;
         this.headers = headers;
         this.groupId = "";
+        this.segments = 1;
+        this.outputStrategy = OutputStrategy.DEFAULT;
+        this.priority = Priority.NORMAL;
+        this.digestAlgorithm = DigestAlgorithm.NONE;
+        this.expectedDigest = null;
         this.id = generateId();
     }
 
@@ -81,6 +92,80 @@ public final class Request {
         this.groupId = groupId;
     }
 
+    public int getSegments() {
+        return segments;
+    }
+
+    public void setSegments(int segments) {
+
+        if (segments < 1) {
+            throw new IllegalArgumentException("segments cannot be less than 1");
+        }
+        this.segments = segments;
+    }
+
+    @NonNull
+    public OutputStrategy getOutputStrategy() {
+        return outputStrategy;
+    }
+
+    public void setOutputStrategy(@NonNull OutputStrategy outputStrategy) {
+
+        if (outputStrategy == null) {
+            throw new IllegalArgumentException("outputStrategy cannot be null");
+        }
+        this.outputStrategy = outputStrategy;
+    }
+
+    @NonNull
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(@NonNull Priority priority) {
+
+        if (priority == null) {
+            throw new IllegalArgumentException("priority cannot be null");
+        }
+        this.priority = priority;
+    }
+
+    @NonNull
+    public DigestAlgorithm getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    @Nullable
+    public String getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    /**
+     * Checksum the downloaded file must match. It is computed while the file is written,
+     * and the download fails with Error.CHECKSUM_MISMATCH if it differs.
+     *
+     * @param digest hex encoded checksum. Pass DigestAlgorithm.NONE and null to disable.
+     * */
+    public void setExpectedDigest(@NonNull DigestAlgorithm digestAlgorithm, @Nullable String digest) {
+
+        if (digestAlgorithm == null) {
+            throw new IllegalArgumentException("digestAlgorithm cannot be null");
+        }
+
+        if (digestAlgorithm == DigestAlgorithm.NONE) {
+            this.digestAlgorithm = digestAlgorithm;
+            this.expectedDigest = null;
+            return;
+        }
+
+        if (digest == null || !digest.matches("[0-9a-fA-F]{" + digestAlgorithm.getDigestLength() * 2 + "}")) {
+            throw new IllegalArgumentException("digest is not a valid hex encoded " + digestAlgorithm.name() + " checksum");
+        }
+
+        this.digestAlgorithm = digestAlgorithm;
+        this.expectedDigest = digest.toLowerCase(Locale.US);
+    }
+
     private long generateId() {
         long code1 = 0;
         long code2 = 0;
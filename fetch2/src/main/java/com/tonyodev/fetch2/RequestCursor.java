@@ -0,0 +1,86 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Walks through every request in id order, one page at a time. Each call to next
+ * loads the page after the last one delivered, so memory use is bounded by the page
+ * size no matter how many requests there are. Requests added or removed while the
+ * cursor is open are seen if their id is beyond the current position.
+ */
+public final class RequestCursor {
+
+    private final Fetch fetch;
+    private final int pageSize;
+    private Long lastId;
+    private boolean isLoading;
+    private boolean isExhausted;
+
+    RequestCursor(Fetch fetch, int pageSize) {
+        this.fetch = fetch;
+        this.pageSize = pageSize;
+        this.lastId = null;
+        this.isLoading = false;
+        this.isExhausted = false;
+    }
+
+    /**
+     * Loads the next page. The result is empty once every request has been delivered.
+     *
+     * @throws IllegalStateException if the previous page has not been delivered yet.
+     * */
+    public synchronized void next(@NonNull final Query<List<RequestData>> query) {
+        FetchHelper.throwIfQueryIsNull(query);
+
+        if (isLoading) {
+            throw new IllegalStateException("The previous page is still loading");
+        }
+
+        isLoading = true;
+
+        Query<List<RequestData>> pageQuery = new Query<List<RequestData>>() {
+            @Override
+            public void onResult(@Nullable List<RequestData> result) {
+                onPage(result);
+                query.onResult(result);
+            }
+        };
+
+        try {
+            if (lastId == null) {
+                fetch.queryPage(pageSize,pageQuery);
+            } else {
+                fetch.queryPage(lastId,pageSize,pageQuery);
+            }
+        } catch (RuntimeException e) {
+            isLoading = false;
+            throw e;
+        }
+    }
+
+    /**
+     * @return true once a page shorter than the page size has been delivered.
+     * */
+    public synchronized boolean isExhausted() {
+        return isExhausted;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    private synchronized void onPage(@Nullable List<RequestData> page) {
+        isLoading = false;
+
+        if (page == null || page.size() < pageSize) {
+            isExhausted = true;
+        }
+
+        if (page != null && !page.isEmpty()) {
+            lastId = page.get(page.size() - 1).getId();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.tonyodev.fetch2;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.util.ArrayMap;
 
 import java.util.Map;
@@ -17,9 +18,17 @@ public final class RequestData {
     private final Map<String,String> headers;
     private final Request request;
     private final String groupId;
+    private final int segments;
+    private final OutputStrategy outputStrategy;
+    private final Priority priority;
+    private final DigestAlgorithm digestAlgorithm;
+    private final String expectedDigest;
+    private final byte[] digestState;
 
     public RequestData(@NonNull String url,@NonNull String absoluteFilePath, int status,
-                       int error, long downloadedBytes, long totalBytes,@NonNull Map<String,String> headers,@NonNull String groupId) {
+                       int error, long downloadedBytes, long totalBytes,@NonNull Map<String,String> headers,@NonNull String groupId,
+                       int segments, int outputStrategy, int priority,
+                       int digestAlgorithm, @Nullable String expectedDigest, @Nullable byte[] digestState) {
 
         if (url == null) {
             throw new IllegalArgumentException("Url cannot be null");
@@ -46,7 +55,18 @@ public final class RequestData {
         this.progress = DownloadHelper.calculateProgress(downloadedBytes,totalBytes);
         this.headers = headers;
         this.request = new Request(url,absoluteFilePath,headers);
+        this.request.setGroupId(groupId);
+        this.request.setSegments(segments);
+        this.outputStrategy = OutputStrategy.valueOf(outputStrategy);
+        this.request.setOutputStrategy(this.outputStrategy);
+        this.priority = Priority.valueOf(priority);
+        this.request.setPriority(this.priority);
+        this.digestAlgorithm = expectedDigest == null ? DigestAlgorithm.NONE : DigestAlgorithm.valueOf(digestAlgorithm);
+        this.request.setExpectedDigest(this.digestAlgorithm, expectedDigest);
+        this.expectedDigest = this.request.getExpectedDigest();
+        this.digestState = digestState;
         this.groupId = groupId;
+        this.segments = segments;
     }
 
     public long getId() {
@@ -100,6 +120,55 @@ public final class RequestData {
         return groupId;
     }
 
+    public int getSegments() {
+        return segments;
+    }
+
+    @NonNull
+    public OutputStrategy getOutputStrategy() {
+        return outputStrategy;
+    }
+
+    @NonNull
+    public Priority getPriority() {
+        return priority;
+    }
+
+    @NonNull
+    public DigestAlgorithm getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    @Nullable
+    public String getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    @Nullable
+    byte[] getDigestState() {
+        return digestState;
+    }
+
+    @NonNull
+    RequestData withStatus(@NonNull Status status, int error) {
+        return new RequestData(url,absoluteFilePath,status.getValue(),error,downloadedBytes,totalBytes,headers,groupId,
+                segments,outputStrategy.getValue(),priority.getValue(),digestAlgorithm.getValue(),expectedDigest,digestState);
+    }
+
+    @NonNull
+    RequestData withBytes(long downloadedBytes, long totalBytes) {
+        return new RequestData(url,absoluteFilePath,status.getValue(),error.getValue(),downloadedBytes,totalBytes,headers,
+                groupId,segments,outputStrategy.getValue(),priority.getValue(),digestAlgorithm.getValue(),expectedDigest,
+                digestState);
+    }
+
+    @NonNull
+    RequestData withDigestState(@Nullable byte[] digestState) {
+        return new RequestData(url,absoluteFilePath,status.getValue(),error.getValue(),downloadedBytes,totalBytes,headers,
+                groupId,segments,outputStrategy.getValue(),priority.getValue(),digestAlgorithm.getValue(),expectedDigest,
+                digestState);
+    }
+
     @Override
     public String toString() {
         return request.toString();
@@ -0,0 +1,231 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of every request, keyed by id, with secondary indexes by status and
+ * groupId. It is loaded from the database once and kept in sync by the Database
+ * wrapper of DatabaseManager, which applies the changes of every transaction once it
+ * has committed. Queries are answered from here without touching the disk.
+ * RequestData is immutable, so entries are replaced on every change and handed out
+ * without copying. Requests are ordered by id, which lets callers page through them
+ * by keyset. Every change is also reported to the GroupAggregator.
+ */
+final class RequestIndex {
+
+    private final NavigableMap<Long,RequestData> byId;
+    private final Map<Status,Map<Long,RequestData>> byStatus;
+    private final Map<String,Map<Long,RequestData>> byGroupId;
+    private final ReadWriteLock lock;
+    private final GroupAggregator groupAggregator;
+
+    RequestIndex(GroupAggregator groupAggregator) {
+        this.byId = new TreeMap<>();
+        this.byStatus = new HashMap<>();
+        this.byGroupId = new HashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.groupAggregator = groupAggregator;
+    }
+
+    void load(@NonNull List<RequestData> requestDataList) {
+        lock.writeLock().lock();
+
+        try {
+            byId.clear();
+            byStatus.clear();
+            byGroupId.clear();
+            groupAggregator.clear();
+
+            for (RequestData requestData : requestDataList) {
+                add(requestData);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void put(@NonNull RequestData requestData) {
+        lock.writeLock().lock();
+
+        try {
+            RequestData existing = byId.get(requestData.getId());
+
+            if (existing != null && (existing.getStatus() != requestData.getStatus()
+                    || !existing.getGroupId().equals(requestData.getGroupId()))) {
+                removeSecondary(byStatus, existing.getStatus(), existing.getId());
+                removeSecondary(byGroupId, existing.getGroupId(), existing.getId());
+            }
+
+            add(requestData);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the changes of a committed transaction under a single write lock. A null
+     * value removes the request.
+     * */
+    void apply(@NonNull Map<Long,RequestData> changes) {
+        lock.writeLock().lock();
+
+        try {
+            for (Map.Entry<Long,RequestData> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    removeEntry(change.getKey());
+                } else {
+                    put(change.getValue());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Nullable
+    RequestData get(long id) {
+        lock.readLock().lock();
+
+        try {
+            return byId.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @NonNull
+    List<RequestData> get(long[] ids) {
+        lock.readLock().lock();
+
+        try {
+            List<RequestData> list = new ArrayList<>(ids.length);
+
+            for (long id : ids) {
+                RequestData requestData = byId.get(id);
+
+                if (requestData != null) {
+                    list.add(requestData);
+                }
+            }
+
+            return list;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @NonNull
+    List<RequestData> getAll() {
+        lock.readLock().lock();
+
+        try {
+            return new ArrayList<>(byId.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param afterId id of the last request of the previous page, or null for the first page.
+     * @return up to limit requests with an id greater than afterId, ordered by id.
+     * */
+    @NonNull
+    List<RequestData> getPage(@Nullable Long afterId, int limit) {
+        lock.readLock().lock();
+
+        try {
+            Map<Long,RequestData> tail = afterId == null ? byId : byId.tailMap(afterId, false);
+            List<RequestData> list = new ArrayList<>(Math.min(limit, tail.size()));
+
+            for (RequestData requestData : tail.values()) {
+                if (list.size() == limit) {
+                    break;
+                }
+
+                list.add(requestData);
+            }
+
+            return list;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @NonNull
+    List<RequestData> getByStatus(@NonNull Status status) {
+        lock.readLock().lock();
+
+        try {
+            Map<Long,RequestData> entries = byStatus.get(status);
+            return entries == null ? new ArrayList<RequestData>() : new ArrayList<>(entries.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @NonNull
+    List<RequestData> getByGroupId(@NonNull String groupId) {
+        lock.readLock().lock();
+
+        try {
+            Map<Long,RequestData> entries = byGroupId.get(groupId);
+            return entries == null ? new ArrayList<RequestData>() : new ArrayList<>(entries.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void add(RequestData requestData) {
+        long id = requestData.getId();
+        byId.put(id, requestData);
+        secondary(byStatus, requestData.getStatus()).put(id, requestData);
+        secondary(byGroupId, requestData.getGroupId()).put(id, requestData);
+        groupAggregator.put(requestData);
+    }
+
+    private void removeEntry(long id) {
+        RequestData existing = byId.remove(id);
+
+        if (existing == null) {
+            return;
+        }
+
+        removeSecondary(byStatus, existing.getStatus(), id);
+        removeSecondary(byGroupId, existing.getGroupId(), id);
+        groupAggregator.remove(id);
+    }
+
+    private static <K> Map<Long,RequestData> secondary(Map<K,Map<Long,RequestData>> index, K key) {
+        Map<Long,RequestData> entries = index.get(key);
+
+        if (entries == null) {
+            entries = new LinkedHashMap<>();
+            index.put(key, entries);
+        }
+
+        return entries;
+    }
+
+    private static <K> void removeSecondary(Map<K,Map<Long,RequestData>> index, K key, long id) {
+        Map<Long,RequestData> entries = index.get(key);
+
+        if (entries != null) {
+            entries.remove(id);
+
+            if (entries.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
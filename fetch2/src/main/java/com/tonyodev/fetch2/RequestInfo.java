@@ -16,7 +16,8 @@ import java.util.Map;
  */
 
 @TypeConverters({DatabaseConverters.class})
-@Entity(tableName = "requestInfos",indices = {@Index("url"),@Index("status"),@Index(value = "absoluteFilePath",unique = true)})
+@Entity(tableName = "requestInfos",indices = {@Index("url"),@Index("status"),@Index(value = {"groupId","status"}),
+        @Index(value = "absoluteFilePath",unique = true)})
 public class RequestInfo {
     @PrimaryKey
     private long id;
@@ -28,6 +29,12 @@ public class RequestInfo {
     private int error;
     private Map<String,String> headers;
     private String groupId;
+    private int segments;
+    private int outputStrategy;
+    private int priority;
+    private int digestAlgorithm;
+    private String expectedDigest;
+    private byte[] digestState;
 
     public RequestInfo() {
     }
@@ -35,7 +42,9 @@ public class RequestInfo {
     @Ignore
     public RequestInfo(long id, String url, String absoluteFilePath,
                        int status, long downloadedBytes, long totalBytes,
-                       int error, Map<String,String> headers,String groupId) {
+                       int error, Map<String,String> headers,String groupId,int segments,
+                       int outputStrategy, int priority, int digestAlgorithm,
+                       String expectedDigest, byte[] digestState) {
         this.id = id;
         this.url = url;
         this.absoluteFilePath = absoluteFilePath;
@@ -45,6 +54,12 @@ public class RequestInfo {
         this.error = error;
         this.headers = headers;
         this.groupId = groupId;
+        this.segments = segments;
+        this.outputStrategy = outputStrategy;
+        this.priority = priority;
+        this.digestAlgorithm = digestAlgorithm;
+        this.expectedDigest = expectedDigest;
+        this.digestState = digestState;
     }
 
     public long getId() {
@@ -119,25 +134,82 @@ public class RequestInfo {
         this.groupId = groupId;
     }
 
+    public int getSegments() {
+        return segments;
+    }
+
+    public void setSegments(int segments) {
+        this.segments = segments;
+    }
+
+    public int getOutputStrategy() {
+        return outputStrategy;
+    }
+
+    public void setOutputStrategy(int outputStrategy) {
+        this.outputStrategy = outputStrategy;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public int getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public void setDigestAlgorithm(int digestAlgorithm) {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    public String getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    public void setExpectedDigest(String expectedDigest) {
+        this.expectedDigest = expectedDigest;
+    }
+
+    public byte[] getDigestState() {
+        return digestState;
+    }
+
+    public void setDigestState(byte[] digestState) {
+        this.digestState = digestState;
+    }
+
     @Ignore
     RequestData toRequestData() {
 
-        return new RequestData(url,absoluteFilePath,status,error,downloadedBytes,totalBytes,headers,groupId);
+        return new RequestData(url,absoluteFilePath,status,error,downloadedBytes,totalBytes,headers,groupId,segments,
+                outputStrategy,priority,digestAlgorithm,expectedDigest,digestState);
     }
 
     @Ignore
-    static RequestInfo newInstance(long id, String url, String absoluteFilePath,String groupId) {
+    static RequestInfo newInstance(Request request) {
 
         RequestInfo requestInfo = new RequestInfo();
-        requestInfo.setId(id);
-        requestInfo.setUrl(url);
-        requestInfo.setAbsoluteFilePath(absoluteFilePath);
+        requestInfo.setId(request.getId());
+        requestInfo.setUrl(request.getUrl());
+        requestInfo.setAbsoluteFilePath(request.getAbsoluteFilePath());
         requestInfo.setStatus(Status.QUEUED.getValue());
         requestInfo.setTotalBytes(0L);
         requestInfo.setDownloadedBytes(0L);
         requestInfo.setError(Error.NONE.getValue());
-        requestInfo.setHeaders(new ArrayMap<String, String>());
-        requestInfo.setGroupId(groupId);
+
+        Map<String,String> headers = new ArrayMap<>();
+        headers.putAll(request.getHeaders());
+        requestInfo.setHeaders(headers);
+        requestInfo.setGroupId(request.getGroupId());
+        requestInfo.setSegments(request.getSegments());
+        requestInfo.setOutputStrategy(request.getOutputStrategy().getValue());
+        requestInfo.setPriority(request.getPriority().getValue());
+        requestInfo.setDigestAlgorithm(request.getDigestAlgorithm().getValue());
+        requestInfo.setExpectedDigest(request.getExpectedDigest());
 
         return requestInfo;
     }
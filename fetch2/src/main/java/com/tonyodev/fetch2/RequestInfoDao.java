@@ -16,7 +16,7 @@ public interface RequestInfoDao {
  @Insert
  long insert(RequestInfo requestInfo);
 
- @Insert
+ @Insert(onConflict = OnConflictStrategy.IGNORE)
  List<Long> insert(List<RequestInfo> requestInfoList);
 
  @Query("SELECT * FROM requestInfos WHERE status = :status")
@@ -31,6 +31,12 @@ public interface RequestInfoDao {
  @Query("SELECT * FROM requestInfos")
  List<RequestInfo>query();
 
+ @Query("SELECT * FROM requestInfos ORDER BY id LIMIT :limit")
+ List<RequestInfo> queryPage(int limit);
+
+ @Query("SELECT * FROM requestInfos WHERE id > :afterId ORDER BY id LIMIT :limit")
+ List<RequestInfo> queryPage(long afterId,int limit);
+
  @Query("SELECT * FROM requestInfos WHERE id IN(:ids)")
  List<RequestInfo>query(long[] ids);
 
@@ -40,12 +46,33 @@ public interface RequestInfoDao {
  @Query("UPDATE requestInfos SET downloadedBytes = :downloadedBytes, totalBytes = :totalBytes WHERE id = :id")
  void setDownloadedBytesAndTotalBytes(long id,long downloadedBytes,long totalBytes);
 
+ @Query("UPDATE requestInfos SET digestState = :digestState WHERE id = :id")
+ void setDigestState(long id,byte[] digestState);
+
  @Query("UPDATE requestInfos SET status = :status, error = :error WHERE id = :id")
  void setStatusAndError(long id,int status,int error);
 
+ @Query("UPDATE requestInfos SET status = :status, error = :error WHERE id IN(:ids)")
+ void setStatusAndError(long[] ids,int status,int error);
+
+ @Query("UPDATE requestInfos SET status = :status, error = :error WHERE status = :fromStatus")
+ void setStatusAndErrorByStatus(int fromStatus,int status,int error);
+
+ @Query("UPDATE requestInfos SET status = :status, error = :error WHERE groupId = :groupId AND status = :fromStatus")
+ void setStatusAndErrorByGroupId(String groupId,int fromStatus,int status,int error);
+
  @Query("DELETE FROM requestInfos WHERE id = :id")
  void remove(long id);
 
+ @Query("DELETE FROM requestInfos WHERE id IN(:ids)")
+ void remove(long[] ids);
+
+ @Query("DELETE FROM requestInfos WHERE status = :status")
+ void removeByStatus(int status);
+
+ @Query("DELETE FROM requestInfos WHERE groupId = :groupId AND status = :status")
+ void removeByGroupId(String groupId,int status);
+
  @Query("DELETE FROM requestInfos")
  void deleteAll();
 }
@@ -0,0 +1,236 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes a filtered and sorted query over the stored requests. Conditions given to the
+ * Builder are combined with AND and compiled into a single SQL statement. Statuses and
+ * groupIds are served by the (groupId, status) and status indexes, and the url prefix
+ * by the url index. The statement only selects ids, and the requests are then read
+ * from memory.
+ */
+public final class RequestQuery {
+
+    public enum Order {
+        ID("id"),
+        URL("url"),
+        STATUS("status"),
+        PRIORITY("priority"),
+        TOTAL_BYTES("totalBytes"),
+        DOWNLOADED_BYTES("downloadedBytes");
+
+        private final String column;
+
+        Order(String column) {
+            this.column = column;
+        }
+    }
+
+    private final String sql;
+    private final Object[] args;
+
+    private RequestQuery(Builder builder) {
+        List<Object> args = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("SELECT id FROM requestInfos");
+        List<String> conditions = new ArrayList<>();
+
+        if (!builder.groupIds.isEmpty()) {
+            conditions.add("groupId IN(" + placeholders(builder.groupIds.size()) + ")");
+            args.addAll(builder.groupIds);
+        }
+
+        if (!builder.statuses.isEmpty()) {
+            conditions.add("status IN(" + placeholders(builder.statuses.size()) + ")");
+            args.addAll(builder.statuses);
+        }
+
+        if (builder.urlPrefix != null && !builder.urlPrefix.isEmpty()) {
+            String upperBound = upperBound(builder.urlPrefix);
+            conditions.add(upperBound == null ? "url >= ?" : "url >= ? AND url < ?");
+            args.add(builder.urlPrefix);
+
+            if (upperBound != null) {
+                args.add(upperBound);
+            }
+        }
+
+        if (builder.minTotalBytes >= 0) {
+            conditions.add("totalBytes >= ?");
+            args.add(builder.minTotalBytes);
+        }
+
+        if (builder.maxTotalBytes >= 0) {
+            conditions.add("totalBytes <= ?");
+            args.add(builder.maxTotalBytes);
+        }
+
+        for (int i = 0; i < conditions.size(); i++) {
+            sql.append(i == 0 ? " WHERE " : " AND ").append(conditions.get(i));
+        }
+
+        String direction = builder.descending ? " DESC" : " ASC";
+        sql.append(" ORDER BY ").append(builder.order.column).append(direction);
+
+        if (builder.order != Order.ID) {
+            sql.append(", id").append(direction);
+        }
+
+        if (builder.limit > 0) {
+            sql.append(" LIMIT ?");
+            args.add(builder.limit);
+        }
+
+        this.sql = sql.toString();
+        this.args = args.toArray();
+    }
+
+    @NonNull
+    String getSql() {
+        return sql;
+    }
+
+    @NonNull
+    Object[] getArgs() {
+        return args;
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            stringBuilder.append(i == 0 ? "?" : ",?");
+        }
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Smallest string greater than every string that starts with prefix, so the prefix
+     * match can be a range scan of the url index. Null if there is none. SQLite compares
+     * text as UTF-8 bytes, that is by code point, so the last code point is incremented
+     * as a whole, stepping over the surrogate range.
+     * */
+    private static String upperBound(String prefix) {
+        for (int i = prefix.length(); i > 0; ) {
+            int codePoint = prefix.codePointBefore(i);
+            i -= Character.charCount(codePoint);
+
+            if (codePoint != Character.MAX_CODE_POINT) {
+                int next = codePoint + 1 == Character.MIN_SURROGATE ? Character.MAX_SURROGATE + 1 : codePoint + 1;
+                return prefix.substring(0, i) + new String(Character.toChars(next));
+            }
+        }
+
+        return null;
+    }
+
+    public static final class Builder {
+
+        private final List<Integer> statuses;
+        private final List<String> groupIds;
+        private String urlPrefix;
+        private long minTotalBytes;
+        private long maxTotalBytes;
+        private Order order;
+        private boolean descending;
+        private int limit;
+
+        public Builder() {
+            this.statuses = new ArrayList<>();
+            this.groupIds = new ArrayList<>();
+            this.minTotalBytes = -1;
+            this.maxTotalBytes = -1;
+            this.order = Order.ID;
+            this.descending = false;
+            this.limit = 0;
+        }
+
+        /**
+         * Matches requests with any of the given statuses. Can be called more than once.
+         * */
+        @NonNull
+        public Builder status(@NonNull Status... statuses) {
+            for (Status status : statuses) {
+                FetchHelper.throwIfStatusIsNull(status);
+                this.statuses.add(status.getValue());
+            }
+            return this;
+        }
+
+        /**
+         * Matches requests in any of the given groups. Can be called more than once.
+         * */
+        @NonNull
+        public Builder groupId(@NonNull String... groupIds) {
+            for (String groupId : groupIds) {
+                FetchHelper.throwIfGroupIDIsNull(groupId);
+                this.groupIds.add(groupId);
+            }
+            return this;
+        }
+
+        /**
+         * Matches requests whose url starts with prefix. The match is case sensitive.
+         * */
+        @NonNull
+        public Builder urlPrefix(@NonNull String prefix) {
+            if (prefix == null) {
+                throw new IllegalArgumentException("prefix cannot be null");
+            }
+
+            this.urlPrefix = prefix;
+            return this;
+        }
+
+        @NonNull
+        public Builder minTotalBytes(long bytes) {
+            FetchHelper.throwIfValueIsNegative(bytes, "minTotalBytes");
+            this.minTotalBytes = bytes;
+            return this;
+        }
+
+        @NonNull
+        public Builder maxTotalBytes(long bytes) {
+            FetchHelper.throwIfValueIsNegative(bytes, "maxTotalBytes");
+            this.maxTotalBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Sorts the result. Ties are broken by id. Defaults to ascending id.
+         * */
+        @NonNull
+        public Builder orderBy(@NonNull Order order, boolean descending) {
+            if (order == null) {
+                throw new IllegalArgumentException("Order cannot be null");
+            }
+
+            this.order = order;
+            this.descending = descending;
+            return this;
+        }
+
+        @NonNull
+        public Builder limit(int limit) {
+            if (limit < 1) {
+                throw new IllegalArgumentException("limit must be greater than 0");
+            }
+
+            this.limit = limit;
+            return this;
+        }
+
+        @NonNull
+        public RequestQuery build() {
+            return new RequestQuery(this);
+        }
+    }
+}
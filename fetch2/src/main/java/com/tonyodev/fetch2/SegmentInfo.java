@@ -0,0 +1,65 @@
+package com.tonyodev.fetch2;
+
+import android.arch.persistence.room.Entity;
+import android.arch.persistence.room.Ignore;
+
+@Entity(tableName = "segmentInfos",primaryKeys = {"requestId","position"})
+public class SegmentInfo {
+    private long requestId;
+    private int position;
+    private long startByte;
+    private long endByte;
+    private long downloadedBytes;
+
+    public SegmentInfo() {
+    }
+
+    @Ignore
+    public SegmentInfo(long requestId, int position, long startByte, long endByte, long downloadedBytes) {
+        this.requestId = requestId;
+        this.position = position;
+        this.startByte = startByte;
+        this.endByte = endByte;
+        this.downloadedBytes = downloadedBytes;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public void setPosition(int position) {
+        this.position = position;
+    }
+
+    public long getStartByte() {
+        return startByte;
+    }
+
+    public void setStartByte(long startByte) {
+        this.startByte = startByte;
+    }
+
+    public long getEndByte() {
+        return endByte;
+    }
+
+    public void setEndByte(long endByte) {
+        this.endByte = endByte;
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    public void setDownloadedBytes(long downloadedBytes) {
+        this.downloadedBytes = downloadedBytes;
+    }
+}
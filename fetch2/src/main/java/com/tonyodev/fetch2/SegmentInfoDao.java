@@ -0,0 +1,33 @@
+package com.tonyodev.fetch2;
+
+import android.arch.persistence.room.Dao;
+import android.arch.persistence.room.Insert;
+import android.arch.persistence.room.OnConflictStrategy;
+import android.arch.persistence.room.Query;
+
+import java.util.List;
+
+@Dao
+public interface SegmentInfoDao {
+
+ @Insert(onConflict = OnConflictStrategy.REPLACE)
+ void insert(List<SegmentInfo> segmentInfoList);
+
+ @Query("SELECT * FROM segmentInfos WHERE requestId = :requestId ORDER BY position")
+ List<SegmentInfo> query(long requestId);
+
+ @Query("DELETE FROM segmentInfos WHERE requestId = :requestId")
+ void remove(long requestId);
+
+ @Query("DELETE FROM segmentInfos WHERE requestId IN(:requestIds)")
+ void remove(long[] requestIds);
+
+ @Query("DELETE FROM segmentInfos WHERE requestId IN(SELECT id FROM requestInfos WHERE status = :status)")
+ void removeByStatus(int status);
+
+ @Query("DELETE FROM segmentInfos WHERE requestId IN(SELECT id FROM requestInfos WHERE groupId = :groupId AND status = :status)")
+ void removeByGroupId(String groupId,int status);
+
+ @Query("DELETE FROM segmentInfos")
+ void deleteAll();
+}
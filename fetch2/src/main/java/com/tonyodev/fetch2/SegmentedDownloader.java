@@ -0,0 +1,423 @@
+package com.tonyodev.fetch2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+/**
+ * Downloads a single request over several connections. The file is split into byte ranges
+ * that are fetched in parallel and written at their own offset. Each range persists its own
+ * resume point. A connection that finishes early takes over half of the largest remaining range.
+ */
+final class SegmentedDownloader implements BandwidthLimiter.Interruptible {
+
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private final OkHttpClient okHttpClient;
+    private final DatabaseManager databaseManager;
+    private final ExecutorService executor;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final DownloadListener downloadListener;
+    private final RequestData request;
+    private final List<Segment> segments;
+    private final Set<Call> activeCalls;
+    private volatile boolean isInterrupted;
+    private volatile Exception error;
+    private long totalBytes;
+
+    SegmentedDownloader(OkHttpClient okHttpClient, DatabaseManager databaseManager, ExecutorService executor,
+                        BandwidthLimiter bandwidthLimiter, DownloadListener downloadListener, RequestData request) {
+        this.okHttpClient = okHttpClient;
+        this.databaseManager = databaseManager;
+        this.executor = executor;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.downloadListener = downloadListener;
+        this.request = request;
+        this.segments = new ArrayList<>();
+        this.activeCalls = Collections.newSetFromMap(new ConcurrentHashMap<Call, Boolean>());
+        this.isInterrupted = false;
+    }
+
+    /**
+     * Loads the persisted segments or splits the file into new ones.
+     *
+     * @return false if the server does not support byte ranges. The caller should then fall
+     * back to a single connection.
+     * */
+    boolean prepare() throws IOException {
+
+        List<SegmentInfo> segmentInfos = querySegments();
+
+        if (!segmentInfos.isEmpty() && request.getTotalBytes() > 0) {
+            totalBytes = request.getTotalBytes();
+
+            for (SegmentInfo segmentInfo : segmentInfos) {
+                segments.add(new Segment(segmentInfo.getPosition(),segmentInfo.getStartByte(),
+                        segmentInfo.getEndByte(),segmentInfo.getDownloadedBytes()));
+            }
+            return true;
+        }
+
+        totalBytes = queryContentLength();
+
+        if (totalBytes < 1) {
+            return false;
+        }
+
+        int count = (int) Math.max(1, Math.min(request.getSegments(), totalBytes / MIN_SEGMENT_SIZE));
+        long segmentSize = totalBytes / count;
+        long downloadedPrefix = 0;
+
+        if (request.getOutputStrategy() == OutputStrategy.DEFAULT) {
+            downloadedPrefix = Math.min(new File(request.getAbsoluteFilePath()).length(), totalBytes);
+        } else {
+            preallocate();
+        }
+
+        for (int i = 0; i < count; i++) {
+            long startByte = i * segmentSize;
+            long endByte = i == count - 1 ? totalBytes - 1 : startByte + segmentSize - 1;
+            long downloadedBytes = Math.max(0, Math.min(downloadedPrefix - startByte, endByte - startByte + 1));
+
+            segments.add(new Segment(i,startByte,endByte,downloadedBytes));
+        }
+
+        saveSegments();
+        return true;
+    }
+
+    void download() throws Exception {
+
+        int workerCount = Math.min(request.getSegments(), segments.size());
+        final CountDownLatch latch = new CountDownLatch(workerCount);
+
+        for (int i = 0; i < workerCount; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Segment segment;
+                        while (!isInterrupted && error == null && (segment = nextSegment()) != null) {
+                            downloadSegment(segment);
+                        }
+                    }catch (Exception e) {
+                        if (!isInterrupted && error == null) {
+                            error = e;
+                        }
+                    }finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        long startTime = System.nanoTime();
+        long stopTime;
+
+        while (!latch.await(500, TimeUnit.MILLISECONDS)) {
+            stopTime = System.nanoTime();
+
+            if (DownloadHelper.hasTwoSecondsPassed(startTime, stopTime) && !isInterrupted) {
+                long downloadedBytes = getDownloadedBytes();
+                saveSegments();
+                downloadListener.onProgress(request.getId(), DownloadHelper.calculateProgress(downloadedBytes,totalBytes),
+                        downloadedBytes, totalBytes);
+                startTime = System.nanoTime();
+            }
+        }
+
+        saveSegments();
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    void interrupt() {
+        isInterrupted = true;
+
+        for (Call call : activeCalls) {
+            call.cancel();
+        }
+    }
+
+    @Override
+    public boolean isInterrupted() {
+        return isInterrupted;
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    long getDownloadedBytes() {
+        long downloadedBytes = 0;
+
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                downloadedBytes += segment.getDownloadedBytes();
+            }
+        }
+
+        return downloadedBytes;
+    }
+
+    private Segment nextSegment() {
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                if (!segment.isAssigned() && segment.getRemainingBytes() > 0) {
+                    segment.setAssigned(true);
+                    return segment;
+                }
+            }
+
+            Segment slowest = null;
+            for (Segment segment : segments) {
+                if (slowest == null || segment.getRemainingBytes() > slowest.getRemainingBytes()) {
+                    slowest = segment;
+                }
+            }
+
+            if (slowest == null || slowest.getRemainingBytes() < MIN_SEGMENT_SIZE * 2) {
+                return null;
+            }
+
+            Segment segment = slowest.split(segments.size());
+            segment.setAssigned(true);
+            segments.add(segment);
+            return segment;
+        }
+    }
+
+    private void downloadSegment(Segment segment) throws IOException, InterruptedException {
+
+        while (!isInterrupted && error == null && segment.getRemainingBytes() > 0) {
+
+            Call call = okHttpClient.newCall(DownloadHelper.createHttpRequest(request,
+                    segment.getNextByte(), segment.getEndByte()));
+            activeCalls.add(call);
+
+            Response response = null;
+            ResponseBody body = null;
+            RandomAccessFile output = null;
+            ByteBuffer buffer = null;
+
+            try {
+                response = call.execute();
+                body = response.body();
+
+                if (response.code() != HttpURLConnection.HTTP_PARTIAL || body == null) {
+                    throw new IOException("invalid server response");
+                }
+
+                BufferedSource source = body.source();
+                output = new RandomAccessFile(request.getAbsoluteFilePath(), "rw");
+                FileChannel channel = output.getChannel();
+
+                buffer = ByteBufferPool.acquire();
+                long written = 0;
+                int read;
+
+                while (!isInterrupted && (read = DownloadHelper.read(source, buffer)) != -1) {
+                    written += read;
+                    bandwidthLimiter.acquire(request.getId(), request.getGroupId(), read, this);
+
+                    if (!segment.write(channel, buffer)) {
+                        break;
+                    }
+                }
+
+                if (written == 0 && !isInterrupted) {
+                    throw new IOException("invalid server response");
+                }
+            }finally {
+                activeCalls.remove(call);
+
+                if (response != null) {
+                    response.close();
+                }
+                if (body != null) {
+                    body.close();
+                }
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                ByteBufferPool.release(buffer);
+            }
+        }
+    }
+
+    private void preallocate() throws IOException {
+        RandomAccessFile output = new RandomAccessFile(request.getAbsoluteFilePath(), "rw");
+
+        try {
+            if (output.length() != totalBytes) {
+                output.setLength(totalBytes);
+            }
+        }finally {
+            output.close();
+        }
+    }
+
+    private long queryContentLength() throws IOException {
+
+        Call call = okHttpClient.newCall(DownloadHelper.createHttpRequest(request, 0, 0));
+        activeCalls.add(call);
+        Response response = null;
+
+        try {
+            response = call.execute();
+
+            if (response.code() != HttpURLConnection.HTTP_PARTIAL) {
+                return -1;
+            }
+
+            return DownloadHelper.getContentRangeTotal(response.header("Content-Range"));
+        }finally {
+            activeCalls.remove(call);
+
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    private List<SegmentInfo> querySegments() {
+
+        final List<SegmentInfo> segmentInfos = new ArrayList<>();
+
+        databaseManager.executeTransaction(new Transaction() {
+            @Override
+            public void onPreExecute() {
+
+            }
+
+            @Override
+            public void onExecute(Database database) {
+                segmentInfos.addAll(database.querySegments(request.getId()));
+            }
+
+            @Override
+            public void onPostExecute() {
+
+            }
+        });
+
+        return segmentInfos;
+    }
+
+    private void saveSegments() {
+
+        final List<SegmentInfo> segmentInfos = new ArrayList<>();
+        final long downloadedBytes = getDownloadedBytes();
+
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                segmentInfos.add(segment.toSegmentInfo(request.getId()));
+            }
+        }
+
+        databaseManager.executeTransaction(new Transaction() {
+            @Override
+            public void onPreExecute() {
+
+            }
+
+            @Override
+            public void onExecute(Database database) {
+                database.saveSegments(request.getId(), segmentInfos);
+                database.setDownloadedBytesAndTotalBytes(request.getId(), downloadedBytes, totalBytes);
+            }
+
+            @Override
+            public void onPostExecute() {
+
+            }
+        });
+    }
+
+    private static final class Segment {
+        private final int position;
+        private final long startByte;
+        private long endByte;
+        private long downloadedBytes;
+        private boolean assigned;
+
+        Segment(int position, long startByte, long endByte, long downloadedBytes) {
+            this.position = position;
+            this.startByte = startByte;
+            this.endByte = endByte;
+            this.downloadedBytes = downloadedBytes;
+            this.assigned = false;
+        }
+
+        synchronized long getNextByte() {
+            return startByte + downloadedBytes;
+        }
+
+        synchronized long getEndByte() {
+            return endByte;
+        }
+
+        synchronized long getDownloadedBytes() {
+            return downloadedBytes;
+        }
+
+        synchronized long getRemainingBytes() {
+            return endByte - startByte - downloadedBytes + 1;
+        }
+
+        synchronized boolean isAssigned() {
+            return assigned;
+        }
+
+        synchronized void setAssigned(boolean assigned) {
+            this.assigned = assigned;
+        }
+
+        synchronized boolean write(FileChannel channel, ByteBuffer buffer) throws IOException {
+            int count = (int) Math.min(buffer.remaining(), getRemainingBytes());
+
+            if (count > 0) {
+                buffer.limit(buffer.position() + count);
+                DownloadHelper.write(channel, buffer, getNextByte());
+                downloadedBytes += count;
+            }
+
+            return getRemainingBytes() > 0;
+        }
+
+        synchronized Segment split(int newPosition) {
+            long newStartByte = endByte - getRemainingBytes() / 2 + 1;
+            Segment segment = new Segment(newPosition,newStartByte,endByte,0);
+            endByte = newStartByte - 1;
+            return segment;
+        }
+
+        synchronized SegmentInfo toSegmentInfo(long requestId) {
+            return new SegmentInfo(requestId,position,startByte,endByte,downloadedBytes);
+        }
+    }
+}
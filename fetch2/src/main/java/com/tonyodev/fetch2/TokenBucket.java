@@ -0,0 +1,68 @@
+package com.tonyodev.fetch2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free rate limiter. Instead of counting tokens it tracks the theoretical time at
+ * which the bucket is empty again. Each reservation advances that time with a single CAS,
+ * so many download threads can share a bucket without contention on a lock.
+ *
+ * Readers ask for the remaining wait each time they wake up, so a new rate applies to
+ * readers that are already waiting. Changing the rate drops the debt built up at the
+ * old rate.
+ */
+final class TokenBucket {
+
+    private static final long BURST = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private volatile long bytesPerSecond;
+    private final AtomicLong emptyTime;
+
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.emptyTime = new AtomicLong(System.nanoTime());
+    }
+
+    void setBytesPerSecond(long bytesPerSecond) {
+        if (this.bytesPerSecond != bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            emptyTime.set(System.nanoTime());
+        }
+    }
+
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Takes bytes from the bucket. Does nothing when unlimited.
+     * */
+    void reserve(int bytes) {
+        long rate = bytesPerSecond;
+
+        if (rate <= 0) {
+            return;
+        }
+
+        long cost = bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+        long now, current, next;
+
+        do {
+            now = System.nanoTime();
+            current = emptyTime.get();
+            next = Math.max(current, now) + cost;
+        } while (!emptyTime.compareAndSet(current, next));
+    }
+
+    /**
+     * @return nanoseconds until the bytes taken so far are allowed. 0 when unlimited.
+     * */
+    long getDelay() {
+        if (bytesPerSecond <= 0) {
+            return 0;
+        }
+
+        return Math.max(0, emptyTime.get() - System.nanoTime() - BURST);
+    }
+}
@@ -0,0 +1,177 @@
+package com.tonyodev.fetch2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves bytes from the network to disk in two stages. The calling thread reads from the
+ * source into recycled buffers and a writer task on the executor drains them to the file.
+ * Only DEPTH buffers exist per transfer, so memory use is fixed. The time each stage spends
+ * waiting on the other is recorded so the slower side can be identified.
+ * An optional StreamingDigest is updated by the writer after each buffer reaches the file.
+ * Its state can be exported from another thread while the transfer runs, as every
+ * StreamingDigest method holds the digest's monitor.
+ * The output is closed once the writer is done, so its bytes are in the file on return.
+ */
+final class TransferPipeline {
+
+    static final int DEPTH = 4;
+    private static final long POLL_INTERVAL = 100;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    interface Callback {
+        boolean isInterrupted();
+        void onRead(int bytes) throws InterruptedException;
+        void onProgress(long bytesWritten);
+    }
+
+    private final long id;
+    private final ReadableByteChannel source;
+    private final FileOutput output;
+    private final ExecutorService writerExecutor;
+    private final StreamingDigest digest;
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+    private final ArrayBlockingQueue<ByteBuffer> filledBuffers;
+    private final AtomicLong bytesWritten;
+    private final AtomicLong networkStallTime;
+    private final AtomicLong storageStallTime;
+    private volatile Exception writerError;
+
+    TransferPipeline(long id, ReadableByteChannel source, FileOutput output, ExecutorService writerExecutor,
+                     StreamingDigest digest) {
+        this.id = id;
+        this.source = source;
+        this.output = output;
+        this.writerExecutor = writerExecutor;
+        this.digest = digest;
+        this.freeBuffers = new ArrayBlockingQueue<>(DEPTH);
+        this.filledBuffers = new ArrayBlockingQueue<>(DEPTH + 1);
+        this.bytesWritten = new AtomicLong(0);
+        this.networkStallTime = new AtomicLong(0);
+        this.storageStallTime = new AtomicLong(0);
+    }
+
+    /**
+     * Runs the read stage on the calling thread until the source is exhausted or the
+     * callback reports an interruption. Returns once every read buffer has been written.
+     * */
+    void transfer(Callback callback) throws Exception {
+
+        final CountDownLatch writerDone = new CountDownLatch(1);
+
+        writerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drain();
+                }catch (Exception e) {
+                    writerError = e;
+                }finally {
+                    writerDone.countDown();
+                }
+            }
+        });
+
+        for (int i = 0; i < DEPTH; i++) {
+            freeBuffers.add(ByteBufferPool.acquire());
+        }
+
+        try {
+            ByteBuffer buffer;
+
+            while (!callback.isInterrupted() && writerError == null) {
+                long stallStart = System.nanoTime();
+                buffer = freeBuffers.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                storageStallTime.addAndGet(System.nanoTime() - stallStart);
+
+                if (buffer == null) {
+                    continue;
+                }
+
+                int read = DownloadHelper.read(source, buffer);
+
+                if (read == -1) {
+                    freeBuffers.add(buffer);
+                    break;
+                }
+
+                callback.onRead(read);
+                filledBuffers.add(buffer);
+                callback.onProgress(bytesWritten.get());
+            }
+        }finally {
+            filledBuffers.add(END);
+            writerDone.await();
+
+            try {
+                output.close();
+            }catch (IOException e) {
+                if (writerError == null) {
+                    writerError = e;
+                }
+            }
+
+            ByteBuffer buffer;
+            while ((buffer = freeBuffers.poll()) != null) {
+                ByteBufferPool.release(buffer);
+            }
+            while ((buffer = filledBuffers.poll()) != null) {
+                ByteBufferPool.release(buffer);
+            }
+        }
+
+        callback.onProgress(bytesWritten.get());
+
+        if (writerError != null) {
+            throw writerError;
+        }
+    }
+
+    private void drain() throws IOException, InterruptedException {
+        ByteBuffer buffer;
+
+        while (true) {
+            long stallStart = System.nanoTime();
+            buffer = filledBuffers.take();
+            networkStallTime.addAndGet(System.nanoTime() - stallStart);
+
+            if (buffer == END) {
+                return;
+            }
+
+            int count = buffer.remaining();
+            int position = buffer.position();
+
+            try {
+                output.write(buffer);
+            }catch (IOException e) {
+                ByteBufferPool.release(buffer);
+                throw e;
+            }
+
+            if (digest != null) {
+                buffer.position(position);
+                digest.update(buffer);
+            }
+
+            bytesWritten.addAndGet(count);
+            freeBuffers.add(buffer);
+        }
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    TransferStats getStats() {
+        return new TransferStats(id, bytesWritten.get(),
+                TimeUnit.NANOSECONDS.toMillis(networkStallTime.get()),
+                TimeUnit.NANOSECONDS.toMillis(storageStallTime.get()));
+    }
+}
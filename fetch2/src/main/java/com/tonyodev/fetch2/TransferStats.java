@@ -0,0 +1,44 @@
+package com.tonyodev.fetch2;
+
+public final class TransferStats {
+
+    private final long id;
+    private final long bytesWritten;
+    private final long networkStallTime;
+    private final long storageStallTime;
+
+    TransferStats(long id, long bytesWritten, long networkStallTime, long storageStallTime) {
+        this.id = id;
+        this.bytesWritten = bytesWritten;
+        this.networkStallTime = networkStallTime;
+        this.storageStallTime = storageStallTime;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Milliseconds the disk writer spent waiting for data from the network.
+     * */
+    public long getNetworkStallTime() {
+        return networkStallTime;
+    }
+
+    /**
+     * Milliseconds the network reader spent waiting for the disk writer to free a buffer.
+     * */
+    public long getStorageStallTime() {
+        return storageStallTime;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferStats id: " + id + " bytesWritten: " + bytesWritten
+                + " networkStallTime: " + networkStallTime + " storageStallTime: " + storageStallTime;
+    }
+}
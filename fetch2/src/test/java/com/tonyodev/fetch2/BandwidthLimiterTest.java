@@ -0,0 +1,127 @@
+package com.tonyodev.fetch2;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class BandwidthLimiterTest {
+
+    private static final BandwidthLimiter.Interruptible NEVER = new BandwidthLimiter.Interruptible() {
+        @Override
+        public boolean isInterrupted() {
+            return false;
+        }
+    };
+
+    @Test
+    public void unlimitedDoesNotWait() throws Exception {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(0, false);
+        long start = System.nanoTime();
+
+        bandwidthLimiter.acquire(1, "group", 1024 * 1024, NEVER);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+    }
+
+    @Test
+    public void uncappedReaderDoesNotWaitForCappedOne() throws Exception {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(0, false);
+        bandwidthLimiter.setRequestLimit(1, 100);
+        CountDownLatch capped = acquireInBackground(bandwidthLimiter, 1, "group", 10000, NEVER);
+        CountDownLatch uncapped = acquireInBackground(bandwidthLimiter, 2, "group", 10000, NEVER);
+
+        assertTrue(uncapped.await(100, TimeUnit.MILLISECONDS));
+        assertFalse(capped.await(100, TimeUnit.MILLISECONDS));
+        bandwidthLimiter.setRequestLimit(1, 0);
+        assertTrue(capped.await(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void removingGlobalLimitWakesWaitingReader() throws Exception {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(100, false);
+        CountDownLatch done = acquireInBackground(bandwidthLimiter, 1, "group", 10000, NEVER);
+
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        bandwidthLimiter.setGlobalLimit(0);
+        assertTrue(done.await(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void raisingRequestLimitWakesWaitingReader() throws Exception {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(0, false);
+        bandwidthLimiter.setRequestLimit(1, 100);
+        CountDownLatch done = acquireInBackground(bandwidthLimiter, 1, "group", 10000, NEVER);
+
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        bandwidthLimiter.setRequestLimit(1, 1024 * 1024);
+        assertTrue(done.await(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void removingGroupLimitWakesWaitingReader() throws Exception {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(0, false);
+        bandwidthLimiter.setGroupLimit("group", 100);
+        CountDownLatch done = acquireInBackground(bandwidthLimiter, 1, "group", 10000, NEVER);
+
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        bandwidthLimiter.setGroupLimit("group", 0);
+        assertTrue(done.await(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void interruptionEndsWait() throws Exception {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(100, false);
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        CountDownLatch done = acquireInBackground(bandwidthLimiter, 1, "group", 10000,
+                new BandwidthLimiter.Interruptible() {
+                    @Override
+                    public boolean isInterrupted() {
+                        return interrupted.get();
+                    }
+                });
+
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        interrupted.set(true);
+        assertTrue(done.await(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void weightedSharingSplitsGlobalLimit() throws Exception {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(1000, true);
+        bandwidthLimiter.setGroupWeight("heavy", 3);
+        bandwidthLimiter.onDownloadStarted("heavy");
+        bandwidthLimiter.onDownloadStarted("light");
+
+        CountDownLatch heavy = acquireInBackground(bandwidthLimiter, 1, "heavy", 600, NEVER);
+        assertTrue(heavy.await(1500, TimeUnit.MILLISECONDS));
+
+        bandwidthLimiter.setGlobalLimit(0);
+        CountDownLatch light = acquireInBackground(bandwidthLimiter, 2, "light", 600, NEVER);
+        assertTrue(light.await(500, TimeUnit.MILLISECONDS));
+    }
+
+    private static CountDownLatch acquireInBackground(final BandwidthLimiter bandwidthLimiter, final long id,
+                                                      final String groupId, final int bytes,
+                                                      final BandwidthLimiter.Interruptible interruptible) {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    bandwidthLimiter.acquire(id, groupId, bytes, interruptible);
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return done;
+    }
+}
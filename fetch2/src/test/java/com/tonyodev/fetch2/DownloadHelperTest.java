@@ -0,0 +1,89 @@
+package com.tonyodev.fetch2;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.junit.Assert.*;
+
+public class DownloadHelperTest {
+
+    @Test
+    public void readReturnsPartialBufferAfterOneRead() throws Exception {
+        ChunkedChannel source = new ChunkedChannel(100, 10);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        assertEquals(10, DownloadHelper.read(source, buffer));
+        assertEquals(10, buffer.remaining());
+        assertEquals(1, source.reads);
+    }
+
+    @Test
+    public void readReturnsMinusOneWhenExhausted() throws Exception {
+        ChunkedChannel source = new ChunkedChannel(15, 10);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        assertEquals(10, DownloadHelper.read(source, buffer));
+        assertEquals(5, DownloadHelper.read(source, buffer));
+        assertEquals(-1, DownloadHelper.read(source, buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void readStopsWaitingWhenInterrupted() throws Exception {
+        ChunkedChannel source = new ChunkedChannel(100, 0);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        Thread.currentThread().interrupt();
+
+        try {
+            assertEquals(0, DownloadHelper.read(source, buffer));
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Hands out at most chunkSize bytes per read, like a slow connection.
+     * */
+    private static final class ChunkedChannel implements ReadableByteChannel {
+        private final int chunkSize;
+        private int remaining;
+        private int reads;
+
+        ChunkedChannel(int length, int chunkSize) {
+            this.remaining = length;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            reads++;
+
+            if (remaining == 0) {
+                return -1;
+            }
+
+            int count = Math.min(Math.min(chunkSize, remaining), dst.remaining());
+
+            for (int i = 0; i < count; i++) {
+                dst.put((byte) i);
+            }
+
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+
+        }
+    }
+}
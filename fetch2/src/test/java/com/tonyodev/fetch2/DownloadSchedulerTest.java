@@ -0,0 +1,271 @@
+package com.tonyodev.fetch2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DownloadSchedulerTest {
+
+    private DownloadScheduler downloadScheduler;
+    private List<String> started;
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() {
+        started = Collections.synchronizedList(new ArrayList<String>());
+        release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+
+        if (downloadScheduler != null) {
+            downloadScheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void runsAtMostMaxParallelDownloads() throws Exception {
+        downloadScheduler = new DownloadScheduler(2, false);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(8);
+
+        for (int i = 0; i < 8; i++) {
+            downloadScheduler.schedule(new TestTask("t" + i, "group", Priority.NORMAL.getValue()) {
+                @Override
+                public void run() {
+                    int count = running.incrementAndGet();
+                    maxRunning.set(Math.max(maxRunning.get(), count));
+                    sleep(20);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void higherPriorityStartsFirst() throws Exception {
+        downloadScheduler = new DownloadScheduler(1, false);
+        downloadScheduler.schedule(new BlockingTask("blocker"));
+
+        CountDownLatch done = new CountDownLatch(3);
+        downloadScheduler.schedule(Arrays.asList(
+                new RecordingTask("low", "group", Priority.LOW.getValue(), done),
+                new RecordingTask("normal", "group", Priority.NORMAL.getValue(), done),
+                new RecordingTask("high", "group", Priority.HIGH.getValue(), done)));
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("blocker", "high", "normal", "low"), started);
+    }
+
+    @Test
+    public void groupsShareSlotsFairly() throws Exception {
+        downloadScheduler = new DownloadScheduler(1, false);
+        downloadScheduler.schedule(new BlockingTask("blocker"));
+
+        CountDownLatch done = new CountDownLatch(6);
+        List<RecordingTask> tasks = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            tasks.add(new RecordingTask("a" + i, "a", Priority.NORMAL.getValue(), done));
+        }
+        for (int i = 0; i < 2; i++) {
+            tasks.add(new RecordingTask("b" + i, "b", Priority.NORMAL.getValue(), done));
+        }
+
+        downloadScheduler.schedule(tasks);
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("blocker", "a0", "b0", "a1", "b1", "a2", "a3"), started);
+    }
+
+    @Test
+    public void groupWeightSetsShare() throws Exception {
+        downloadScheduler = new DownloadScheduler(1, false);
+        downloadScheduler.setGroupWeight("a", 2);
+        downloadScheduler.schedule(new BlockingTask("blocker"));
+
+        CountDownLatch done = new CountDownLatch(6);
+        List<RecordingTask> tasks = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            tasks.add(new RecordingTask("b" + i, "b", Priority.NORMAL.getValue(), done));
+        }
+        for (int i = 0; i < 3; i++) {
+            tasks.add(new RecordingTask("a" + i, "a", Priority.NORMAL.getValue(), done));
+        }
+
+        downloadScheduler.schedule(tasks);
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("blocker", "a0", "b0", "a1", "a2", "b1", "b2"), started);
+    }
+
+    @Test
+    public void unscheduledTaskNeverRuns() throws Exception {
+        downloadScheduler = new DownloadScheduler(1, false);
+        downloadScheduler.schedule(new BlockingTask("blocker"));
+
+        CountDownLatch done = new CountDownLatch(1);
+        RecordingTask removed = new RecordingTask("removed", "group", Priority.NORMAL.getValue(), done);
+        downloadScheduler.schedule(removed);
+        downloadScheduler.schedule(new RecordingTask("kept", "group", Priority.NORMAL.getValue(), done));
+
+        assertTrue(downloadScheduler.unschedule(removed));
+        assertFalse(downloadScheduler.unschedule(removed));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        sleep(50);
+        assertEquals(Arrays.asList("blocker", "kept"), started);
+    }
+
+    @Test
+    public void startedTaskCannotBeUnscheduled() throws Exception {
+        downloadScheduler = new DownloadScheduler(1, false);
+        BlockingTask blocker = new BlockingTask("blocker");
+        downloadScheduler.schedule(blocker);
+        assertTrue(blocker.started.await(1, TimeUnit.SECONDS));
+
+        assertFalse(downloadScheduler.unschedule(blocker));
+        release.countDown();
+    }
+
+    @Test
+    public void preemptsRunningTaskOnlyOnce() throws Exception {
+        downloadScheduler = new DownloadScheduler(1, true);
+        BlockingTask low = new BlockingTask("low", Priority.LOW.getValue());
+        downloadScheduler.schedule(low);
+        assertTrue(low.started.await(1, TimeUnit.SECONDS));
+
+        downloadScheduler.schedule(new RecordingTask("normal", "group", Priority.NORMAL.getValue(),
+                new CountDownLatch(1)));
+        assertEquals(1, low.preempted.get());
+
+        downloadScheduler.schedule(new RecordingTask("high", "group", Priority.HIGH.getValue(),
+                new CountDownLatch(1)));
+        assertEquals(1, low.preempted.get());
+    }
+
+    @Test
+    public void doesNotPreemptWhenDisabled() throws Exception {
+        downloadScheduler = new DownloadScheduler(1, false);
+        BlockingTask low = new BlockingTask("low", Priority.LOW.getValue());
+        downloadScheduler.schedule(low);
+        assertTrue(low.started.await(1, TimeUnit.SECONDS));
+
+        downloadScheduler.schedule(new RecordingTask("high", "group", Priority.HIGH.getValue(),
+                new CountDownLatch(1)));
+        assertEquals(0, low.preempted.get());
+    }
+
+    @Test
+    public void preemptsOnlyLowerPriority() throws Exception {
+        downloadScheduler = new DownloadScheduler(1, true);
+        BlockingTask normal = new BlockingTask("normal", Priority.NORMAL.getValue());
+        downloadScheduler.schedule(normal);
+        assertTrue(normal.started.await(1, TimeUnit.SECONDS));
+
+        downloadScheduler.schedule(new RecordingTask("other", "group", Priority.NORMAL.getValue(),
+                new CountDownLatch(1)));
+        assertEquals(0, normal.preempted.get());
+
+        downloadScheduler.schedule(new RecordingTask("high", "group", Priority.HIGH.getValue(),
+                new CountDownLatch(1)));
+        assertEquals(1, normal.preempted.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private abstract static class TestTask implements DownloadScheduler.Task {
+        final String name;
+        final String groupId;
+        final int priority;
+        final AtomicInteger preempted = new AtomicInteger();
+
+        TestTask(String name, String groupId, int priority) {
+            this.name = name;
+            this.groupId = groupId;
+            this.priority = priority;
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public String getGroupId() {
+            return groupId;
+        }
+
+        @Override
+        public void preempt() {
+            preempted.incrementAndGet();
+        }
+    }
+
+    private class RecordingTask extends TestTask {
+        private final CountDownLatch done;
+
+        RecordingTask(String name, String groupId, int priority, CountDownLatch done) {
+            super(name, groupId, priority);
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            started.add(name);
+            done.countDown();
+        }
+    }
+
+    private class BlockingTask extends TestTask {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        BlockingTask(String name) {
+            this(name, Priority.HIGH.getValue());
+        }
+
+        BlockingTask(String name, int priority) {
+            super(name, "blocker", priority);
+        }
+
+        @Override
+        public void run() {
+            DownloadSchedulerTest.this.started.add(name);
+            started.countDown();
+
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
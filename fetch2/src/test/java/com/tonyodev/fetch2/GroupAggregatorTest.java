@@ -0,0 +1,51 @@
+package com.tonyodev.fetch2;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class GroupAggregatorTest {
+
+    private GroupAggregator groupAggregator;
+
+    @Before
+    public void setUp() {
+        groupAggregator = new GroupAggregator();
+    }
+
+    @Test
+    public void eventReportsGroupOfKnownRequest() {
+        RequestData requestData = newRequestData("a", "group", Status.DOWNLOADING);
+        groupAggregator.put(requestData);
+
+        assertEquals("group", groupAggregator.onEvent(requestData.getId(), 10, 100));
+        assertEquals(10, groupAggregator.getStats("group").getDownloadedBytes());
+    }
+
+    @Test
+    public void removedRequestKeepsGroupUntilRemovedEvent() {
+        RequestData requestData = newRequestData("a", "group", Status.DOWNLOADING);
+        groupAggregator.put(requestData);
+        groupAggregator.remove(requestData.getId());
+
+        assertEquals("group", groupAggregator.onEvent(requestData.getId(), 10, 100));
+        assertEquals("group", groupAggregator.onEvent(requestData.getId(), 10, 100));
+
+        groupAggregator.onRemoved(requestData.getId());
+        assertNull(groupAggregator.onEvent(requestData.getId(), 10, 100));
+    }
+
+    @Test
+    public void unknownRequestHasNoGroup() {
+        assertNull(groupAggregator.onEvent(1, 10, 100));
+    }
+
+    private static RequestData newRequestData(String name, String groupId, Status status) {
+        return new RequestData("http://example.com/" + name, "/tmp/" + name, status.getValue(), Error.NONE.getValue(),
+                0, 100, new HashMap<String,String>(), groupId, 1, OutputStrategy.DEFAULT.getValue(),
+                Priority.NORMAL.getValue(), DigestAlgorithm.NONE.getValue(), null, null);
+    }
+}
@@ -0,0 +1,165 @@
+package com.tonyodev.fetch2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class LaneActionProcessorTest {
+
+    private ExecutorService actionExecutor;
+    private ExecutorService readExecutor;
+    private LaneActionProcessor actionProcessor;
+
+    @Before
+    public void setUp() {
+        actionExecutor = Executors.newCachedThreadPool();
+        readExecutor = Executors.newFixedThreadPool(2);
+        actionProcessor = new LaneActionProcessor(actionExecutor, readExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        actionExecutor.shutdownNow();
+        readExecutor.shutdownNow();
+    }
+
+    @Test
+    public void readWaitsForEarlierActionOnSameId() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean written = new AtomicBoolean(false);
+        final AtomicBoolean seen = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        actionProcessor.queueAction(1, new Runnable() {
+            @Override
+            public void run() {
+                await(release);
+                written.set(true);
+            }
+        });
+        actionProcessor.queueRead(1, new Runnable() {
+            @Override
+            public void run() {
+                seen.set(written.get());
+                done.countDown();
+            }
+        });
+
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(seen.get());
+    }
+
+    @Test
+    public void readForOtherIdDoesNotWait() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        actionProcessor.queueAction(1, new Runnable() {
+            @Override
+            public void run() {
+                await(release);
+            }
+        });
+        actionProcessor.queueRead(2, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void readWithoutIdWaitsForEveryEarlierAction() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        actionProcessor.queueAction(1, new Runnable() {
+            @Override
+            public void run() {
+                await(release);
+            }
+        });
+        actionProcessor.queueRead(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void readDoesNotWaitForLaterActions() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        actionProcessor.queueRead(new Runnable() {
+            @Override
+            public void run() {
+                await(release);
+                done.countDown();
+            }
+        });
+        actionProcessor.queueAction(new Runnable() {
+            @Override
+            public void run() {
+                release.countDown();
+            }
+        });
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void clearQueueReleasesWaitingReads() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        actionProcessor.queueAction(new Runnable() {
+            @Override
+            public void run() {
+                await(release);
+            }
+        });
+        actionProcessor.queueAction(1, new Runnable() {
+            @Override
+            public void run() {
+
+            }
+        });
+        actionProcessor.queueRead(1, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        actionProcessor.clearQueue();
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.tonyodev.fetch2;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ListenerRegistryTest {
+
+    @Test
+    public void groupStatsListenerIsScopedToItsGroup() {
+        ListenerRegistry listenerRegistry = new ListenerRegistry();
+        GroupListener listener = new TestGroupListener();
+
+        assertTrue(listenerRegistry.addForGroupStats("a", listener));
+        assertFalse(listenerRegistry.addForGroupStats("a", listener));
+
+        ListenerRegistry.Snapshot snapshot = listenerRegistry.getSnapshot();
+        assertTrue(snapshot.hasGroupStats());
+        assertEquals(1, snapshot.forGroupStats("a").length);
+        assertSame(listener, snapshot.forGroupStats("a")[0].get());
+        assertEquals(0, snapshot.forGroupStats("b").length);
+        assertEquals(0, snapshot.forGroupStats(null).length);
+    }
+
+    @Test
+    public void removeDropsEveryGroupOfTheListener() {
+        ListenerRegistry listenerRegistry = new ListenerRegistry();
+        GroupListener listener = new TestGroupListener();
+        GroupListener other = new TestGroupListener();
+        listenerRegistry.addForGroupStats("a", listener);
+        listenerRegistry.addForGroupStats("b", listener);
+        listenerRegistry.addForGroupStats("b", other);
+
+        assertTrue(listenerRegistry.removeForGroupStats(listener));
+        assertFalse(listenerRegistry.removeForGroupStats(listener));
+
+        ListenerRegistry.Snapshot snapshot = listenerRegistry.getSnapshot();
+        assertEquals(0, snapshot.forGroupStats("a").length);
+        assertEquals(1, snapshot.forGroupStats("b").length);
+        assertSame(other, snapshot.forGroupStats("b")[0].get());
+    }
+
+    @Test
+    public void readerKeepsItsSnapshotWhileListenersChange() {
+        ListenerRegistry listenerRegistry = new ListenerRegistry();
+        GroupListener listener = new TestGroupListener();
+        listenerRegistry.addForGroupStats("a", listener);
+
+        ListenerRegistry.Snapshot snapshot = listenerRegistry.getSnapshot();
+        listenerRegistry.removeForGroupStats(listener);
+        listenerRegistry.addForGroupStats("a", new TestGroupListener());
+
+        assertEquals(1, snapshot.forGroupStats("a").length);
+        assertSame(listener, snapshot.forGroupStats("a")[0].get());
+    }
+
+    @Test
+    public void clearingFetchListenersKeepsGroupStatsListeners() {
+        ListenerRegistry listenerRegistry = new ListenerRegistry();
+        listenerRegistry.addForGroupStats("a", new TestGroupListener());
+
+        listenerRegistry.clear();
+        assertEquals(1, listenerRegistry.getSnapshot().forGroupStats("a").length);
+
+        listenerRegistry.clearGroupStats();
+        assertFalse(listenerRegistry.getSnapshot().hasGroupStats());
+    }
+
+    private static final class TestGroupListener implements GroupListener {
+        @Override
+        public void onGroupUpdated(@NonNull GroupStats groupStats) {
+        }
+    }
+}
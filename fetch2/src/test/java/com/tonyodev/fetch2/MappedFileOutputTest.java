@@ -0,0 +1,60 @@
+package com.tonyodev.fetch2;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class MappedFileOutputTest {
+
+    @Test
+    public void writesAtPositionAndCloses() throws Exception {
+        File file = File.createTempFile("mapped", ".bin");
+        file.deleteOnExit();
+
+        byte[] expected = new byte[4096];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) (i * 31);
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            randomAccessFile.setLength(expected.length + 100);
+            MappedFileOutput output = new MappedFileOutput(randomAccessFile.getChannel(), 100, expected.length + 100);
+
+            ByteBuffer buffer = ByteBuffer.wrap(expected, 0, 1000);
+            output.write(buffer);
+            assertFalse(buffer.hasRemaining());
+
+            output.write(ByteBuffer.wrap(expected, 1000, expected.length - 1000));
+            output.close();
+
+            byte[] actual = new byte[expected.length];
+            randomAccessFile.seek(100);
+            randomAccessFile.readFully(actual);
+            assertArrayEquals(expected, actual);
+        } finally {
+            randomAccessFile.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void closeWithoutWritesDoesNothing() throws Exception {
+        File file = File.createTempFile("mapped", ".bin");
+        file.deleteOnExit();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            new MappedFileOutput(randomAccessFile.getChannel(), 0, 10).close();
+            assertEquals(0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+            file.delete();
+        }
+    }
+}
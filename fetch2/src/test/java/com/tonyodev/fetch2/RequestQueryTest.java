@@ -0,0 +1,86 @@
+package com.tonyodev.fetch2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RequestQueryTest {
+
+    @Test
+    public void emptyQuerySelectsEveryIdInOrder() {
+        RequestQuery requestQuery = new RequestQuery.Builder().build();
+
+        assertEquals("SELECT id FROM requestInfos ORDER BY id ASC", requestQuery.getSql());
+        assertEquals(0, requestQuery.getArgs().length);
+    }
+
+    @Test
+    public void conditionsAreCombinedWithAnd() {
+        RequestQuery requestQuery = new RequestQuery.Builder()
+                .groupId("a", "b")
+                .status(Status.QUEUED, Status.PAUSED)
+                .minTotalBytes(10)
+                .maxTotalBytes(20)
+                .build();
+
+        assertEquals("SELECT id FROM requestInfos WHERE groupId IN(?,?) AND status IN(?,?)"
+                + " AND totalBytes >= ? AND totalBytes <= ? ORDER BY id ASC", requestQuery.getSql());
+        assertArrayEquals(new Object[]{"a", "b", Status.QUEUED.getValue(), Status.PAUSED.getValue(), 10L, 20L},
+                requestQuery.getArgs());
+    }
+
+    @Test
+    public void urlPrefixIsMatchedAsRange() {
+        RequestQuery requestQuery = new RequestQuery.Builder().urlPrefix("http://a/b").build();
+
+        assertEquals("SELECT id FROM requestInfos WHERE url >= ? AND url < ? ORDER BY id ASC", requestQuery.getSql());
+        assertArrayEquals(new Object[]{"http://a/b", "http://a/c"}, requestQuery.getArgs());
+    }
+
+    @Test
+    public void urlPrefixEndingInSurrogatePairIncrementsTheCodePoint() {
+        RequestQuery requestQuery = new RequestQuery.Builder().urlPrefix("ab\uD83D\uDE00").build();
+
+        assertArrayEquals(new Object[]{"ab\uD83D\uDE00", "ab\uD83D\uDE01"}, requestQuery.getArgs());
+    }
+
+    @Test
+    public void urlPrefixUpperBoundSkipsSurrogates() {
+        assertArrayEquals(new Object[]{"a\uD7FF", "a\uE000"},
+                new RequestQuery.Builder().urlPrefix("a\uD7FF").build().getArgs());
+        assertArrayEquals(new Object[]{"a\uFFFF", "a\uD800\uDC00"},
+                new RequestQuery.Builder().urlPrefix("a\uFFFF").build().getArgs());
+        assertArrayEquals(new Object[]{"a\uDBFF\uDFFF", "b"},
+                new RequestQuery.Builder().urlPrefix("a\uDBFF\uDFFF").build().getArgs());
+    }
+
+    @Test
+    public void urlPrefixWithoutUpperBoundIsOpenEnded() {
+        String prefix = new String(Character.toChars(Character.MAX_CODE_POINT));
+        RequestQuery requestQuery = new RequestQuery.Builder().urlPrefix(prefix).build();
+
+        assertEquals("SELECT id FROM requestInfos WHERE url >= ? ORDER BY id ASC", requestQuery.getSql());
+        assertArrayEquals(new Object[]{prefix}, requestQuery.getArgs());
+    }
+
+    @Test
+    public void orderIsBrokenByIdInTheSameDirection() {
+        RequestQuery requestQuery = new RequestQuery.Builder()
+                .orderBy(RequestQuery.Order.PRIORITY, true)
+                .limit(5)
+                .build();
+
+        assertEquals("SELECT id FROM requestInfos ORDER BY priority DESC, id DESC LIMIT ?", requestQuery.getSql());
+        assertArrayEquals(new Object[]{5}, requestQuery.getArgs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void limitMustBePositive() {
+        new RequestQuery.Builder().limit(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSizeIsRejected() {
+        new RequestQuery.Builder().minTotalBytes(-1);
+    }
+}
@@ -0,0 +1,122 @@
+package com.tonyodev.fetch2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(Parameterized.class)
+public class StreamingDigestTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String LONG_VECTOR = "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq";
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> algorithms() {
+        return Arrays.asList(new Object[][]{
+                {DigestAlgorithm.MD5, "MD5", new String[][]{
+                        {"", "d41d8cd98f00b204e9800998ecf8427e"},
+                        {"abc", "900150983cd24fb0d6963f7d28e17f72"}}},
+                {DigestAlgorithm.SHA1, "SHA-1", new String[][]{
+                        {"", "da39a3ee5e6b4b0d3255bfef95601890afd80709"},
+                        {"abc", "a9993e364706816aba3e25717850c26c9cd0d89d"},
+                        {LONG_VECTOR, "84983e441c3bd26ebaae4aa1f95129e5e54670f1"}}},
+                {DigestAlgorithm.SHA256, "SHA-256", new String[][]{
+                        {"", "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855"},
+                        {"abc", "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"},
+                        {LONG_VECTOR, "248d6a61d20638b8e5c026930c3e6039a33ce45964ff2167f6ecedd419db06c1"}}},
+                {DigestAlgorithm.CRC32C, null, new String[][]{
+                        {"", "00000000"},
+                        {"123456789", "e3069283"}}}
+        });
+    }
+
+    private final DigestAlgorithm algorithm;
+    private final String reference;
+    private final String[][] vectors;
+
+    public StreamingDigestTest(DigestAlgorithm algorithm, String reference, String[][] vectors) {
+        this.algorithm = algorithm;
+        this.reference = reference;
+        this.vectors = vectors;
+    }
+
+    @Test
+    public void knownVectors() {
+        for (String[] vector : vectors) {
+            StreamingDigest digest = StreamingDigest.newInstance(algorithm);
+            update(digest, vector[0].getBytes(ASCII), 0, vector[0].length(), false);
+            assertEquals(vector[0], vector[1], digest.digest());
+        }
+    }
+
+    @Test
+    public void matchesMessageDigestAcrossChunkBoundaries() throws Exception {
+        if (reference == null) {
+            return;
+        }
+
+        byte[] data = randomBytes(100003);
+        StreamingDigest digest = StreamingDigest.newInstance(algorithm);
+        Random random = new Random(7);
+        int offset = 0;
+
+        while (offset < data.length) {
+            int count = Math.min(data.length - offset, random.nextInt(200));
+            update(digest, data, offset, count, random.nextBoolean());
+            offset += count;
+        }
+
+        assertEquals(StreamingDigest.toHex(MessageDigest.getInstance(reference).digest(data)), digest.digest());
+    }
+
+    @Test
+    public void exportAndRestoreMidStream() {
+        byte[] data = randomBytes(70001);
+
+        for (int split : new int[]{0, 1, 63, 64, 65, 4097, data.length}) {
+            StreamingDigest original = StreamingDigest.newInstance(algorithm);
+            update(original, data, 0, split, true);
+
+            StreamingDigest restored = StreamingDigest.restore(algorithm, original.exportState());
+            assertNotNull(restored);
+            assertEquals(split, restored.getLength());
+
+            update(original, data, split, data.length - split, true);
+            update(restored, data, split, data.length - split, false);
+
+            assertEquals("split " + split, original.digest(), restored.digest());
+        }
+    }
+
+    @Test
+    public void restoreRejectsInvalidState() {
+        assertNull(StreamingDigest.restore(algorithm, null));
+        assertNull(StreamingDigest.restore(algorithm, new byte[11]));
+        assertNull(StreamingDigest.restore(DigestAlgorithm.NONE, StreamingDigest.newInstance(algorithm).exportState()));
+    }
+
+    /**
+     * Feeds the bytes through a heap or a direct buffer, the two kinds the ByteBufferPool hands out.
+     * */
+    private static void update(StreamingDigest digest, byte[] data, int offset, int count, boolean direct) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(count) : ByteBuffer.allocate(count);
+        buffer.put(data, offset, count).flip();
+        digest.update(buffer);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,52 @@
+package com.tonyodev.fetch2;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    @Test
+    public void unlimitedBucketNeverWaits() {
+        TokenBucket bucket = new TokenBucket(0);
+        bucket.reserve(Integer.MAX_VALUE);
+        assertEquals(0, bucket.getDelay());
+    }
+
+    @Test
+    public void burstIsFree() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.reserve(200);
+        assertEquals(0, bucket.getDelay());
+    }
+
+    @Test
+    public void delayMatchesRate() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.reserve(1000);
+
+        long delay = TimeUnit.NANOSECONDS.toMillis(bucket.getDelay());
+        assertTrue("delay " + delay, delay > 650 && delay <= 750);
+    }
+
+    @Test
+    public void changingRateDropsDebt() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.reserve(10000);
+        assertTrue(bucket.getDelay() > 0);
+
+        bucket.setBytesPerSecond(2000);
+        assertEquals(0, bucket.getDelay());
+    }
+
+    @Test
+    public void settingSameRateKeepsDebt() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.reserve(10000);
+
+        bucket.setBytesPerSecond(1000);
+        assertTrue(bucket.getDelay() > 0);
+    }
+}
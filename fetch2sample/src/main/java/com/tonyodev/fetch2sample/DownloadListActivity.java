@@ -178,4 +178,9 @@ public class DownloadListActivity extends AppCompatActivity implements ActionLis
     public void onRemoved(long id, int progress, long downloadedBytes, long totalBytes) {
         fileAdapter.onUpdate(id, Status.REMOVED,progress,downloadedBytes,totalBytes, Error.NONE);
     }
+
+    @Override
+    public void onQueued(long id, int progress, long downloadedBytes, long totalBytes) {
+        fileAdapter.onUpdate(id, Status.QUEUED,progress,downloadedBytes,totalBytes, Error.NONE);
+    }
 }
\ No newline at end of file
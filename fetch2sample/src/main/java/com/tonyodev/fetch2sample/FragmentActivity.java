@@ -136,5 +136,10 @@ public class FragmentActivity extends AppCompatActivity {
         public void onRemoved(long id, int progress, long downloadedBytes, long totalBytes) {
 
         }
+
+        @Override
+        public void onQueued(long id, int progress, long downloadedBytes, long totalBytes) {
+
+        }
     };
 }
\ No newline at end of file
@@ -200,5 +200,10 @@ public class GameFilesActivity extends AppCompatActivity {
                 completed = 0;
             }
         }
+
+        @Override
+        public void onQueued(long id, int progress, long downloadedBytes, long totalBytes) {
+
+        }
     };
 }
@@ -103,4 +103,9 @@ public class ProgressFragment extends Fragment implements FetchListener {
     public void onRemoved(long id, int progress, long downloadedBytes, long totalBytes) {
 
     }
+
+    @Override
+    public void onQueued(long id, int progress, long downloadedBytes, long totalBytes) {
+
+    }
 }
\ No newline at end of file